@@ -1,6 +1,7 @@
 plugins {
     id("java")
     id("com.gradleup.shadow") version "9.0.0-beta8"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "de.malfrador"
@@ -17,6 +18,11 @@ dependencies {
         exclude(module="opus-java")
     }
     implementation("org.spongepowered:configurate-yaml:4.0.0");
+    implementation("com.fasterxml.jackson.core:jackson-core:2.18.2") // Streaming parser for the slim polling queries
+
+    testImplementation(platform("org.junit:junit-bom:5.11.2"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
 java {
@@ -25,6 +31,52 @@ java {
     }
 }
 
+tasks.test {
+    useJUnitPlatform()
+}
+
+// End-to-end load test against a local stand-in for the Notion API, run with ./gradlew loadTest
+val loadtest: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations[loadtest.implementationConfigurationName].extendsFrom(configurations.implementation.get())
+configurations[loadtest.runtimeOnlyConfigurationName].extendsFrom(configurations.runtimeOnly.get())
+
+tasks.register<JavaExec>("loadTest") {
+    group = "verification"
+    description = "Runs polling and notifications against a local fake Notion API. Options via -PloadTestArgs=\"...\""
+    classpath = loadtest.runtimeClasspath
+    mainClass = "de.malfrador.loadtest.LoadTest"
+    args = (findProperty("loadTestArgs") as String?)?.split(" ")?.filter { it.isNotBlank() } ?: emptyList()
+}
+
+tasks.register<JavaExec>("clusterTest") {
+    group = "verification"
+    description = "Runs several instances as separate processes that share the monitored databases. Options via -PclusterTestArgs=\"...\""
+    classpath = loadtest.runtimeClasspath
+    mainClass = "de.malfrador.loadtest.ClusterTest"
+    args = (findProperty("clusterTestArgs") as String?)?.split(" ")?.filter { it.isNotBlank() } ?: emptyList()
+}
+
+tasks.register<JavaExec>("uploadTest") {
+    group = "verification"
+    description = "Streams large attachments into a local fake Notion with a small heap. Options via -PuploadTestArgs=\"...\""
+    classpath = loadtest.runtimeClasspath
+    mainClass = "de.malfrador.loadtest.UploadTest"
+    maxHeapSize = "64m" // Smaller than the files, so buffering a whole file fails the test
+    args = (findProperty("uploadTestArgs") as String?)?.split(" ")?.filter { it.isNotBlank() } ?: emptyList()
+}
+
+// Benchmarks for the hot paths, run with ./gradlew jmh. Results end up in build/results/jmh
+jmh {
+    warmupIterations = 3
+    iterations = 5
+    fork = 1
+    profilers = listOf("gc") // Allocation rate per operation, to catch allocation regressions
+}
+
 tasks.jar {
     manifest {
         attributes(
@@ -37,3 +89,28 @@ tasks.shadowJar {
     archiveFileName.set(project.name + ".jar")
 }
 
+// Class data sharing archive for faster startup. ./gradlew shadowJar -Pcds also builds build/libs/<name>.jsa from a
+// training run of the jar against a stub of the Notion API, which needs no config or network and fails the build if
+// it fails. Start the bot with -XX:SharedArchiveFile=<name>.jsa to use it
+val cdsArchive by tasks.registering(Exec::class) {
+    group = "build"
+    description = "Creates a class data sharing archive for the shadow jar from a training run"
+    dependsOn(tasks.shadowJar)
+    val jar = tasks.shadowJar.flatMap { it.archiveFile }
+    val archive = layout.buildDirectory.file("libs/${project.name}.jsa")
+    val workDir = layout.buildDirectory.dir("cds").get().asFile
+    val launcher = javaToolchains.launcherFor(java.toolchain)
+    inputs.file(jar)
+    outputs.file(archive)
+    workingDir = workDir
+    doFirst {
+        workDir.mkdirs()
+        executable = launcher.get().executablePath.asFile.absolutePath
+        args("-XX:ArchiveClassesAtExit=" + archive.get().asFile.absolutePath, "-jar", jar.get().asFile.absolutePath, "--cds-training")
+    }
+}
+
+if (hasProperty("cds")) {
+    tasks.shadowJar { finalizedBy(cdsArchive) }
+}
+
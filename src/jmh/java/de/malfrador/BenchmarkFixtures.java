@@ -0,0 +1,57 @@
+package de.malfrador;
+
+import notion.api.v1.json.GsonSerializer;
+import notion.api.v1.model.databases.Database;
+import notion.api.v1.model.pages.Page;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Notion objects for the benchmarks, parsed from recorded API responses with the SDK's own serializer,
+ * so they look exactly like what the bot gets from Notion.
+ */
+public final class BenchmarkFixtures {
+
+    private static final GsonSerializer SERIALIZER = new GsonSerializer(false);
+
+    private BenchmarkFixtures() {
+    }
+
+    public static Database database() {
+        return SERIALIZER.toDatabase(resource("/database.json"));
+    }
+
+    public static Page page() {
+        return SERIALIZER.toPage(resource("/page.json"));
+    }
+
+    /**
+     * A completely filled reporting form, as it is submitted from Discord
+     */
+    public static Map<String, String> filledForm() {
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put("Description", "The boss in the second dungeon room does not spawn after the cutscene.");
+        values.put("Steps to reproduce", "1. Enter the dungeon\n2. Watch the cutscene\n3. Walk into the second room");
+        values.put("Severity", "High");
+        values.put("Component", "Dungeons");
+        values.put("Reproducible", "yes");
+        values.put("Name", "Player#1234");
+        return values;
+    }
+
+    private static String resource(String name) {
+        try (InputStream in = BenchmarkFixtures.class.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IllegalStateException("Missing benchmark resource " + name);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
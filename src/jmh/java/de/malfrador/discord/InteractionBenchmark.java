@@ -0,0 +1,77 @@
+package de.malfrador.discord;
+
+import de.malfrador.BenchmarkFixtures;
+import de.malfrador.notion.DatabaseMetadata;
+import de.malfrador.reporting.CompiledForm;
+import de.malfrador.reporting.ReportingProperty;
+import net.dv8tion.jda.api.interactions.components.ActionRow;
+import notion.api.v1.model.common.PropertyType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work {@link VDiscordBot#onEvent} does for each interaction, without the Discord round trip:
+ * looking up the clicked component, storing the selection and, once the form is complete, building the
+ * components that show the user's selections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InteractionBenchmark {
+
+    private static final String USER = "123456789012345678";
+
+    private CompiledForm form;
+    private FormSessionStore sessions;
+    private Map<String, String> filled;
+
+    @Setup
+    public void setup() {
+        form = CompiledForm.compile(DatabaseMetadata.of(BenchmarkFixtures.database()));
+        sessions = new FormSessionStore(Duration.ofMinutes(30), 10000, 16L * 1024 * 1024);
+        filled = BenchmarkFixtures.filledForm();
+        filled.forEach((property, value) -> sessions.select(USER, property, value));
+    }
+
+    @TearDown
+    public void tearDown() {
+        sessions.shutdown();
+    }
+
+    @Benchmark
+    public void buttonClick(Blackhole blackhole) {
+        ReportingProperty property = form.property("Description");
+        if (property != null && property.type() == PropertyType.RichText) {
+            blackhole.consume(form.modal(property.id()));
+        }
+    }
+
+    @Benchmark
+    public int selectOption() {
+        sessions.select(USER, "Severity", "Critical");
+        return sessions.selectedCount(USER);
+    }
+
+    @Benchmark
+    public List<ActionRow> completeForm() {
+        sessions.select(USER, "Component", "Items");
+        return form.rowsWithSelections(sessions.get(USER));
+    }
+
+    @Benchmark
+    public List<ActionRow> rowsWithSelections() {
+        return form.rowsWithSelections(filled);
+    }
+}
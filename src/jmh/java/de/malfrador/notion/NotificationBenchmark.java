@@ -0,0 +1,55 @@
+package de.malfrador.notion;
+
+import de.malfrador.BenchmarkFixtures;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import notion.api.v1.model.pages.Page;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a notification from a changed page: title extraction, content assembly and the embed itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NotificationBenchmark {
+
+    private Page page;
+    private NotificationPipeline.EnrichedChange newPage;
+    private NotificationPipeline.EnrichedChange editedPage;
+
+    @Setup
+    public void setup() {
+        page = BenchmarkFixtures.page();
+        String blockText = "The boss does not spawn. ".repeat(10);
+        PageStub stub = PageStub.of(page);
+        newPage = new NotificationPipeline.EnrichedChange(new PageChange("db", stub, page, true, 1, Instant.now()),
+                page, "Bug Reports", blockText, null, List.of("channel"));
+        editedPage = new NotificationPipeline.EnrichedChange(new PageChange("db", stub, page, false, 3, Instant.now()),
+                page, "Bug Reports", blockText, List.of("Severity", "Description"), List.of("channel"));
+    }
+
+    @Benchmark
+    public String extractTitle() {
+        return NotificationPipeline.extractTitle(page);
+    }
+
+    @Benchmark
+    public MessageEmbed renderNewPage() {
+        return NotificationPipeline.render(newPage);
+    }
+
+    @Benchmark
+    public MessageEmbed renderEditedPage() {
+        return NotificationPipeline.render(editedPage);
+    }
+}
@@ -0,0 +1,85 @@
+package de.malfrador.notion;
+
+import net.dv8tion.jda.api.utils.data.DataArray;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import notion.api.v1.json.GsonSerializer;
+import notion.api.v1.model.databases.QueryResults;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a full page of query results (100 pages) with the SDK versus the slim change-detection parser,
+ * for databases of different width.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueryParseBenchmark {
+
+    @Param({"5", "30"})
+    public int properties;
+
+    private final GsonSerializer serializer = new GsonSerializer(false);
+    private String body;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        DataArray results = DataArray.empty();
+        Instant time = Instant.parse("2025-02-10T11:00:00.000Z");
+        for (int i = 0; i < 100; i++) {
+            DataObject pageProperties = DataObject.empty()
+                    .put("Name", DataObject.empty().put("id", "title").put("type", "title")
+                            .put("title", DataArray.empty().add(text("Page " + i))));
+            for (int p = 1; p < properties; p++) {
+                pageProperties.put("Property " + p, DataObject.empty().put("id", "p" + p).put("type", "rich_text")
+                        .put("rich_text", DataArray.empty().add(text("Some text in property " + p + " of page " + i))));
+            }
+            results.add(DataObject.empty()
+                    .put("object", "page")
+                    .put("id", UUID.randomUUID().toString())
+                    .put("created_time", time.toString())
+                    .put("last_edited_time", time.plusSeconds(60L * i).toString())
+                    .put("archived", false)
+                    .put("parent", DataObject.empty().put("type", "database_id").put("database_id", UUID.randomUUID().toString()))
+                    .put("properties", pageProperties));
+        }
+        body = DataObject.empty()
+                .put("object", "list")
+                .put("results", results)
+                .put("has_more", true)
+                .put("next_cursor", UUID.randomUUID().toString())
+                .toString();
+        bytes = body.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static DataObject text(String content) {
+        return DataObject.empty()
+                .put("type", "text")
+                .put("text", DataObject.empty().put("content", content))
+                .put("plain_text", content);
+    }
+
+    @Benchmark
+    public QueryResults sdk() {
+        return serializer.toQueryResults(body);
+    }
+
+    @Benchmark
+    public SlimDatabaseQuery.Result slim() throws IOException {
+        return SlimDatabaseQuery.parse(new ByteArrayInputStream(bytes));
+    }
+}
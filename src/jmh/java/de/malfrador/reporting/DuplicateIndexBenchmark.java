@@ -0,0 +1,65 @@
+package de.malfrador.reporting;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up possible duplicates of a new report while the user waits, and indexing a report seen by polling,
+ * for databases with different numbers of reports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DuplicateIndexBenchmark {
+
+    private static final String[] WORDS = ("the game crashes when i open my inventory in a dungeon after boss fight server lag "
+            + "freeze item duplicated quest reward missing chest npc stuck teleport world loads slowly kicked timeout").split(" ");
+
+    @Param({"1000", "20000"})
+    public int reports;
+
+    private DuplicateIndex index;
+    private String newReport;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        index = new DuplicateIndex(0.4);
+        for (int i = 0; i < reports; i++) {
+            String text = report(random);
+            index.put("database", "page-" + i, Instant.EPOCH, text, "https://www.notion.so/page" + i, text);
+        }
+        newReport = report(random);
+    }
+
+    private static String report(Random random) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 25; i++) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return text.toString();
+    }
+
+    @Benchmark
+    public List<DuplicateIndex.Match> similar() {
+        return index.similar("database", newReport, 3);
+    }
+
+    @Benchmark
+    public void put() {
+        String pageId = "page-" + next++ % reports;
+        index.put("database", pageId, Instant.ofEpochSecond(next), newReport, "https://www.notion.so/" + pageId, newReport);
+    }
+}
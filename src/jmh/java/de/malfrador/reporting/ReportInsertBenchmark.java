@@ -0,0 +1,49 @@
+package de.malfrador.reporting;
+
+import de.malfrador.BenchmarkFixtures;
+import de.malfrador.notion.DatabaseMetadata;
+import notion.api.v1.model.pages.PageProperty;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a submitted form into Notion page properties, the CPU side of inserting a bug report.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReportInsertBenchmark {
+
+    private DatabaseMetadata schema;
+    private CompiledForm form;
+    private Map<String, String> values;
+
+    @Setup
+    public void setup() {
+        schema = DatabaseMetadata.of(BenchmarkFixtures.database());
+        form = CompiledForm.compile(schema);
+        values = BenchmarkFixtures.filledForm();
+    }
+
+    @Benchmark
+    public Map<String, PageProperty> toPageProperties() {
+        return form.toPageProperties(values);
+    }
+
+    /**
+     * Happens whenever the schema of the reporting database changes
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public CompiledForm compileForm() {
+        return CompiledForm.compile(schema);
+    }
+}
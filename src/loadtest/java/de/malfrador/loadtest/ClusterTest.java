@@ -0,0 +1,337 @@
+package de.malfrador.loadtest;
+
+import de.malfrador.cluster.LeaseStore;
+import de.malfrador.cluster.PartitionCoordinator;
+import de.malfrador.discord.NotificationSender;
+import de.malfrador.notion.DatabaseMetadataCache;
+import de.malfrador.notion.DatabasePoller;
+import de.malfrador.notion.DummyLogger;
+import de.malfrador.notion.EditCoalescer;
+import de.malfrador.notion.NotificationPipeline;
+import de.malfrador.notion.NotionRateLimiter;
+import de.malfrador.notion.NotionRateLimiter.Priority;
+import de.malfrador.notion.PageSnapshotStore;
+import de.malfrador.notion.PollingEngine;
+import de.malfrador.notion.PooledNotionHttpClient;
+import de.malfrador.notion.SlimDatabaseQuery;
+import de.malfrador.notion.SyncWatermark;
+import de.malfrador.notion.WatermarkStore;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import notion.api.v1.NotionClient;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs several bot instances as separate processes against one {@link FakeNotionServer}, sharing a lease directory,
+ * and checks that every edit is notified exactly once while instances crash and join. A third into the run, one
+ * instance is killed without warning, and two thirds into it a new instance joins.
+ * Each instance runs the real polling and notification pipeline and prints what it would send to Discord.
+ * <p>
+ * Run with {@code ./gradlew clusterTest -PclusterTestArgs="--instances 3 --databases 12 --duration 120"}.
+ * All options:
+ * <pre>
+ * --instances N           instances started at the beginning (3)
+ * --databases N           monitored databases (12)
+ * --edits-per-second M    page edits per second over all databases (2)
+ * --duration S            how long to generate edits, in seconds (120)
+ * --poll-interval S       database-query-interval (5)
+ * --lease-duration S      lease-duration, how long it takes to notice a crashed instance (10)
+ * --renew-interval S      lease-renew-interval (3)
+ * --max-duplicates N      duplicate notifications above which the test fails (20). Edits an instance polled but had
+ *                         not notified when it was killed are notified again by the next owner
+ * --max-missed N          pages never notified above which the test fails (0)
+ * --minute-precision      timestamps with minute precision like Notion. A page edited again within the minute it was
+ *                         notified in looks unchanged then, so set --max-missed accordingly
+ * </pre>
+ * Exits with 1 if a threshold was exceeded, so it can gate a build.
+ */
+public class ClusterTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterTest.class);
+
+    private static final String NOTIFIED = "@@notified ";
+
+    private final Map<String, String> options;
+    // Page ID without dashes -> number of edits that have not been notified yet
+    private final Map<String, AtomicLong> pendingEdits = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> notificationsByInstance = new ConcurrentHashMap<>();
+    private final AtomicLong edits = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final List<Process> instances = new ArrayList<>();
+
+    private ClusterTest(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            String name = args[i].substring(2);
+            boolean flag = i + 1 >= args.length || args[i + 1].startsWith("--");
+            options.put(name, flag ? "true" : args[++i]);
+        }
+        if (options.containsKey("instance")) {
+            new Instance(options).run();
+            System.exit(0);
+        }
+        boolean passed = new ClusterTest(options).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        int instanceCount = intOption("instances", 3);
+        int databaseCount = intOption("databases", 12);
+        double editsPerSecond = doubleOption("edits-per-second", 2);
+        int duration = intOption("duration", 120);
+
+        // No rate limit, every instance has its own rate limiter and this is about handovers, not throughput
+        FakeNotionServer notion = new FakeNotionServer(0, 0, options.containsKey("minute-precision"), 100, this::edited);
+        notion.start();
+        List<String> databaseIds = new ArrayList<>();
+        for (int i = 0; i < databaseCount; i++) {
+            databaseIds.add(notion.createDatabase("Cluster test"));
+        }
+        Path leaseDirectory = Files.createTempDirectory("cluster-test-leases");
+        List<String> instanceArgs = List.of("--base-url", notion.baseUrl(), "--lease-directory", leaseDirectory.toString(),
+                "--databases", String.join(",", databaseIds),
+                "--poll-interval", String.valueOf(intOption("poll-interval", 5)),
+                "--lease-duration", String.valueOf(intOption("lease-duration", 10)),
+                "--renew-interval", String.valueOf(intOption("renew-interval", 3)));
+        for (int i = 0; i < instanceCount; i++) {
+            startInstance("instance-" + i, instanceArgs);
+        }
+        LOG.info("Cluster test: {} instances, {} databases, {} edits per second, {} seconds", instanceCount, databaseCount, editsPerSecond, duration);
+
+        ScheduledExecutorService load = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("cluster-test").daemon().factory());
+        long period = Math.max(1, (long) (1_000_000_000L / editsPerSecond));
+        var generator = load.scheduleAtFixedRate(() -> notion.randomEdit(databaseIds.get(ThreadLocalRandom.current().nextInt(databaseIds.size()))),
+                0, period, TimeUnit.NANOSECONDS);
+        TimeUnit.SECONDS.sleep(duration / 3);
+        LOG.info("Killing instance-0");
+        instances.getFirst().destroyForcibly();
+        TimeUnit.SECONDS.sleep(duration / 3);
+        LOG.info("Starting instance-{}", instanceCount);
+        startInstance("instance-" + instanceCount, instanceArgs);
+        TimeUnit.SECONDS.sleep(duration - 2L * (duration / 3));
+        generator.cancel(false);
+
+        long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(intOption("poll-interval", 5) * 3L + intOption("lease-duration", 10) + 30);
+        while (pendingCount() > 0 && System.nanoTime() < drainUntil) {
+            TimeUnit.SECONDS.sleep(1);
+        }
+        for (Process instance : instances) {
+            instance.destroy(); // Graceful, hands the leases over
+        }
+        for (Process instance : instances) {
+            instance.waitFor(30, TimeUnit.SECONDS);
+        }
+        load.shutdownNow();
+        notion.stop();
+        return report();
+    }
+
+    private void startInstance(String instanceId, List<String> instanceArgs) throws IOException {
+        List<String> command = new ArrayList<>(List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), ClusterTest.class.getName(), "--instance", instanceId));
+        command.addAll(instanceArgs);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        instances.add(process);
+        Thread.ofVirtual().name("cluster-test-" + instanceId).start(() -> readOutput(instanceId, process));
+    }
+
+    private void readOutput(String instanceId, Process process) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(NOTIFIED)) {
+                    notified(instanceId, line.substring(NOTIFIED.length()));
+                } else if (options.containsKey("verbose")) {
+                    System.out.println("[" + instanceId + "] " + line);
+                }
+            }
+        } catch (IOException e) {
+            // Process was killed
+        }
+    }
+
+    private void edited(String pageId) {
+        edits.incrementAndGet();
+        pendingEdits.computeIfAbsent(pageId.replace("-", ""), id -> new AtomicLong()).incrementAndGet();
+    }
+
+    /*
+     * Several edits of one page can be merged into a single notification, so only a notification without any
+     * unnotified edit counts as a duplicate
+     */
+    private void notified(String instanceId, String pageId) {
+        notifications.incrementAndGet();
+        notificationsByInstance.computeIfAbsent(instanceId, id -> new AtomicLong()).incrementAndGet();
+        AtomicLong pending = pendingEdits.get(pageId);
+        if (pending == null || pending.getAndSet(0) == 0) {
+            duplicates.incrementAndGet();
+        }
+    }
+
+    private long pendingCount() {
+        return pendingEdits.values().stream().filter(pending -> pending.get() > 0).count();
+    }
+
+    private boolean report() {
+        StringBuilder out = new StringBuilder("\n==== Cluster test results ====\n");
+        out.append(String.format("Edits:                     %d%n", edits.get()));
+        out.append(String.format("Notifications:             %d%n", notifications.get()));
+        out.append(String.format("Duplicate notifications:   %d%n", duplicates.get()));
+        out.append(String.format("Pages never notified:      %d%n", pendingCount()));
+        notificationsByInstance.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(entry ->
+                out.append(String.format("  %-24s %d%n", entry.getKey() + ":", entry.getValue().get())));
+        LOG.info(out.toString());
+        boolean passed = true;
+        if (duplicates.get() > intOption("max-duplicates", 20)) {
+            LOG.error("Failed: more than {} duplicate notifications", intOption("max-duplicates", 20));
+            passed = false;
+        }
+        if (pendingCount() > intOption("max-missed", 0)) {
+            LOG.error("Failed: more than {} pages were never notified", intOption("max-missed", 0));
+            passed = false;
+        }
+        return passed;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+
+    /**
+     * One bot instance, started as its own process by the test
+     */
+    private static class Instance {
+
+        private final Map<String, String> options;
+
+        private Instance(Map<String, String> options) {
+            this.options = options;
+        }
+
+        private void run() throws Exception {
+            String instanceId = options.get("instance");
+            int pollInterval = Integer.parseInt(options.get("poll-interval"));
+
+            NotionClient client = new NotionClient("cluster-test-token");
+            client.setLogger(new DummyLogger());
+            PooledNotionHttpClient http = new PooledNotionHttpClient(Duration.ofSeconds(10), Duration.ofSeconds(30), true);
+            client.setHttpClient(http);
+            client.setBaseUrl(options.get("base-url"));
+            NotionRateLimiter rateLimiter = new NotionRateLimiter(10, 10, 5);
+            DatabaseMetadataCache metadataCache = new DatabaseMetadataCache(
+                    id -> rateLimiter.execute(Priority.BACKGROUND, "databases.retrieve", () -> client.retrieveDatabase(id)),
+                    Duration.ofMinutes(5), 100);
+            Path watermarkFile = Files.createTempFile("cluster-test-watermarks", ".log");
+            WatermarkStore watermarks = new WatermarkStore(watermarkFile);
+            watermarks.load();
+            NotificationPipeline pipeline = new NotificationPipeline(client, rateLimiter, metadataCache, new PageSnapshotStore(10000),
+                    new PrintingSender(), change -> List.of("cluster-test"), watermarks::release, 4, 200);
+            EditCoalescer coalescer = new EditCoalescer(Duration.ZERO, Duration.ofSeconds(600), pipeline::submit, watermarks::release);
+            DatabasePoller poller = new DatabasePoller(client, rateLimiter,
+                    new SlimDatabaseQuery(http, client.getBaseUrl(), "cluster-test-token"), watermarks,
+                    SyncWatermark.at(Instant.now().minusSeconds(60)), true, 5, change -> {
+                        watermarks.hold(change);
+                        coalescer.offer(change);
+                    });
+
+            PartitionCoordinator[] coordinator = new PartitionCoordinator[1];
+            PollingEngine polling = new PollingEngine(4, Duration.ofSeconds(pollInterval), Duration.ofSeconds(pollInterval),
+                    Duration.ofSeconds(pollInterval), databaseId -> coordinator[0].owns(databaseId) ? poller.poll(databaseId) : 0);
+            coordinator[0] = new PartitionCoordinator(new LeaseStore(Path.of(options.get("lease-directory"))), instanceId,
+                    Duration.ofSeconds(Integer.parseInt(options.get("lease-duration"))),
+                    Duration.ofSeconds(Integer.parseInt(options.get("renew-interval"))), 64,
+                    new PartitionCoordinator.OwnershipListener() {
+                        @Override
+                        public void acquired(String key, @Nullable String state) {
+                            if (state != null) {
+                                watermarks.put(key, SyncWatermark.decode(state));
+                            }
+                            polling.add(key);
+                        }
+
+                        @Override
+                        public CompletableFuture<?> released(String key) {
+                            return polling.remove(key);
+                        }
+                    },
+                    key -> {
+                        SyncWatermark watermark = watermarks.stored(key);
+                        return watermark == null ? null : watermark.encode();
+                    });
+
+            CountDownLatch stopped = new CountDownLatch(1);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                polling.shutdown();
+                coalescer.flush();
+                pipeline.shutdown(Duration.ofSeconds(10));
+                coordinator[0].shutdown(); // Like the bot, after delivering what we polled
+                watermarks.close();
+                stopped.countDown();
+            }));
+            pipeline.start();
+            polling.start(List.of());
+            coordinator[0].start(Arrays.asList(options.get("databases").split(",")));
+            stopped.await();
+        }
+    }
+
+    /**
+     * Stands in for Discord, telling the test process which page it would have notified about
+     */
+    private static class PrintingSender extends NotificationSender {
+
+        private PrintingSender() {
+            super(null, 500);
+        }
+
+        @Override
+        public boolean submit(String channelId, MessageEmbed embed, Instant sourceTime, Runnable delivered) {
+            String url = embed.getUrl();
+            if (url != null) {
+                synchronized (System.out) {
+                    System.out.println(NOTIFIED + url.substring(url.lastIndexOf('/') + 1));
+                    System.out.flush();
+                }
+            }
+            if (delivered != null) {
+                delivered.run();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,671 @@
+package de.malfrador.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.dv8tion.jda.api.utils.data.DataArray;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Imitates the parts of the Notion API the bot uses, with databases and pages kept in memory:
+ * <ul>
+ *     <li>{@code GET /v1/databases/{id}}</li>
+ *     <li>{@code POST /v1/databases/{id}/query}, with the last_edited_time filter, sorts and cursors</li>
+ *     <li>{@code GET /v1/pages/{id}}</li>
+ *     <li>{@code GET /v1/blocks/{id}/children}</li>
+ *     <li>{@code POST /v1/pages}, with files from file uploads</li>
+ *     <li>{@code POST /v1/file_uploads}, {@code /v1/file_uploads/{id}/send} and {@code /v1/file_uploads/{id}/complete}</li>
+ * </ul>
+ * Like Notion, it rounds last_edited_time down to the minute (unless disabled), and answers with 429 when requests
+ * come in faster than its rate limit allows, or randomly with the given probability.
+ * <p>
+ * It also stands in for Discord's CDN, serving files of any size with range requests under {@link #fileUrl}. The
+ * content follows a pattern, so uploads are checked byte by byte as they stream in, without keeping them.
+ */
+public class FakeNotionServer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FakeNotionServer.class);
+
+    private final Map<String, FakeDatabase> databases = new ConcurrentHashMap<>();
+    private final Map<String, FakeDatabase> pageOwners = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+    private final Map<String, FakeUpload> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private final AtomicLong corruptUploads = new AtomicLong();
+    private final AtomicLong attachedFiles = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final double rateLimitProbability;
+    private final double requestsPerSecond;
+    private final boolean minutePrecision;
+    private final int maxPagesPerDatabase;
+    private final Consumer<String> onEdit;
+    private HttpServer server;
+
+    // Token bucket of the simulated Notion rate limit
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param requestsPerSecond    rate limit like Notion's (3 per second on average), 0 for no limit
+     * @param rateLimitProbability probability of answering any request with 429 regardless of the rate
+     * @param onEdit               called with the ID of every page that was created or edited
+     */
+    public FakeNotionServer(double requestsPerSecond, double rateLimitProbability, boolean minutePrecision,
+                            int maxPagesPerDatabase, Consumer<String> onEdit) {
+        this.requestsPerSecond = requestsPerSecond;
+        this.rateLimitProbability = rateLimitProbability;
+        this.minutePrecision = minutePrecision;
+        this.maxPagesPerDatabase = Math.max(1, maxPagesPerDatabase);
+        this.onEdit = onEdit;
+        this.tokens = Math.max(1, requestsPerSecond);
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // Platform threads: the server writes responses while holding a lock, so a large download would pin a virtual
+        // thread, and with few CPUs stall the bot's threads that are supposed to read it
+        server.setExecutor(Executors.newCachedThreadPool(Thread.ofPlatform().name("fake-notion-", 0).daemon().factory()));
+        server.createContext("/v1/", this::handle);
+        server.createContext("/cdn/", this::download);
+        server.start();
+        LOG.info("Fake Notion API listening on {}", baseUrl());
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * The base URL to point the {@code NotionClient} at
+     */
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/v1";
+    }
+
+    public String createDatabase(String title) {
+        String id = UUID.randomUUID().toString();
+        databases.put(id, new FakeDatabase(id, title));
+        return id;
+    }
+
+    /**
+     * Edit a random page of the database, or create a new one if the database is not full yet
+     */
+    public void randomEdit(String databaseId) {
+        FakeDatabase database = databases.get(databaseId);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        synchronized (database) {
+            FakePage page;
+            if (database.pages.size() < maxPagesPerDatabase && (database.pages.isEmpty() || random.nextInt(10) == 0)) {
+                page = new FakePage(UUID.randomUUID().toString(), now());
+                database.pages.add(page);
+                pageOwners.put(page.id, database);
+            } else {
+                page = database.pages.get(random.nextInt(database.pages.size()));
+            }
+            page.lastEdited = now();
+            page.revision++;
+            onEdit.accept(page.id);
+        }
+    }
+
+    /**
+     * URL of a file of the given size on the fake CDN
+     */
+    public String fileUrl(long size, String filename) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/cdn/" + size + "/" + filename;
+    }
+
+    /**
+     * Content of the fake CDN's files at the offset
+     */
+    public static byte pattern(long offset) {
+        return (byte) (offset * 31 + (offset >>> 12));
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes.get();
+    }
+
+    /**
+     * Uploaded parts whose content did not match what was downloaded
+     */
+    public long getCorruptUploads() {
+        return corruptUploads.get();
+    }
+
+    /**
+     * Files attached to created pages
+     */
+    public long getAttachedFiles() {
+        return attachedFiles.get();
+    }
+
+    public long getRequests(String endpoint) {
+        AtomicLong count = requests.get(endpoint);
+        return count == null ? 0 : count.get();
+    }
+
+    public long getTotalRequests() {
+        return requests.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    private Instant now() {
+        Instant now = Instant.now();
+        return minutePrecision ? now.truncatedTo(ChronoUnit.MINUTES) : now.truncatedTo(ChronoUnit.MILLIS);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().substring("/v1/".length()).split("/");
+            String endpoint = endpoint(method, path);
+            requests.computeIfAbsent(endpoint, key -> new AtomicLong()).incrementAndGet();
+            if (!acquire()) {
+                rateLimited.incrementAndGet();
+                exchange.getRequestBody().transferTo(OutputStream.nullOutputStream()); // Let the client finish sending
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 429, error(429, "rate_limited", "You have been rate limited. Please try again in a few minutes."));
+                return;
+            }
+            if (endpoint.equals("file_uploads.send")) {
+                sendFileUpload(exchange, path[1]); // Streamed, like the real one we don't want whole files in memory
+                return;
+            }
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            switch (endpoint) {
+                case "databases.retrieve" -> withDatabase(exchange, path[1], database -> respond(exchange, 200, database.toJson()));
+                case "databases.query" -> withDatabase(exchange, path[1], database -> respond(exchange, 200,
+                        query(database, DataObject.fromJson(body), filterProperties(exchange.getRequestURI().getRawQuery()))));
+                case "pages.retrieve" -> retrievePage(exchange, path[1]);
+                case "blocks.children" -> respond(exchange, 200, blockChildren(path[1]));
+                case "pages.create" -> createPage(exchange, DataObject.fromJson(body));
+                case "file_uploads.create" -> createFileUpload(exchange, DataObject.fromJson(body));
+                case "file_uploads.complete" -> completeFileUpload(exchange, path[1]);
+                default -> respond(exchange, 404, error(404, "object_not_found", "Unknown endpoint " + method + " " + exchange.getRequestURI()));
+            }
+        } catch (Exception e) {
+            LOG.error("Fake Notion API failed to handle {}", exchange.getRequestURI(), e);
+        }
+    }
+
+    private static String endpoint(String method, String[] path) {
+        if (path[0].equals("databases") && path.length == 2 && method.equals("GET")) {
+            return "databases.retrieve";
+        }
+        if (path[0].equals("databases") && path.length == 3 && path[2].equals("query") && method.equals("POST")) {
+            return "databases.query";
+        }
+        if (path[0].equals("blocks") && path.length == 3 && path[2].equals("children") && method.equals("GET")) {
+            return "blocks.children";
+        }
+        if (path[0].equals("pages") && path.length == 2 && method.equals("GET")) {
+            return "pages.retrieve";
+        }
+        if (path[0].equals("pages") && path.length == 1 && method.equals("POST")) {
+            return "pages.create";
+        }
+        if (path[0].equals("file_uploads") && method.equals("POST")) {
+            if (path.length == 1) {
+                return "file_uploads.create";
+            }
+            if (path.length == 3 && (path[2].equals("send") || path[2].equals("complete"))) {
+                return "file_uploads." + path[2];
+            }
+        }
+        return "unknown";
+    }
+
+    private synchronized boolean acquire() {
+        if (rateLimitProbability > 0 && ThreadLocalRandom.current().nextDouble() < rateLimitProbability) {
+            return false;
+        }
+        if (requestsPerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(Math.max(1, requestsPerSecond), tokens + (now - lastRefill) / 1e9 * requestsPerSecond);
+        lastRefill = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    private void withDatabase(HttpExchange exchange, String id, IoConsumer<FakeDatabase> handler) throws IOException {
+        FakeDatabase database = databases.get(id);
+        if (database == null) {
+            respond(exchange, 404, error(404, "object_not_found", "Could not find database with ID: " + id));
+            return;
+        }
+        handler.accept(database);
+    }
+
+    /*
+     * Property IDs from filter_properties, or null to return all properties
+     */
+    private static Set<String> filterProperties(String query) {
+        if (query == null) {
+            return null;
+        }
+        Set<String> ids = new HashSet<>();
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0 && URLDecoder.decode(parameter.substring(0, separator), StandardCharsets.UTF_8).startsWith("filter_properties")) {
+                ids.add(URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return ids.isEmpty() ? null : ids;
+    }
+
+    private String query(FakeDatabase database, DataObject request, Set<String> propertyIds) {
+        Instant onOrAfter = null;
+        DataObject filter = request.optObject("filter").orElse(null);
+        if (filter != null && filter.hasKey("last_edited_time")) {
+            onOrAfter = Instant.parse(filter.getObject("last_edited_time").getString("on_or_after"));
+        }
+        boolean ascending = true;
+        DataArray sorts = request.optArray("sorts").orElse(null);
+        if (sorts != null && !sorts.isEmpty()) {
+            ascending = sorts.getObject(0).getString("direction", "descending").equals("ascending");
+        }
+        int pageSize = Math.min(100, request.getInt("page_size", 100));
+        int offset = Integer.parseInt(request.getString("start_cursor", "0"));
+
+        List<DataObject> matching = new ArrayList<>();
+        synchronized (database) {
+            List<FakePage> pages = new ArrayList<>(database.pages);
+            Comparator<FakePage> order = Comparator.comparing(page -> page.lastEdited);
+            pages.sort(ascending ? order : order.reversed());
+            for (FakePage page : pages) {
+                if (onOrAfter == null || !page.lastEdited.isBefore(onOrAfter)) {
+                    matching.add(page.toJson(database.id, propertyIds));
+                }
+            }
+        }
+        int end = Math.min(matching.size(), offset + pageSize);
+        DataArray results = DataArray.empty();
+        for (int i = offset; i < end; i++) {
+            results.add(matching.get(i));
+        }
+        boolean hasMore = end < matching.size();
+        return DataObject.empty()
+                .put("object", "list")
+                .put("results", results)
+                .put("has_more", hasMore)
+                .put("next_cursor", hasMore ? String.valueOf(end) : null)
+                .put("type", "page_or_database")
+                .put("page_or_database", DataObject.empty())
+                .toString();
+    }
+
+    private static String blockChildren(String pageId) {
+        DataObject text = DataObject.empty()
+                .put("type", "text")
+                .put("text", DataObject.empty().put("content", "Steps to reproduce the problem on page " + pageId))
+                .put("plain_text", "Steps to reproduce the problem on page " + pageId);
+        DataObject block = DataObject.empty()
+                .put("object", "block")
+                .put("id", UUID.nameUUIDFromBytes(pageId.getBytes(StandardCharsets.UTF_8)).toString())
+                .put("type", "paragraph")
+                .put("has_children", false)
+                .put("paragraph", DataObject.empty().put("rich_text", DataArray.empty().add(text)));
+        return DataObject.empty()
+                .put("object", "list")
+                .put("results", DataArray.empty().add(block))
+                .put("has_more", false)
+                .put("next_cursor", null)
+                .put("type", "block")
+                .put("block", DataObject.empty())
+                .toString();
+    }
+
+    private void retrievePage(HttpExchange exchange, String pageId) throws IOException {
+        FakeDatabase database = pageOwners.get(pageId);
+        if (database == null) {
+            respond(exchange, 404, error(404, "object_not_found", "Could not find page with ID: " + pageId));
+            return;
+        }
+        String json;
+        synchronized (database) {
+            json = database.pages.stream()
+                    .filter(page -> page.id.equals(pageId))
+                    .findFirst()
+                    .map(page -> page.toJson(database.id, null).toString())
+                    .orElseThrow();
+        }
+        respond(exchange, 200, json);
+    }
+
+    private void createPage(HttpExchange exchange, DataObject request) throws IOException {
+        String databaseId = request.getObject("parent").getString("database_id", "");
+        FakeDatabase database = databases.get(databaseId);
+        if (database == null) {
+            respond(exchange, 404, error(404, "object_not_found", "Could not find database with ID: " + databaseId));
+            return;
+        }
+        int files = 0;
+        DataObject properties = request.optObject("properties").orElse(DataObject.empty());
+        for (String name : properties.keys()) {
+            DataArray attached = properties.getObject(name).optArray("files").orElse(DataArray.empty());
+            for (int i = 0; i < attached.length(); i++) {
+                String uploadId = attached.getObject(i).getObject("file_upload").getString("id");
+                FakeUpload upload = uploads.get(uploadId);
+                if (upload == null || !upload.status.equals("uploaded")) {
+                    respond(exchange, 400, error(400, "validation_error", "File upload " + uploadId + " is not uploaded"));
+                    return;
+                }
+                files++;
+            }
+        }
+        attachedFiles.addAndGet(files);
+        FakePage page = new FakePage(UUID.randomUUID().toString(), now());
+        synchronized (database) {
+            database.pages.add(page);
+            pageOwners.put(page.id, database);
+            onEdit.accept(page.id);
+        }
+        respond(exchange, 200, page.toJson(databaseId, null).toString());
+    }
+
+    private void createFileUpload(HttpExchange exchange, DataObject request) throws IOException {
+        boolean multiPart = request.getString("mode", "single_part").equals("multi_part");
+        FakeUpload upload = new FakeUpload(UUID.randomUUID().toString(), request.getString("filename"),
+                multiPart ? request.getInt("number_of_parts") : 1, multiPart);
+        uploads.put(upload.id, upload);
+        respond(exchange, 200, upload.toJson());
+    }
+
+    /*
+     * Read the multipart/form-data body up to the file, then check the file against the pattern while it streams in.
+     * Parts arrive one after another, so each continues where the previous one stopped
+     */
+    private void sendFileUpload(HttpExchange exchange, String uploadId) throws IOException {
+        FakeUpload upload = uploads.get(uploadId);
+        if (upload == null) {
+            exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+            respond(exchange, 404, error(404, "object_not_found", "Could not find file upload with ID: " + uploadId));
+            return;
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+        long contentLength = Long.parseLong(exchange.getRequestHeaders().getFirst("Content-Length"));
+        InputStream in = exchange.getRequestBody();
+        long consumed = 0;
+        while (true) {
+            consumed += readLine(in).length() + 2; // Boundary
+            String disposition = "";
+            String header;
+            while (!(header = readLine(in)).isEmpty()) {
+                consumed += header.getBytes(StandardCharsets.UTF_8).length + 2;
+                if (header.toLowerCase().startsWith("content-disposition")) {
+                    disposition = header;
+                }
+            }
+            consumed += 2;
+            if (disposition.contains("name=\"file\"")) {
+                break;
+            }
+            consumed += readLine(in).length() + 2; // Value of part_number
+        }
+        long length = contentLength - consumed - ("\r\n--" + boundary + "--\r\n").length();
+        boolean corrupt = false;
+        synchronized (upload) {
+            long offset = upload.received;
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    corrupt = true;
+                    break;
+                }
+                for (int i = 0; i < read && !corrupt; i++) {
+                    corrupt = buffer[i] != pattern(offset + i);
+                }
+                offset += read;
+                remaining -= read;
+            }
+            in.transferTo(OutputStream.nullOutputStream());
+            if (corrupt) {
+                corruptUploads.incrementAndGet();
+                respond(exchange, 400, error(400, "validation_error", "Part of " + upload.filename + " does not match the source"));
+                return;
+            }
+            upload.received += length;
+            upload.partsReceived++;
+            if (!upload.multiPart) {
+                upload.status = "uploaded";
+            }
+        }
+        uploadedBytes.addAndGet(length);
+        respond(exchange, 200, upload.toJson());
+    }
+
+    private void completeFileUpload(HttpExchange exchange, String uploadId) throws IOException {
+        FakeUpload upload = uploads.get(uploadId);
+        if (upload == null) {
+            respond(exchange, 404, error(404, "object_not_found", "Could not find file upload with ID: " + uploadId));
+            return;
+        }
+        synchronized (upload) {
+            if (upload.partsReceived != upload.parts) {
+                respond(exchange, 400, error(400, "validation_error", "Expected " + upload.parts + " parts, got " + upload.partsReceived));
+                return;
+            }
+            upload.status = "uploaded";
+        }
+        respond(exchange, 200, upload.toJson());
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return new String(line.toString().getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Fake CDN: GET /cdn/{size}/{name}, with range requests
+     */
+    private void download(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String[] path = exchange.getRequestURI().getPath().substring("/cdn/".length()).split("/");
+            long size = Long.parseLong(path[0]);
+            long start = 0;
+            long end = size - 1;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                start = Long.parseLong(bounds[0]);
+                end = bounds.length > 1 && !bounds[1].isEmpty() ? Math.min(end, Long.parseLong(bounds[1])) : end;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(range != null ? 206 : 200, end - start + 1);
+            byte[] buffer = new byte[64 * 1024];
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (long offset = start; offset <= end; ) {
+                    int length = (int) Math.min(buffer.length, end - offset + 1);
+                    for (int i = 0; i < length; i++) {
+                        buffer[i] = pattern(offset + i);
+                    }
+                    out.write(buffer, 0, length);
+                    offset += length;
+                    downloadedBytes.addAndGet(length);
+                }
+            }
+        } catch (Exception e) {
+            LOG.error("Fake CDN failed to handle {}", exchange.getRequestURI(), e);
+        }
+    }
+
+    private static String error(int status, String code, String message) {
+        return DataObject.empty()
+                .put("object", "error")
+                .put("status", status)
+                .put("code", code)
+                .put("message", message)
+                .toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private interface IoConsumer<T> {
+        void accept(T value) throws IOException;
+    }
+
+    private static final class FakeDatabase {
+        private static final AtomicInteger COUNTER = new AtomicInteger();
+
+        private final String id;
+        private final String title;
+        private final List<FakePage> pages = new ArrayList<>();
+
+        private FakeDatabase(String id, String title) {
+            this.id = id;
+            this.title = title + " " + COUNTER.incrementAndGet();
+        }
+
+        private String toJson() {
+            DataObject titleText = DataObject.empty()
+                    .put("type", "text")
+                    .put("text", DataObject.empty().put("content", title))
+                    .put("plain_text", title);
+            DataObject properties = DataObject.empty()
+                    .put("Name", DataObject.empty().put("id", "title").put("name", "Name").put("type", "title").put("title", DataObject.empty()))
+                    .put("Description", DataObject.empty().put("id", "desc").put("name", "Description").put("type", "rich_text").put("rich_text", DataObject.empty()))
+                    .put("Severity", DataObject.empty().put("id", "sevr").put("name", "Severity").put("type", "select")
+                            .put("select", DataObject.empty().put("options", DataArray.empty()
+                                    .add(DataObject.empty().put("id", "s1").put("name", "Low").put("color", "green"))
+                                    .add(DataObject.empty().put("id", "s2").put("name", "High").put("color", "red")))));
+            return DataObject.empty()
+                    .put("object", "database")
+                    .put("id", id)
+                    .put("created_time", "2025-01-01T00:00:00.000Z")
+                    .put("last_edited_time", "2025-01-01T00:00:00.000Z")
+                    .put("title", DataArray.empty().add(titleText))
+                    .put("properties", properties)
+                    .toString();
+        }
+    }
+
+    private static final class FakeUpload {
+        private final String id;
+        private final String filename;
+        private final int parts;
+        private final boolean multiPart;
+        private long received;
+        private int partsReceived;
+        private String status = "pending";
+
+        private FakeUpload(String id, String filename, int parts, boolean multiPart) {
+            this.id = id;
+            this.filename = filename;
+            this.parts = parts;
+            this.multiPart = multiPart;
+        }
+
+        private String toJson() {
+            return DataObject.empty()
+                    .put("object", "file_upload")
+                    .put("id", id)
+                    .put("filename", filename)
+                    .put("status", status)
+                    .put("upload_url", "/v1/file_uploads/" + id + "/send")
+                    .toString();
+        }
+    }
+
+    private static final class FakePage {
+        private final String id;
+        private final Instant created;
+        private Instant lastEdited;
+        private int revision;
+
+        private FakePage(String id, Instant created) {
+            this.id = id;
+            this.created = created;
+            this.lastEdited = created;
+        }
+
+        private DataObject toJson(String databaseId, Set<String> propertyIds) {
+            String title = "Page " + id.substring(0, 8);
+            String description = "Revision " + revision;
+            DataObject properties = DataObject.empty()
+                    .put("Name", DataObject.empty().put("id", "title").put("type", "title")
+                            .put("title", DataArray.empty().add(richText(title))))
+                    .put("Description", DataObject.empty().put("id", "desc").put("type", "rich_text")
+                            .put("rich_text", DataArray.empty().add(richText(description))))
+                    .put("Severity", DataObject.empty().put("id", "sevr").put("type", "select")
+                            .put("select", DataObject.empty().put("id", "s1").put("name", "Low").put("color", "green")));
+            if (propertyIds != null) {
+                for (String name : List.copyOf(properties.keys())) {
+                    if (!propertyIds.contains(properties.getObject(name).getString("id"))) {
+                        properties.remove(name);
+                    }
+                }
+            }
+            return DataObject.empty()
+                    .put("object", "page")
+                    .put("id", id)
+                    .put("created_time", created.toString())
+                    .put("last_edited_time", lastEdited.toString())
+                    .put("archived", false)
+                    .put("url", "https://www.notion.so/" + id.replace("-", ""))
+                    .put("parent", DataObject.empty().put("type", "database_id").put("database_id", databaseId))
+                    .put("properties", properties);
+        }
+
+        private static DataObject richText(String content) {
+            return DataObject.empty()
+                    .put("type", "text")
+                    .put("text", DataObject.empty().put("content", content))
+                    .put("plain_text", content);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package de.malfrador.loadtest;
+
+import de.malfrador.discord.NotificationSender;
+import de.malfrador.metrics.Histogram;
+import de.malfrador.metrics.MetricsRegistry;
+import de.malfrador.notion.DatabaseMetadataCache;
+import de.malfrador.notion.DatabasePoller;
+import de.malfrador.notion.DummyLogger;
+import de.malfrador.notion.EditCoalescer;
+import de.malfrador.notion.NotificationPipeline;
+import de.malfrador.notion.NotionRateLimiter;
+import de.malfrador.notion.NotionRateLimiter.Priority;
+import de.malfrador.notion.PageSnapshotStore;
+import de.malfrador.notion.PooledNotionHttpClient;
+import de.malfrador.notion.PollingEngine;
+import de.malfrador.notion.SlimDatabaseQuery;
+import de.malfrador.notion.SyncWatermark;
+import de.malfrador.notion.WatermarkStore;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import notion.api.v1.NotionClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the real polling and notification pipeline against {@link FakeNotionServer}, with N databases receiving
+ * M edits per second in total, and reports the end-to-end notification latency, Notion API calls per detected change
+ * and heap use. Discord is replaced by a sender that only records what would have been sent.
+ * <p>
+ * Run with {@code ./gradlew loadTest -PloadTestArgs="--databases 20 --edits-per-second 5 --duration 300"}.
+ * All options:
+ * <pre>
+ * --databases N               monitored databases (10)
+ * --edits-per-second M        page edits per second over all databases (2)
+ * --duration S                how long to generate edits, in seconds (120)
+ * --poll-interval S           database-query-interval (10)
+ * --min-poll-interval S       min-query-interval, set both to enable adaptive polling (poll-interval)
+ * --max-poll-interval S       max-query-interval (poll-interval)
+ * --quiet-window S            notification-quiet-window (0)
+ * --max-concurrent-polls N    max-concurrent-polls (4)
+ * --requests-per-second R     the bot's notion-requests-per-second (3)
+ * --server-requests-per-second R   rate limit of the fake Notion, 0 for none (3)
+ * --rate-limit-probability P  probability of a random 429 on any request (0)
+ * --pages-per-database N      pages per database, edits go to random pages (200)
+ * --full-query                poll with the SDK's query instead of the slim one
+ * --http1                     use HTTP/1.1 instead of HTTP/2 for Notion requests
+ * --second-precision          don't round last_edited_time down to the minute like Notion does
+ * </pre>
+ */
+public class LoadTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadTest.class);
+
+    private static final String CHANNEL_ID = "load-test";
+
+    private final Map<String, String> options;
+    // Page ID without dashes -> time of the first edit that has not been notified yet
+    private final Map<String, Long> pendingEdits = new ConcurrentHashMap<>();
+    private final Histogram latency = new MetricsRegistry().histogram("latency", "End-to-end notification latency",
+            new double[]{0.5, 1, 2, 5, 10, 15, 20, 30, 45, 60, 90, 120, 180, 300, 600});
+    private final AtomicLong edits = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private volatile long maxHeapUsed;
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            String name = args[i].substring(2);
+            boolean flag = i + 1 >= args.length || args[i + 1].startsWith("--");
+            options.put(name, flag ? "true" : args[++i]);
+        }
+        new LoadTest(options).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        int databaseCount = intOption("databases", 10);
+        double editsPerSecond = doubleOption("edits-per-second", 2);
+        int duration = intOption("duration", 120);
+        int pollInterval = intOption("poll-interval", 10);
+        int quietWindow = intOption("quiet-window", 0);
+
+        FakeNotionServer notion = new FakeNotionServer(doubleOption("server-requests-per-second", 3),
+                doubleOption("rate-limit-probability", 0), !options.containsKey("second-precision"),
+                intOption("pages-per-database", 200), this::edited);
+        notion.start();
+
+        NotionClient client = new NotionClient("load-test-token");
+        client.setLogger(new DummyLogger());
+        PooledNotionHttpClient http = new PooledNotionHttpClient(Duration.ofSeconds(10), Duration.ofSeconds(30), !options.containsKey("http1"));
+        client.setHttpClient(http);
+        client.setBaseUrl(notion.baseUrl());
+        NotionRateLimiter rateLimiter = new NotionRateLimiter(doubleOption("requests-per-second", 3), 3, 5);
+        DatabaseMetadataCache metadataCache = new DatabaseMetadataCache(
+                id -> rateLimiter.execute(Priority.BACKGROUND, "databases.retrieve", () -> client.retrieveDatabase(id)),
+                Duration.ofMinutes(5), 100);
+        PageSnapshotStore snapshots = new PageSnapshotStore(50000);
+        NotificationPipeline pipeline = new NotificationPipeline(client, rateLimiter, metadataCache, snapshots,
+                new RecordingSender(), change -> List.of(CHANNEL_ID), 4, 200);
+        EditCoalescer coalescer = new EditCoalescer(Duration.ofSeconds(quietWindow), Duration.ofSeconds(Math.max(quietWindow, 600)), pipeline::submit);
+        Path watermarkFile = Files.createTempFile("load-test-watermarks", ".log");
+        WatermarkStore watermarks = new WatermarkStore(watermarkFile);
+        watermarks.load();
+        SlimDatabaseQuery slimQuery = options.containsKey("full-query") ? null : new SlimDatabaseQuery(http, client.getBaseUrl(), "load-test-token");
+        DatabasePoller poller = new DatabasePoller(client, rateLimiter, slimQuery, watermarks, SyncWatermark.at(Instant.now().minusSeconds(60)),
+                true, 5, coalescer::offer);
+        int minPollInterval = intOption("min-poll-interval", pollInterval);
+        int maxPollInterval = intOption("max-poll-interval", pollInterval);
+        PollingEngine polling = new PollingEngine(intOption("max-concurrent-polls", 4), Duration.ofSeconds(pollInterval),
+                Duration.ofSeconds(minPollInterval), Duration.ofSeconds(maxPollInterval), poller::poll);
+
+        List<String> databaseIds = new ArrayList<>();
+        for (int i = 0; i < databaseCount; i++) {
+            databaseIds.add(notion.createDatabase("Load test"));
+        }
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ScheduledExecutorService load = Executors.newScheduledThreadPool(2, Thread.ofPlatform().name("load-test-", 0).daemon().factory());
+        load.scheduleAtFixedRate(() -> maxHeapUsed = Math.max(maxHeapUsed, memory.getHeapMemoryUsage().getUsed()), 0, 100, TimeUnit.MILLISECONDS);
+
+        LOG.info("Load test: {} databases, {} edits per second, {} seconds, polling every {} seconds", databaseCount, editsPerSecond, duration, pollInterval);
+        pipeline.start();
+        polling.start(databaseIds);
+        long period = Math.max(1, (long) (1_000_000_000L / editsPerSecond));
+        var generator = load.scheduleAtFixedRate(() -> notion.randomEdit(databaseIds.get(ThreadLocalRandom.current().nextInt(databaseIds.size()))),
+                0, period, TimeUnit.NANOSECONDS);
+        TimeUnit.SECONDS.sleep(duration);
+        generator.cancel(false);
+
+        // Give the last edits time to be picked up
+        long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.max(pollInterval, maxPollInterval) * 2L + quietWindow + 30);
+        while (!pendingEdits.isEmpty() && System.nanoTime() < drainUntil) {
+            TimeUnit.SECONDS.sleep(1);
+        }
+        polling.shutdown();
+        coalescer.flush();
+        pipeline.shutdown(Duration.ofSeconds(30));
+        load.shutdownNow();
+
+        System.gc();
+        long heapAfterGc = memory.getHeapMemoryUsage().getUsed();
+        long detected = MetricsRegistry.DEFAULT.counter("notion_changes_detected_total", "Page changes detected by polling").get();
+        report(notion, detected, heapAfterGc);
+
+        notion.stop();
+        watermarks.close();
+        Files.deleteIfExists(watermarkFile);
+    }
+
+    private void report(FakeNotionServer notion, long detected, long heapAfterGc) {
+        StringBuilder out = new StringBuilder("\n==== Load test results ====\n");
+        out.append(String.format("Edits:                     %d%n", edits.get()));
+        out.append(String.format("Detected changes:          %d%n", detected));
+        out.append(String.format("Notifications:             %d%n", notifications.get()));
+        out.append(String.format("Edits never notified:      %d%n", pendingEdits.size()));
+        out.append(String.format("Latency p50/p90/p99/max:   %s / %s / %s / %s s%n",
+                quantile(0.5), quantile(0.9), quantile(0.99), quantile(1.0)));
+        out.append(String.format("Latency mean:              %.2f s%n", latency.getCount() == 0 ? 0 : latency.getSum() / latency.getCount()));
+        out.append(String.format("Notion requests:           %d (query %d, database %d, blocks %d, page %d, create %d)%n",
+                notion.getTotalRequests(), notion.getRequests("databases.query"), notion.getRequests("databases.retrieve"),
+                notion.getRequests("blocks.children"), notion.getRequests("pages.retrieve"), notion.getRequests("pages.create")));
+        out.append(String.format("Requests per change:       %.2f%n", detected == 0 ? 0 : (double) notion.getTotalRequests() / detected));
+        out.append(String.format("429 responses:             %d%n", notion.getRateLimited()));
+        out.append(String.format("Max heap used:             %d MB%n", maxHeapUsed / (1024 * 1024)));
+        out.append(String.format("Heap after GC:             %d MB%n", heapAfterGc / (1024 * 1024)));
+        LOG.info(out.toString());
+    }
+
+    /*
+     * Upper bound of the histogram bucket that contains the quantile
+     */
+    private String quantile(double quantile) {
+        long[] counts = latency.cumulativeCounts();
+        double[] bounds = latency.bounds();
+        long total = counts[counts.length - 1];
+        if (total == 0) {
+            return "-";
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        for (int i = 0; i < bounds.length; i++) {
+            if (counts[i] >= rank) {
+                return "<=" + bounds[i];
+            }
+        }
+        return ">" + bounds[bounds.length - 1];
+    }
+
+    private void edited(String pageId) {
+        edits.incrementAndGet();
+        pendingEdits.putIfAbsent(pageId.replace("-", ""), System.nanoTime());
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+
+    /**
+     * Stands in for Discord, recording the latency of each notification instead of sending it
+     */
+    private class RecordingSender extends NotificationSender {
+
+        private RecordingSender() {
+            super(null, 500);
+        }
+
+        @Override
+        public boolean submit(String channelId, MessageEmbed embed, Instant sourceTime, Runnable delivered) {
+            notifications.incrementAndGet();
+            String url = embed.getUrl();
+            Long editedAt = url == null ? null : pendingEdits.remove(url.substring(url.lastIndexOf('/') + 1));
+            if (editedAt != null) {
+                latency.observeSince(editedAt);
+            }
+            if (delivered != null) {
+                delivered.run();
+            }
+            return true;
+        }
+    }
+}
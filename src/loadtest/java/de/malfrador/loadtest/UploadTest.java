@@ -0,0 +1,147 @@
+package de.malfrador.loadtest;
+
+import de.malfrador.notion.NotionFileUploader;
+import de.malfrador.notion.NotionRateLimiter;
+import de.malfrador.notion.PooledNotionHttpClient;
+import de.malfrador.reporting.UploadedFile;
+import notion.api.v1.model.pages.PageParent;
+import notion.api.v1.request.pages.CreatePageRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams attachments from the fake CDN of {@link FakeNotionServer} into its file uploads and attaches them to a
+ * page, like a bug report with screenshots and logs. The fake checks every byte. Meant to run with a heap smaller
+ * than the files, which only works if nothing buffers a whole file.
+ * <p>
+ * Run with {@code ./gradlew uploadTest -PuploadTestArgs="--files 8 --size-mb 100"}.
+ * All options:
+ * <pre>
+ * --files N                      files to upload (6)
+ * --size-mb S                    size of each file, in MB (48)
+ * --concurrency N                max-concurrent-uploads (2)
+ * --server-requests-per-second R rate limit of the fake Notion, 0 for none (3)
+ * --rate-limit-probability P     probability of a random 429 on any request (0)
+ * --http1                        use HTTP/1.1 instead of HTTP/2 for Notion requests
+ * </pre>
+ */
+public class UploadTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UploadTest.class);
+
+    private final Map<String, String> options;
+    private volatile long maxHeapUsed;
+
+    private UploadTest(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            String name = args[i].substring(2);
+            boolean flag = i + 1 >= args.length || args[i + 1].startsWith("--");
+            options.put(name, flag ? "true" : args[++i]);
+        }
+        boolean passed = new UploadTest(options).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        int fileCount = intOption("files", 6);
+        long size = intOption("size-mb", 48) * 1024L * 1024L;
+        FakeNotionServer notion = new FakeNotionServer(doubleOption("server-requests-per-second", 3),
+                doubleOption("rate-limit-probability", 0), true, 1, pageId -> {});
+        notion.start();
+        String databaseId = notion.createDatabase("Upload test");
+
+        PooledNotionHttpClient http = new PooledNotionHttpClient(Duration.ofSeconds(10), Duration.ofSeconds(30), !options.containsKey("http1"));
+        NotionRateLimiter rateLimiter = new NotionRateLimiter(3, 3, 5);
+        NotionFileUploader uploader = new NotionFileUploader(http, notion.baseUrl(), "upload-test-token", rateLimiter,
+                intOption("concurrency", 2), Duration.ofMinutes(5));
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().factory());
+        sampler.scheduleAtFixedRate(() -> maxHeapUsed = Math.max(maxHeapUsed, memory.getHeapMemoryUsage().getUsed()), 0, 50, TimeUnit.MILLISECONDS);
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcTime();
+
+        LOG.info("Upload test: {} files of {} MB, max heap {} MB", fileCount, size / (1024 * 1024), Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        long start = System.nanoTime();
+        List<CompletableFuture<UploadedFile>> futures = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++) {
+            String filename = "latest-" + i + ".log";
+            futures.add(uploader.submit(notion.fileUrl(size, filename), filename, "text/plain; charset=utf-8", size));
+        }
+        List<UploadedFile> files = new ArrayList<>();
+        int failed = 0;
+        for (CompletableFuture<UploadedFile> future : futures) {
+            try {
+                files.add(future.join());
+            } catch (Exception e) {
+                failed++;
+                LOG.error("Upload failed", e);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        boolean attached = true;
+        try {
+            uploader.createPage(new CreatePageRequest(PageParent.database(databaseId), Map.of()), "Attachments", files);
+        } catch (Exception e) {
+            attached = false;
+            LOG.error("Failed to create page with the uploaded files", e);
+        }
+        sampler.shutdownNow();
+
+        StringBuilder out = new StringBuilder("\n==== Upload test results ====\n");
+        out.append(String.format("Files uploaded:            %d of %d%n", files.size(), fileCount));
+        out.append(String.format("Files attached to page:    %d%n", notion.getAttachedFiles()));
+        out.append(String.format("Bytes downloaded/uploaded: %d / %d%n", notion.getDownloadedBytes(), notion.getUploadedBytes()));
+        out.append(String.format("Corrupt parts:             %d%n", notion.getCorruptUploads()));
+        out.append(String.format("Throughput:                %.1f MB/s%n", notion.getUploadedBytes() / (1024.0 * 1024.0) / seconds));
+        out.append(String.format("Notion requests:           %d (create %d, send %d, complete %d), 429 responses %d%n",
+                notion.getTotalRequests(), notion.getRequests("file_uploads.create"), notion.getRequests("file_uploads.send"),
+                notion.getRequests("file_uploads.complete"), notion.getRateLimited()));
+        out.append(String.format("Max heap used:             %d MB%n", maxHeapUsed / (1024 * 1024)));
+        out.append(String.format("GC runs / time:            %d / %d ms%n", gcCount() - gcCountBefore, gcTime() - gcTimeBefore));
+        LOG.info(out.toString());
+
+        uploader.shutdown();
+        http.close();
+        notion.stop();
+        return failed == 0 && attached && notion.getCorruptUploads() == 0
+                && notion.getUploadedBytes() == fileCount * size && notion.getAttachedFiles() == fileCount;
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private static long gcTime() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+}
@@ -0,0 +1,253 @@
+package de.malfrador;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.malfrador.discord.NotificationSender;
+import de.malfrador.notion.DatabaseMetadata;
+import de.malfrador.notion.DatabaseMetadataCache;
+import de.malfrador.notion.DatabasePoller;
+import de.malfrador.notion.DummyLogger;
+import de.malfrador.notion.NotificationPipeline;
+import de.malfrador.notion.NotionRateLimiter;
+import de.malfrador.notion.NotionRateLimiter.Priority;
+import de.malfrador.notion.PageSnapshotStore;
+import de.malfrador.notion.PooledNotionHttpClient;
+import de.malfrador.notion.SlimDatabaseQuery;
+import de.malfrador.notion.SyncWatermark;
+import de.malfrador.notion.WatermarkStore;
+import de.malfrador.reporting.CompiledForm;
+import de.malfrador.reporting.ReportOutbox;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dv8tion.jda.api.utils.data.DataArray;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import notion.api.v1.NotionClient;
+import notion.api.v1.model.pages.PageParent;
+import notion.api.v1.request.pages.CreatePageRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Training run for the class data sharing archive ({@code --cds-training}). Polls a database, builds a notification
+ * and inserts a report like the bot does, but against a stub of the Notion API on the loopback interface, so it needs
+ * no config, sends nothing anywhere and fails the build if any of it breaks. Discord is not involved, the classes JDA
+ * needs for the gateway are loaded when the bot starts.
+ */
+final class CdsTraining {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CdsTraining.class);
+    private static final String DATABASE_ID = "3f1c2a9e-5b7d-4e8a-9c6f-0d2b4a6e8c10";
+    private static final String PAGE_ID = "8a7b6c5d-4e3f-4a1b-9c2d-1e0f2a3b4c5d";
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    private CdsTraining() {
+    }
+
+    /**
+     * @return false if the training run failed
+     */
+    static boolean run() {
+        Path directory = null;
+        HttpServer server = null;
+        try {
+            directory = Files.createTempDirectory("cds-training");
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/v1/", CdsTraining::handle);
+            server.start();
+            train("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getAddress().getPort() + "/v1", directory);
+            LOG.info("CDS training run complete");
+            return true;
+        } catch (Exception e) {
+            LOG.error("CDS training run failed", e);
+            return false;
+        } finally {
+            if (server != null) {
+                server.stop(0);
+            }
+            deleteQuietly(directory);
+        }
+    }
+
+    private static void train(String baseUrl, Path directory) throws Exception {
+        NotionClient client = new NotionClient("cds-training");
+        client.setLogger(new DummyLogger());
+        PooledNotionHttpClient http = new PooledNotionHttpClient(Duration.ofSeconds(5), TIMEOUT, true);
+        client.setHttpClient(http);
+        client.setBaseUrl(baseUrl);
+        NotionRateLimiter rateLimiter = new NotionRateLimiter(10, 10, 1);
+        DatabaseMetadataCache metadataCache = new DatabaseMetadataCache(
+                id -> rateLimiter.execute(Priority.BACKGROUND, "databases.retrieve", () -> client.retrieveDatabase(id)),
+                Duration.ofMinutes(5), 10);
+        DatabaseMetadata metadata = metadataCache.get(DATABASE_ID);
+        CompiledForm form = CompiledForm.compile(metadata);
+
+        CountDownLatch reported = new CountDownLatch(1);
+        ReportOutbox outbox = new ReportOutbox(directory.resolve("outbox.jsonl"), (report, resend) -> {
+            CreatePageRequest request = new CreatePageRequest(PageParent.database(report.databaseId()),
+                    form.toPageProperties(report.properties()));
+            rateLimiter.execute(Priority.INTERACTIVE, "pages.create", false, () -> client.createPage(request));
+            reported.countDown();
+        }, 1);
+        outbox.start();
+        outbox.submit(UUID.randomUUID().toString(), DATABASE_ID, Map.of("Name", "Training run", "Description", "The game crashes"));
+
+        CountDownLatch notified = new CountDownLatch(1);
+        NotificationSender sender = new NotificationSender(null, 10) {
+            @Override
+            public boolean submit(String channelId, MessageEmbed embed, Instant sourceTime, Runnable delivered) {
+                notified.countDown();
+                if (delivered != null) {
+                    delivered.run();
+                }
+                return true;
+            }
+        };
+        WatermarkStore watermarks = new WatermarkStore(directory.resolve("watermarks.log"));
+        watermarks.load();
+        NotificationPipeline pipeline = new NotificationPipeline(client, rateLimiter, metadataCache, new PageSnapshotStore(10),
+                sender, change -> List.of("cds-training"), watermarks::release, 1, 10);
+        pipeline.start();
+        DatabasePoller poller = new DatabasePoller(client, rateLimiter, new SlimDatabaseQuery(http, client.getBaseUrl(), "cds-training"),
+                watermarks, SyncWatermark.at(Instant.EPOCH), true, 5, change -> {
+                    watermarks.hold(change);
+                    pipeline.submit(change);
+                });
+        try {
+            poller.poll(DATABASE_ID);
+            if (!notified.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("No notification for the polled page");
+            }
+            if (!reported.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("The report was not inserted");
+            }
+        } finally {
+            pipeline.shutdown(Duration.ofSeconds(5));
+            outbox.shutdown();
+            watermarks.close();
+        }
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            exchange.getRequestBody().readAllBytes();
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().substring("/v1/".length()).split("/");
+            if (path[0].equals("databases") && path.length == 2 && method.equals("GET")) {
+                respond(exchange, 200, database());
+            } else if (path[0].equals("databases") && path.length == 3 && method.equals("POST")) {
+                respond(exchange, 200, list("page_or_database", DataArray.empty().add(page())));
+            } else if (path[0].equals("pages") && method.equals("GET")) {
+                respond(exchange, 200, page().toString());
+            } else if (path[0].equals("pages") && method.equals("POST")) {
+                respond(exchange, 200, page().put("id", UUID.randomUUID().toString()).toString());
+            } else if (path[0].equals("blocks") && method.equals("GET")) {
+                DataObject paragraph = DataObject.empty().put("rich_text", DataArray.empty().add(richText("Open the inventory")));
+                respond(exchange, 200, list("block", DataArray.empty().add(DataObject.empty()
+                        .put("object", "block")
+                        .put("id", UUID.randomUUID().toString())
+                        .put("type", "paragraph")
+                        .put("has_children", false)
+                        .put("paragraph", paragraph))));
+            } else {
+                respond(exchange, 404, DataObject.empty()
+                        .put("object", "error")
+                        .put("status", 404)
+                        .put("code", "object_not_found")
+                        .put("message", "Unknown endpoint " + method + " " + exchange.getRequestURI())
+                        .toString());
+            }
+        }
+    }
+
+    private static String database() {
+        DataObject properties = DataObject.empty()
+                .put("Name", DataObject.empty().put("id", "title").put("name", "Name").put("type", "title").put("title", DataObject.empty()))
+                .put("Description", DataObject.empty().put("id", "desc").put("name", "Description").put("type", "rich_text").put("rich_text", DataObject.empty()))
+                .put("Severity", DataObject.empty().put("id", "sevr").put("name", "Severity").put("type", "select")
+                        .put("select", DataObject.empty().put("options", DataArray.empty()
+                                .add(DataObject.empty().put("id", "s1").put("name", "Low").put("color", "green"))
+                                .add(DataObject.empty().put("id", "s2").put("name", "High").put("color", "red")))));
+        return DataObject.empty()
+                .put("object", "database")
+                .put("id", DATABASE_ID)
+                .put("created_time", "2025-01-01T00:00:00.000Z")
+                .put("last_edited_time", "2025-01-01T00:00:00.000Z")
+                .put("title", DataArray.empty().add(richText("Bug reports")))
+                .put("properties", properties)
+                .toString();
+    }
+
+    private static DataObject page() {
+        String now = Instant.now().toString();
+        DataObject properties = DataObject.empty()
+                .put("Name", DataObject.empty().put("id", "title").put("type", "title")
+                        .put("title", DataArray.empty().add(richText("Crash when opening the inventory"))))
+                .put("Description", DataObject.empty().put("id", "desc").put("type", "rich_text")
+                        .put("rich_text", DataArray.empty().add(richText("The game crashes"))))
+                .put("Severity", DataObject.empty().put("id", "sevr").put("type", "select")
+                        .put("select", DataObject.empty().put("id", "s2").put("name", "High").put("color", "red")));
+        return DataObject.empty()
+                .put("object", "page")
+                .put("id", PAGE_ID)
+                .put("created_time", now)
+                .put("last_edited_time", now)
+                .put("archived", false)
+                .put("url", "https://www.notion.so/" + PAGE_ID.replace("-", ""))
+                .put("parent", DataObject.empty().put("type", "database_id").put("database_id", DATABASE_ID))
+                .put("properties", properties);
+    }
+
+    private static String list(String type, DataArray results) {
+        return DataObject.empty()
+                .put("object", "list")
+                .put("results", results)
+                .put("has_more", false)
+                .put("next_cursor", null)
+                .put("type", type)
+                .put(type, DataObject.empty())
+                .toString();
+    }
+
+    private static DataObject richText(String content) {
+        return DataObject.empty()
+                .put("type", "text")
+                .put("text", DataObject.empty().put("content", content))
+                .put("plain_text", content);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void deleteQuietly(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            LOG.warn("Failed to delete {}", directory, e);
+        }
+    }
+}
@@ -1,18 +1,35 @@
 package de.malfrador;
 
+import de.malfrador.metrics.MetricsRegistry;
+import de.malfrador.metrics.MetricsServer;
 import de.malfrador.notion.VNotionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.List;
+
 public class Main {
 
     public static final VConfig config = new VConfig();
     private static final Logger LOG = LoggerFactory.getLogger(Main.class);
 
     public static void main(String[] args) {
+        if (List.of(args).contains("--cds-training")) {
+            System.exit(CdsTraining.run() ? 0 : 1);
+        }
         VNotionManager notionManager= new VNotionManager(config.global.notionToken);
+        MetricsServer metricsServer = new MetricsServer(MetricsRegistry.DEFAULT);
+        if (config.metrics.enabled) {
+            try {
+                metricsServer.start(config.metrics.bindAddress, config.metrics.port);
+            } catch (IOException e) {
+                LOG.error("Failed to start metrics server on {}:{}", config.metrics.bindAddress, config.metrics.port, e);
+            }
+        }
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             notionManager.shutdown();
+            metricsServer.stop();
             LOG.info("Notion manager shutdown complete");
         }));
         notionManager.start();
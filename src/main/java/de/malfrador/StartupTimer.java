@@ -0,0 +1,39 @@
+package de.malfrador;
+
+import de.malfrador.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Records how long each startup phase took and when milestones like the first poll were reached, in the log and as
+ * metrics, so slow restarts can be tracked down. Phases may run at the same time.
+ */
+public final class StartupTimer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StartupTimer.class);
+
+    private StartupTimer() {
+    }
+
+    /**
+     * @param startNanos {@link System#nanoTime()} when the phase started
+     */
+    public static void phase(String phase, long startNanos) {
+        long millis = (System.nanoTime() - startNanos) / 1_000_000;
+        MetricsRegistry.DEFAULT.gauge("startup_phase_duration_seconds", "Time taken by each startup phase",
+                () -> millis / 1000.0, "phase", phase);
+        LOG.info("Startup phase {} took {} ms", phase, millis);
+    }
+
+    /**
+     * Record the time since the JVM started
+     */
+    public static void milestone(String milestone) {
+        long millis = ManagementFactory.getRuntimeMXBean().getUptime();
+        MetricsRegistry.DEFAULT.gauge("startup_milestone_seconds", "Time from JVM start until the milestone was reached",
+                () -> millis / 1000.0, "milestone", milestone);
+        LOG.info("Startup milestone {} reached {} ms after JVM start", milestone, millis);
+    }
+}
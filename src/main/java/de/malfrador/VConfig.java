@@ -13,7 +13,11 @@ import org.spongepowered.configurate.yaml.YamlConfigurationLoader;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class VConfig {
 
@@ -26,9 +30,16 @@ public class VConfig {
     public BotConfig.DiscordBotSetup discord;
     public BotConfig.DiscordMessages discordMessages;
     public BotConfig.NotionSetup notion;
+    public BotConfig.MetricsSetup metrics;
+    public BotConfig.ClusterSetup cluster;
+    private List<BotConfig.GuildSetup> guilds;
+    private final Map<String, BotConfig.GuildSetup> guildsById = new LinkedHashMap<>();
+    private BotConfig.GuildSetup legacyGuild; // Built from the single-guild settings if there is no guilds section
 
     public VConfig() {
+        long start = System.nanoTime();
         loadConfig();
+        StartupTimer.phase("config", start);
     }
 
     private void loadConfig() {
@@ -52,6 +63,9 @@ public class VConfig {
             notion = global.notionSetup;
             discord = global.discordBotSetup;
             discordMessages = global.discordMessages;
+            metrics = global.metrics;
+            cluster = global.cluster;
+            loadGuilds();
         } catch (SerializationException e) {
             LOG.error("Failed to deserialize config.yml", e);
             throw new RuntimeException(e);
@@ -59,6 +73,71 @@ public class VConfig {
         saveConfig(); // Save config to ensure all fields are present, or create it if this is the first run
     }
 
+    private void loadGuilds() {
+        guildsById.clear();
+        legacyGuild = null;
+        if (global.guilds.isEmpty()) {
+            legacyGuild = new BotConfig.GuildSetup();
+            legacyGuild.guildId = null; // Any guild
+            legacyGuild.reportingChannelId = discord.discordReportingChannelID;
+            legacyGuild.reportingMessageId = discord.discordReportingMessageID;
+            legacyGuild.notificationChannelId = discord.notificationChannelId;
+            legacyGuild.notionDatabaseUUID = notion.notionDatabaseUUID;
+            legacyGuild.monitoredDatabases = notion.monitoredDatabases;
+            legacyGuild.notificationRules = notion.notificationRules;
+            guilds = List.of(legacyGuild);
+            return;
+        }
+        for (BotConfig.GuildSetup guild : global.guilds) {
+            if (guildsById.putIfAbsent(guild.guildId, guild) != null) {
+                LOG.warn("Guild {} is configured more than once, only the first entry is used", guild.guildId);
+            }
+        }
+        guilds = List.copyOf(guildsById.values());
+    }
+
+    /**
+     * All communities the bot serves. Without a guilds section, this is a single entry built from the single-guild
+     * settings, which applies to every guild.
+     */
+    public List<BotConfig.GuildSetup> guilds() {
+        return guilds;
+    }
+
+    /**
+     * @return the setup of the guild, or null if the bot is not set up there
+     */
+    public BotConfig.GuildSetup guild(String guildId) {
+        BotConfig.GuildSetup guild = guildId == null ? null : guildsById.get(guildId);
+        return guild != null ? guild : legacyGuild;
+    }
+
+    /**
+     * All reporting databases, each only once even if several guilds share it
+     */
+    public Set<String> reportingDatabases() {
+        Set<String> databases = new LinkedHashSet<>();
+        guilds.forEach(guild -> databases.add(guild.notionDatabaseUUID));
+        return databases;
+    }
+
+    /**
+     * All monitored databases, each only once even if several guilds monitor it
+     */
+    public Set<String> monitoredDatabases() {
+        Set<String> databases = new LinkedHashSet<>();
+        guilds.forEach(guild -> databases.addAll(guild.monitoredDatabases));
+        return databases;
+    }
+
+    public synchronized void setReportingMessageId(BotConfig.GuildSetup guild, String messageId) {
+        guild.reportingMessageId = messageId;
+        if (guild == legacyGuild) {
+            discord.discordReportingMessageID = messageId;
+        }
+        saveConfig();
+    }
+
     public void saveConfig() {
         try {
             root.set(BotConfig.class, global);
@@ -83,6 +162,9 @@ public class VConfig {
         public DiscordBotSetup discordBotSetup = new DiscordBotSetup();
         public DiscordMessages discordMessages = new DiscordMessages();
         public NotionSetup notionSetup = new NotionSetup();
+        public MetricsSetup metrics = new MetricsSetup();
+        public ClusterSetup cluster = new ClusterSetup();
+        public List<GuildSetup> guilds = new ArrayList<>();
 
         @ConfigSerializable
         public static class DiscordBotSetup {
@@ -92,6 +174,11 @@ public class VConfig {
             public String discordReportingMessageID = "discord-reporting-message-id";
             @Setting(value = "discord-notification-channel-id")
             public String notificationChannelId = "discord-notification-channel-id";
+            public int notificationQueueSize = 500;
+            public int formSessionIdleMinutes = 30;
+            public int formSessionMaxCount = 10000;
+            public int formSessionMaxMemoryKb = 16384;
+            public int shardCount = -1;
         }
 
         @ConfigSerializable
@@ -99,8 +186,40 @@ public class VConfig {
             @Setting(value = "notion-database-uuid")
             public String notionDatabaseUUID = "notion-database-uuid";
             public List<String> monitoredDatabases = new ArrayList<>();
+            public List<NotificationRule> notificationRules = new ArrayList<>();
             public int databaseQueryInterval = 60;
+            public boolean adaptivePolling = true;
+            public int minQueryInterval = 15;
+            public int maxQueryInterval = 600;
             public int databaseQuerySize = 5;
+            public boolean incrementalSync = true;
+            public boolean slimPolling = true;
+            public int maxConcurrentPolls = 4;
+            public int metadataCacheTtl = 300;
+            public int metadataCacheSize = 100;
+            public double notionRequestsPerSecond = 3.0;
+            public int notionRequestBurst = 3;
+            public int notionMaxRetries = 5;
+            public int notionConnectTimeout = 10;
+            public int notionRequestTimeout = 30;
+            public boolean notionHttp2 = true;
+            public String reportOutboxFile = "report-outbox.jsonl";
+            public int reportMaxAttempts = 10;
+            public String watermarkFile = "poll-watermarks.log";
+            public int notificationQuietWindow = 120;
+            public int notificationMaxDelay = 600;
+            public int snapshotMaxPages = 50000;
+            public int enrichmentConcurrency = 4;
+            public int notificationPipelineQueueSize = 200;
+            public int schemaRefreshInterval = 300;
+            public int maxConcurrentUploads = 2;
+            public int attachmentMaxSizeMb = 50;
+            public int attachmentMaxCount = 5;
+            public int uploadTimeout = 300;
+            public boolean duplicateDetection = true;
+            public double duplicateThreshold = 0.4;
+            public int duplicateMaxShown = 3;
+            public int duplicateIndexReload = 60;
         }
 
         @ConfigSerializable
@@ -108,6 +227,48 @@ public class VConfig {
             public String reportingText = "Please click the button below to start reporting a bug";
         }
 
+        @ConfigSerializable
+        public static class GuildSetup {
+            public String guildId = "discord-guild-id";
+            public String reportingChannelId = "discord-reporting-channel-id";
+            public String reportingMessageId = "discord-reporting-message-id";
+            public String notificationChannelId = "discord-notification-channel-id";
+            @Setting(value = "notion-database-uuid")
+            public String notionDatabaseUUID = "notion-database-uuid";
+            public List<String> monitoredDatabases = new ArrayList<>();
+            public List<NotificationRule> notificationRules = new ArrayList<>();
+
+            public boolean hasReportingMessage() {
+                return reportingMessageId != null && !reportingMessageId.isEmpty() && !reportingMessageId.equals("discord-reporting-message-id");
+            }
+        }
+
+        @ConfigSerializable
+        public static class NotificationRule {
+            public List<String> databases = new ArrayList<>();
+            public String property = "";
+            public List<String> values = new ArrayList<>();
+            public String changeType = "any";
+            public String channelId = "";
+        }
+
+        @ConfigSerializable
+        public static class MetricsSetup {
+            public boolean enabled = false;
+            public String bindAddress = "127.0.0.1";
+            public int port = 9464;
+        }
+
+        @ConfigSerializable
+        public static class ClusterSetup {
+            public boolean enabled = false;
+            public String instanceId = "";
+            public String leaseDirectory = "leases";
+            public int leaseDuration = 30;
+            public int leaseRenewInterval = 10;
+            public int virtualNodes = 64;
+        }
+
     }
 
 }
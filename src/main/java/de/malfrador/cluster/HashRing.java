@@ -0,0 +1,53 @@
+package de.malfrador.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of keys (database IDs) onto instances. Every instance is placed on the ring many times, so keys
+ * are spread evenly, and an instance joining or leaving only moves the keys next to its own points.
+ */
+public final class HashRing {
+
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+    public HashRing(Collection<String> members, int virtualNodes) {
+        for (String member : members) {
+            for (int i = 0; i < Math.max(1, virtualNodes); i++) {
+                ring.put(hash(member + "#" + i), member);
+            }
+        }
+    }
+
+    /**
+     * @return the instance that should own the key, or null if there are no instances
+     */
+    public String owner(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /*
+     * First 8 bytes of the MD5, which is stable across JVMs and spreads much better than String.hashCode
+     */
+    static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is always available", e);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package de.malfrador.cluster;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Leases and instance heartbeats, stored as small files in a directory that all instances share (a network
+ * filesystem, or just a local directory when several instances run on one machine).
+ * Every read-modify-write of a lease happens under an exclusive lock on {@code lock} in that directory, so two
+ * instances can never both take over the same lease. Files are replaced atomically, so a crash never leaves a torn
+ * lease behind. Expiry times are wall clock times, so the clocks of the instances must be roughly in sync.
+ */
+public class LeaseStore {
+
+    private final Path members;
+    private final Path leases;
+    private final Path lockFile;
+
+    public LeaseStore(Path directory) throws IOException {
+        this.members = directory.resolve("members");
+        this.leases = directory.resolve("leases");
+        this.lockFile = directory.resolve("lock");
+        Files.createDirectories(members);
+        Files.createDirectories(leases);
+    }
+
+    /**
+     * Announce that the instance is alive until {@code expiresAt}
+     */
+    public void heartbeat(String instanceId, Instant expiresAt) {
+        write(members.resolve(fileName(instanceId)), instanceId + '\t' + expiresAt.toEpochMilli());
+    }
+
+    public void leave(String instanceId) {
+        try {
+            Files.deleteIfExists(members.resolve(fileName(instanceId)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to remove heartbeat of " + instanceId, e);
+        }
+    }
+
+    /**
+     * @return all instances whose heartbeat has not expired yet
+     */
+    public List<String> liveMembers(Instant now) {
+        List<String> live = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(members, path -> !path.getFileName().toString().endsWith(".tmp"))) {
+            for (Path file : files) {
+                String[] parts = read(file);
+                if (parts != null && parts.length == 2 && Long.parseLong(parts[1]) > now.toEpochMilli()) {
+                    live.add(parts[0]);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list instances in " + members, e);
+        }
+        return live;
+    }
+
+    /**
+     * Take the lease if it is free, expired, or already ours.
+     *
+     * @return the lease now held by us, with the state the previous owner left behind, or null if someone else holds it
+     */
+    public synchronized @Nullable Lease acquire(String key, String owner, Instant expiresAt, Instant now) {
+        return locked(() -> {
+            Lease current = get(key);
+            if (current != null && !current.owner().equals(owner) && current.expiresAt().isAfter(now)) {
+                return null;
+            }
+            Lease acquired = new Lease(key, owner, expiresAt, current == null ? null : current.state());
+            put(acquired);
+            return acquired;
+        });
+    }
+
+    /**
+     * Extend our lease and store the state the next owner should continue from.
+     *
+     * @return false if someone else took the lease over in the meantime
+     */
+    public synchronized boolean renew(String key, String owner, Instant expiresAt, @Nullable String state) {
+        return locked(() -> {
+            Lease current = get(key);
+            if (current != null && !current.owner().equals(owner)) {
+                return false;
+            }
+            put(new Lease(key, owner, expiresAt, state));
+            return true;
+        });
+    }
+
+    /**
+     * Give the lease up right away, leaving the state behind for the next owner
+     */
+    public synchronized void release(String key, String owner, @Nullable String state) {
+        locked(() -> {
+            Lease current = get(key);
+            if (current == null || current.owner().equals(owner)) {
+                put(new Lease(key, owner, Instant.EPOCH, state));
+            }
+            return null;
+        });
+    }
+
+    public @Nullable Lease get(String key) {
+        String[] parts = read(leases.resolve(fileName(key)));
+        if (parts == null || parts.length != 3) {
+            return null;
+        }
+        return new Lease(key, parts[0], Instant.ofEpochMilli(Long.parseLong(parts[1])), parts[2].isEmpty() ? null : parts[2]);
+    }
+
+    private void put(Lease lease) {
+        write(leases.resolve(fileName(lease.key())),
+                lease.owner() + '\t' + lease.expiresAt().toEpochMilli() + '\t' + (lease.state() == null ? "" : lease.state()));
+    }
+
+    /*
+     * The JVM only allows one lock on a file at a time, so callers also synchronize on this store
+     */
+    private <T> T locked(IoAction<T> action) {
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            return action.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to lock " + lockFile, e);
+        }
+    }
+
+    private static String[] read(Path file) {
+        try {
+            return Files.readString(file, StandardCharsets.UTF_8).split("\t", -1);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + file, e);
+        }
+    }
+
+    private static void write(Path file, String content) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.writeString(temp, content, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write " + file, e);
+        }
+    }
+
+    private static String fileName(String key) {
+        return key.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+
+    private interface IoAction<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * @param state opaque state of the owner, e.g. how far a database has been polled
+     */
+    public record Lease(String key, String owner, Instant expiresAt, @Nullable String state) {
+    }
+}
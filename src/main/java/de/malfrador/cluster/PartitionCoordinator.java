@@ -0,0 +1,210 @@
+package de.malfrador.cluster;
+
+import de.malfrador.metrics.MetricsRegistry;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Splits keys (monitored databases) between all running instances. Every instance sends a heartbeat to the
+ * {@link LeaseStore}, places the live instances on a {@link HashRing}, and takes a lease on the keys the ring assigns
+ * to it. An instance only works on a key while it holds the lease, so a key is never worked on twice at the same time.
+ * <p>
+ * When an instance joins, the owners of the keys that move to it hand them over at their next renewal: they stop
+ * working on the key first, then release the lease with their latest state, which the new owner continues from. The
+ * lease is renewed until they stopped, without blocking the renewal of the other keys.
+ * When an instance dies, its heartbeat and leases run out after one lease duration, and the ring assigns its keys to
+ * the remaining instances, which continue from the state of the last renewal.
+ */
+public class PartitionCoordinator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PartitionCoordinator.class);
+
+    private final LeaseStore store;
+    private final String instanceId;
+    private final Duration leaseDuration;
+    private final Duration renewInterval;
+    private final int virtualNodes;
+    private final OwnershipListener listener;
+    private final Function<String, String> stateOf;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("cluster-coordinator").daemon().factory());
+    // Owned key -> when our lease runs out, as far as we know
+    private final Map<String, Instant> owned = new ConcurrentHashMap<>();
+    // Keys we are handing over -> done once we stopped working on them. Only touched on the scheduler thread
+    private final Map<String, CompletableFuture<?>> handingOver = new HashMap<>();
+    private volatile List<String> keys = List.of();
+    private volatile int memberCount;
+
+    /**
+     * @param renewInterval how often heartbeats and leases are renewed. Must be well below the lease duration
+     * @param stateOf       the state to leave behind for the next owner of a key
+     */
+    public PartitionCoordinator(LeaseStore store, String instanceId, Duration leaseDuration, Duration renewInterval,
+                                int virtualNodes, OwnershipListener listener, Function<String, String> stateOf) {
+        this.store = store;
+        this.instanceId = instanceId;
+        this.leaseDuration = leaseDuration;
+        this.renewInterval = renewInterval.compareTo(leaseDuration) < 0 ? renewInterval : leaseDuration.dividedBy(3);
+        this.virtualNodes = virtualNodes;
+        this.listener = listener;
+        this.stateOf = stateOf;
+        MetricsRegistry.DEFAULT.gauge("cluster_members", "Live bot instances", () -> memberCount);
+        MetricsRegistry.DEFAULT.gauge("cluster_owned_keys", "Databases this instance holds the lease for", owned::size);
+    }
+
+    public void start(List<String> keys) {
+        this.keys = List.copyOf(keys);
+        scheduler.scheduleWithFixedDelay(this::tick, 0, renewInterval.toMillis(), TimeUnit.MILLISECONDS);
+        LOG.info("Instance {} coordinating {} databases, leases last {} seconds", instanceId, keys.size(), leaseDuration.toSeconds());
+    }
+
+    /**
+     * @return true if we hold the lease for the key and it has not run out. Check this right before working on the key
+     */
+    public boolean owns(String key) {
+        Instant expiresAt = owned.get(key);
+        return expiresAt != null && Instant.now().isBefore(expiresAt);
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    private void tick() {
+        try {
+            Instant now = Instant.now();
+            Instant expiresAt = now.plus(leaseDuration);
+            store.heartbeat(instanceId, expiresAt);
+            Set<String> members = new TreeSet<>(store.liveMembers(now));
+            members.add(instanceId);
+            if (members.size() != memberCount) {
+                LOG.info("{} live instances: {}", members.size(), members);
+                memberCount = members.size();
+            }
+            HashRing ring = new HashRing(members, virtualNodes);
+            for (String key : List.copyOf(handingOver.keySet())) {
+                if (!store.renew(key, instanceId, expiresAt, stateOf.apply(key))) {
+                    handingOver.remove(key);
+                    LOG.warn("Lease for {} ran out before we stopped working on it", key);
+                }
+            }
+            for (String key : keys) {
+                if (handingOver.containsKey(key)) {
+                    continue;
+                }
+                boolean ours = instanceId.equals(ring.owner(key));
+                if (owned.containsKey(key)) {
+                    if (!ours) {
+                        handOver(key);
+                    } else if (store.renew(key, instanceId, expiresAt, stateOf.apply(key))) {
+                        owned.put(key, expiresAt);
+                    } else {
+                        owned.remove(key);
+                        listener.released(key);
+                        LOG.warn("Lease for {} was taken over by another instance", key);
+                    }
+                } else if (ours) {
+                    LeaseStore.Lease lease = store.acquire(key, instanceId, expiresAt, now);
+                    if (lease != null) {
+                        owned.put(key, expiresAt);
+                        listener.acquired(key, lease.state());
+                        LOG.info("Took over {}", key);
+                    }
+                    // Otherwise the previous owner has not handed it over yet, try again next tick
+                }
+            }
+        } catch (Exception e) {
+            // Our leases run out on their own if this keeps failing, and owns() stops returning true
+            LOG.error("Failed to renew leases of instance {}", instanceId, e);
+        }
+    }
+
+    /*
+     * Stop working on the key, and release the lease with the state once that is done
+     */
+    private void handOver(String key) {
+        owned.remove(key);
+        CompletableFuture<?> stopped = listener.released(key);
+        handingOver.put(key, stopped);
+        stopped.whenComplete((ignored, e) -> {
+            try {
+                scheduler.execute(() -> release(key, stopped));
+            } catch (RejectedExecutionException shuttingDown) {
+                // shutdown() releases it
+            }
+        });
+    }
+
+    private void release(String key, CompletableFuture<?> stopped) {
+        if (!handingOver.remove(key, stopped)) {
+            return; // The lease ran out in the meantime
+        }
+        store.release(key, instanceId, stateOf.apply(key));
+        LOG.info("Handed {} over to another instance", key);
+    }
+
+    /**
+     * Hand all keys over right away, so the other instances don't have to wait for the leases to run out
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (String key : new ArrayList<>(owned.keySet())) {
+            owned.remove(key);
+            handingOver.put(key, listener.released(key));
+        }
+        handingOver.forEach((key, stopped) -> {
+            try {
+                stopped.get(leaseDuration.toMillis(), TimeUnit.MILLISECONDS);
+                store.release(key, instanceId, stateOf.apply(key));
+            } catch (Exception e) {
+                LOG.warn("Failed to release lease for {}, it will run out on its own", key, e);
+            }
+        });
+        handingOver.clear();
+        try {
+            store.leave(instanceId);
+        } catch (Exception e) {
+            LOG.warn("Failed to remove heartbeat of instance {}", instanceId, e);
+        }
+    }
+
+    /**
+     * Told when this instance starts or stops being responsible for a key
+     */
+    public interface OwnershipListener {
+
+        /**
+         * @param state what the previous owner left behind, or null if the key was never owned before
+         */
+        void acquired(String key, @Nullable String state);
+
+        /**
+         * Stop working on the key. This runs on the thread that renews all leases, so it must not block
+         *
+         * @return completes once no more work on the key is running
+         */
+        CompletableFuture<?> released(String key);
+    }
+}
@@ -0,0 +1,238 @@
+package de.malfrador.discord;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Holds the half-filled reporting forms of all Discord users. JDA calls us from several threads, so this is safe to
+ * use concurrently. Forms nobody touched for {@code idleTimeout} are dropped, and if there are too many forms or they
+ * use too much memory, the ones that have been idle the longest are dropped first.
+ */
+public class FormSessionStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FormSessionStore.class);
+
+    private static final long SESSION_OVERHEAD_BYTES = 256;
+    private static final long ENTRY_OVERHEAD_BYTES = 96;
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final long idleTimeoutNanos;
+    private final int maxSessions;
+    private final long maxBytes;
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("form-session-sweeper").daemon().factory());
+
+    private final AtomicLong estimatedBytes = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+
+    public FormSessionStore(Duration idleTimeout, int maxSessions, long maxBytes) {
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.maxSessions = Math.max(1, maxSessions);
+        this.maxBytes = Math.max(SESSION_OVERHEAD_BYTES, maxBytes);
+        long sweepMillis = Math.max(1000, idleTimeout.toMillis() / 4);
+        sweeper.scheduleWithFixedDelay(this::expireIdle, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Store a value the user selected or entered in their form
+     */
+    public void select(String userId, String property, String value) {
+        update(userId, session -> session.put(property, value));
+    }
+
+    /**
+     * Add a value to a property that holds several, like attached files. The values are separated by newlines
+     */
+    public void add(String userId, String property, String value) {
+        update(userId, session -> session.append(property, value));
+    }
+
+    /*
+     * The estimate is updated inside the map operation, so a concurrent remove of the same session always subtracts
+     * what was added for it
+     */
+    private void update(String userId, ToLongFunction<Session> change) {
+        sessions.compute(userId, (id, session) -> {
+            long delta = 0;
+            if (session == null) {
+                session = new Session();
+                delta += SESSION_OVERHEAD_BYTES;
+            }
+            delta += change.applyAsLong(session);
+            estimatedBytes.addAndGet(delta);
+            return session;
+        });
+        if (estimatedBytes.get() > maxBytes || sessions.size() > maxSessions) {
+            evictIdlest();
+        }
+    }
+
+    /**
+     * @return a copy of the user's current selections, or null if they have none
+     */
+    public Map<String, String> get(String userId) {
+        Session session = sessions.get(userId);
+        return session == null ? null : session.copy();
+    }
+
+    /**
+     * @return an ID that stays the same for the user's current form, and changes once they start a new one,
+     * or null if they have no form
+     */
+    public String submissionId(String userId) {
+        Session session = sessions.get(userId);
+        return session == null ? null : session.submissionId;
+    }
+
+    public int selectedCount(String userId) {
+        Session session = sessions.get(userId);
+        return session == null ? 0 : session.size();
+    }
+
+    /**
+     * Drop the user's form after it was submitted
+     */
+    public void complete(String userId) {
+        if (remove(userId) != null) {
+            completed.incrementAndGet();
+        }
+    }
+
+    public int getActiveSessions() {
+        return sessions.size();
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    public long getExpiredSessions() {
+        return expired.get();
+    }
+
+    public long getEvictedSessions() {
+        return evicted.get();
+    }
+
+    public long getCompletedSessions() {
+        return completed.get();
+    }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    private void expireIdle() {
+        long now = System.nanoTime();
+        int count = 0;
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            if (now - entry.getValue().lastAccess > idleTimeoutNanos && remove(entry.getKey(), entry.getValue())) {
+                count++;
+            }
+        }
+        if (count > 0) {
+            expired.addAndGet(count);
+            LOG.info("Dropped {} abandoned report forms, {} still active", count, sessions.size());
+        }
+    }
+
+    /*
+     * Drop the idlest tenth of all forms at once, so we don't have to sort everything again on the next insert
+     */
+    private synchronized void evictIdlest() {
+        if (estimatedBytes.get() <= maxBytes && sessions.size() <= maxSessions) {
+            return; // Someone else already made room
+        }
+        List<Map.Entry<String, Session>> entries = new ArrayList<>(sessions.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+        int toEvict = Math.max(1, entries.size() / 10);
+        int count = 0;
+        for (Map.Entry<String, Session> entry : entries) {
+            if (count >= toEvict && estimatedBytes.get() <= maxBytes && sessions.size() <= maxSessions) {
+                break;
+            }
+            if (remove(entry.getKey(), entry.getValue())) {
+                count++;
+            }
+        }
+        evicted.addAndGet(count);
+        LOG.warn("Too many open report forms, dropped the {} idlest ones", count);
+    }
+
+    private Session remove(String userId) {
+        Session[] removed = new Session[1];
+        sessions.computeIfPresent(userId, (id, session) -> {
+            estimatedBytes.addAndGet(-session.bytes());
+            removed[0] = session;
+            return null;
+        });
+        return removed[0];
+    }
+
+    private boolean remove(String userId, Session expected) {
+        boolean[] removed = new boolean[1];
+        sessions.computeIfPresent(userId, (id, session) -> {
+            if (session != expected) {
+                return session;
+            }
+            estimatedBytes.addAndGet(-session.bytes());
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    private static class Session {
+        private final Map<String, String> values = new HashMap<>();
+        private final String submissionId = UUID.randomUUID().toString();
+        private volatile long lastAccess = System.nanoTime();
+        private long bytes = SESSION_OVERHEAD_BYTES;
+
+        /*
+         * @return how much the estimated size changed
+         */
+        private synchronized long put(String property, String value) {
+            lastAccess = System.nanoTime();
+            String previous = values.put(property, value);
+            long delta = previous == null
+                    ? ENTRY_OVERHEAD_BYTES + 2L * (property.length() + value.length())
+                    : 2L * (value.length() - previous.length());
+            bytes += delta;
+            return delta;
+        }
+
+        private synchronized long append(String property, String value) {
+            String previous = values.get(property);
+            return put(property, previous == null ? value : previous + "\n" + value);
+        }
+
+        private synchronized Map<String, String> copy() {
+            lastAccess = System.nanoTime();
+            return new HashMap<>(values);
+        }
+
+        private synchronized int size() {
+            return values.size();
+        }
+
+        private synchronized long bytes() {
+            return bytes;
+        }
+    }
+}
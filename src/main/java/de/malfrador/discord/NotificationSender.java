@@ -0,0 +1,274 @@
+package de.malfrador.discord;
+
+import de.malfrador.metrics.Histogram;
+import de.malfrador.metrics.MetricsRegistry;
+import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends notification embeds to Discord, packing as many as possible into one message (up to 10 embeds and 6000
+ * characters, Discord's limits). Each channel has a bounded queue and a single sender thread, which waits for each
+ * message to go through before sending the next one, so we stay within Discord's per-channel rate limit instead of
+ * piling up requests in JDA. If a queue is full, new notifications are dropped and a summary of how many were dropped
+ * is sent instead. Whoever queued a notification can be told once it was delivered.
+ */
+public class NotificationSender {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationSender.class);
+
+    private static final int MAX_EMBEDS_PER_MESSAGE = 10;
+
+    private final ShardManager shards;
+    private final int queueCapacity;
+    private final Map<String, ChannelQueue> channels = new ConcurrentHashMap<>();
+
+    private final AtomicLong sentEmbeds = new AtomicLong();
+    private final AtomicLong sentMessages = new AtomicLong();
+    private final AtomicLong droppedEmbeds = new AtomicLong();
+    private final AtomicInteger undelivered = new AtomicInteger(); // Queued or being sent
+    private final AtomicLong totalLatencyMillis = new AtomicLong();
+    private volatile long lastLatencyMillis;
+    private volatile boolean running = true;
+
+    private final Histogram sendDuration = MetricsRegistry.DEFAULT.histogram("discord_send_duration_seconds",
+            "Time from queueing a notification until Discord accepted the message");
+    // Notion only has minute precision, so this is only accurate to a minute
+    private final Histogram notificationLag = MetricsRegistry.DEFAULT.histogram("notification_lag_seconds",
+            "Time from the edit in Notion until the notification was posted on Discord",
+            new double[]{30, 60, 120, 300, 600, 900, 1800, 3600});
+
+    public NotificationSender(ShardManager shards, int queueCapacity) {
+        this.shards = shards;
+        this.queueCapacity = Math.max(MAX_EMBEDS_PER_MESSAGE, queueCapacity);
+        MetricsRegistry.DEFAULT.gauge("discord_notification_queue_depth", "Notifications waiting to be sent to Discord", this::getQueueDepth);
+        MetricsRegistry.DEFAULT.counter("discord_notifications_sent_total", "Notification embeds sent to Discord", sentEmbeds::get);
+        MetricsRegistry.DEFAULT.counter("discord_notifications_dropped_total", "Notification embeds dropped because the queue was full", droppedEmbeds::get);
+    }
+
+    /**
+     * Queue an embed for sending.
+     *
+     * @return false if the channel's queue is full and the embed was dropped
+     */
+    public boolean submit(String channelId, MessageEmbed embed) {
+        return submit(channelId, embed, null);
+    }
+
+    /**
+     * Queue an embed for sending.
+     *
+     * @param sourceTime when the notified event happened, for measuring the notification lag
+     * @return false if the channel's queue is full and the embed was dropped
+     */
+    public boolean submit(String channelId, MessageEmbed embed, Instant sourceTime) {
+        return submit(channelId, embed, sourceTime, null);
+    }
+
+    /**
+     * Queue an embed for sending.
+     *
+     * @param sourceTime when the notified event happened, for measuring the notification lag
+     * @param delivered  called once Discord accepted the message, or sending it failed for good. Not called if the
+     *                   embed was dropped, or was still queued when the sender shut down
+     * @return false if the channel's queue is full and the embed was dropped
+     */
+    public boolean submit(String channelId, MessageEmbed embed, @Nullable Instant sourceTime, @Nullable Runnable delivered) {
+        ChannelQueue queue = channels.computeIfAbsent(channelId, ChannelQueue::new);
+        undelivered.incrementAndGet();
+        if (!queue.queue.offer(new Queued(embed, System.nanoTime(), sourceTime, delivered, false))) {
+            undelivered.decrementAndGet();
+            queue.dropped.incrementAndGet();
+            droppedEmbeds.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ChannelQueue queue : channels.values()) {
+            depth += queue.queue.size();
+        }
+        return depth;
+    }
+
+    public long getSentEmbeds() {
+        return sentEmbeds.get();
+    }
+
+    public long getSentMessages() {
+        return sentMessages.get();
+    }
+
+    public long getDroppedEmbeds() {
+        return droppedEmbeds.get();
+    }
+
+    /**
+     * Time from queueing the oldest embed of the last message until Discord accepted it
+     */
+    public long getLastSendLatencyMillis() {
+        return lastLatencyMillis;
+    }
+
+    public long getAverageSendLatencyMillis() {
+        long messages = sentMessages.get();
+        return messages == 0 ? 0 : totalLatencyMillis.get() / messages;
+    }
+
+    /**
+     * Send what is still queued, waiting at most until the timeout, then stop
+     */
+    public void shutdown(Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        try {
+            while (undelivered.get() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (undelivered.get() > 0) {
+            LOG.warn("{} notifications were not sent to Discord before shutting down", undelivered.get());
+        }
+        running = false;
+        channels.values().forEach(queue -> queue.thread.interrupt());
+    }
+
+    private class ChannelQueue {
+        private final String channelId;
+        private final BlockingQueue<Queued> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicLong dropped = new AtomicLong();
+        private final Thread thread;
+        private Queued carry; // Did not fit into the previous message anymore
+
+        private ChannelQueue(String channelId) {
+            this.channelId = channelId;
+            this.thread = Thread.ofVirtual().name("discord-sender-" + channelId).start(this::drain);
+        }
+
+        private void drain() {
+            while (running) {
+                List<Queued> batch;
+                try {
+                    batch = nextBatch();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                send(batch);
+            }
+        }
+
+        private List<Queued> nextBatch() throws InterruptedException {
+            List<Queued> batch = new ArrayList<>(MAX_EMBEDS_PER_MESSAGE);
+            int length = 0;
+            long droppedSinceLast = dropped.getAndSet(0);
+            if (droppedSinceLast > 0) {
+                MessageEmbed summary = new EmbedBuilder()
+                        .setColor(Color.GRAY)
+                        .setDescription(droppedSinceLast + " more notifications were skipped, too many changes at once")
+                        .setTimestamp(Instant.now())
+                        .build();
+                batch.add(new Queued(summary, System.nanoTime(), null, null, true));
+                length += summary.getLength();
+            }
+            Queued next = carry != null ? carry : (batch.isEmpty() ? queue.take() : queue.poll());
+            carry = null;
+            while (next != null) {
+                int embedLength = next.embed.getLength();
+                if (!batch.isEmpty() && length + embedLength > MessageEmbed.EMBED_MAX_LENGTH_BOT) {
+                    carry = next;
+                    break;
+                }
+                batch.add(next);
+                length += embedLength;
+                if (batch.size() >= MAX_EMBEDS_PER_MESSAGE) {
+                    break;
+                }
+                next = queue.poll();
+            }
+            return batch;
+        }
+
+        private void send(List<Queued> batch) {
+            if (!sendBatch(batch)) {
+                return; // Shutting down, we don't know if it went through
+            }
+            for (Queued queued : batch) {
+                delivered(queued);
+            }
+        }
+
+        /*
+         * Tell the submitter before it stops counting as undelivered, so shutdown waits for that too
+         */
+        private void delivered(Queued queued) {
+            if (queued.summary) {
+                return;
+            }
+            try {
+                if (queued.delivered != null) {
+                    queued.delivered.run();
+                }
+            } catch (RuntimeException e) {
+                LOG.error("Failed to confirm notification delivery", e);
+            } finally {
+                undelivered.decrementAndGet();
+            }
+        }
+
+        /*
+         * Returns false if sending was interrupted by the shutdown
+         */
+        private boolean sendBatch(List<Queued> batch) {
+            MessageChannel channel = shards.getTextChannelById(channelId);
+            if (channel == null) {
+                LOG.error("Notification channel {} not found, dropping {} notifications", channelId, batch.size());
+                return true;
+            }
+            List<MessageEmbed> embeds = batch.stream().map(Queued::embed).toList();
+            try {
+                channel.sendMessageEmbeds(embeds).complete(); // Blocks while JDA waits for the rate limit
+                sendDuration.observeSince(batch.getFirst().queuedAt);
+                Instant now = Instant.now();
+                for (Queued queued : batch) {
+                    if (queued.sourceTime != null) {
+                        notificationLag.observe(Math.max(0, Duration.between(queued.sourceTime, now).toMillis() / 1000.0));
+                    }
+                }
+                long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batch.getFirst().queuedAt);
+                lastLatencyMillis = latency;
+                totalLatencyMillis.addAndGet(latency);
+                sentMessages.incrementAndGet();
+                sentEmbeds.addAndGet(embeds.size());
+            } catch (Exception e) {
+                if (!running) {
+                    return false;
+                }
+                LOG.error("Failed to send {} notifications to channel {}", embeds.size(), channelId, e);
+            }
+            return true;
+        }
+    }
+
+    private record Queued(MessageEmbed embed, long queuedAt, Instant sourceTime, Runnable delivered, boolean summary) {
+    }
+}
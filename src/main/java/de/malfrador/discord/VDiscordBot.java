@@ -1,93 +1,103 @@
 package de.malfrador.discord;
 
 import de.malfrador.Main;
+import de.malfrador.StartupTimer;
 import de.malfrador.VConfig;
+import de.malfrador.VConfig.BotConfig.GuildSetup;
+import de.malfrador.metrics.MetricsRegistry;
 import de.malfrador.notion.VNotionManager;
+import de.malfrador.reporting.CompiledForm;
+import de.malfrador.reporting.DuplicateIndex;
+import de.malfrador.reporting.ReportOutbox;
 import de.malfrador.reporting.ReportingProperty;
+import de.malfrador.reporting.UploadedFile;
 import net.dv8tion.jda.api.JDA;
-import net.dv8tion.jda.api.JDABuilder;
+import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
 import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
-import net.dv8tion.jda.api.entities.emoji.Emoji;
 import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.events.session.ReadyEvent;
+import net.dv8tion.jda.api.exceptions.ErrorHandler;
+import net.dv8tion.jda.api.events.guild.GuildReadyEvent;
+import net.dv8tion.jda.api.events.interaction.GenericInteractionCreateEvent;
 import net.dv8tion.jda.api.events.interaction.ModalInteractionEvent;
+import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
 import net.dv8tion.jda.api.events.interaction.component.ButtonInteractionEvent;
 import net.dv8tion.jda.api.events.interaction.component.StringSelectInteractionEvent;
 import net.dv8tion.jda.api.hooks.EventListener;
-import net.dv8tion.jda.api.interactions.components.ActionRow;
-import net.dv8tion.jda.api.interactions.components.ItemComponent;
+import net.dv8tion.jda.api.interactions.InteractionHook;
+import net.dv8tion.jda.api.interactions.callbacks.IReplyCallback;
+import net.dv8tion.jda.api.interactions.commands.OptionMapping;
+import net.dv8tion.jda.api.interactions.commands.OptionType;
+import net.dv8tion.jda.api.interactions.commands.build.Commands;
 import net.dv8tion.jda.api.interactions.components.buttons.Button;
-import net.dv8tion.jda.api.interactions.components.selections.SelectOption;
-import net.dv8tion.jda.api.interactions.components.selections.StringSelectMenu;
-import net.dv8tion.jda.api.interactions.components.text.TextInput;
-import net.dv8tion.jda.api.interactions.components.text.TextInputStyle;
-import net.dv8tion.jda.api.interactions.modals.Modal;
+import net.dv8tion.jda.api.requests.ErrorResponse;
 import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import net.dv8tion.jda.api.utils.ChunkingFilter;
+import net.dv8tion.jda.api.utils.MarkdownSanitizer;
+import net.dv8tion.jda.api.utils.MemberCachePolicy;
 import net.dv8tion.jda.api.utils.messages.MessageCreateBuilder;
 import notion.api.v1.model.common.PropertyType;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
+import java.time.Duration;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * The Discord side of the bot. It runs on as many shards as Discord recommends (or {@code shard-count}), and can serve
+ * many guilds, each with its own reporting channel and form. Guilds that share a reporting database share the form.
+ * Reporting messages are set up per guild once its shard is ready, so startup doesn't wait for every shard.
+ */
 public class VDiscordBot implements EventListener {
 
     private static final Logger LOG = LoggerFactory.getLogger(VDiscordBot.class);
 
+    private static final String ATTACH_COMMAND = "attach";
+    private static final String ATTACH_OPTION = "file";
+    // Well below the 3 seconds Discord gives to acknowledge an interaction
+    private static final Duration UNHANDLED_INTERACTION_DELAY = Duration.ofMillis(2000);
+
     private final String token;
     private final VConfig config = Main.config;
-    private JDA jda;
+    private ShardManager shardManager;
+    private NotificationSender notificationSender;
     private final VNotionManager notionManager;
-    private final List<ReportingProperty> properties;
-    private final Map<String, Map<String, String>> selectedByDiscordUser = new HashMap<>();
+    private final Set<String> setUpGuilds = ConcurrentHashMap.newKeySet();
+    private final Map<String, Integer> uploading = new ConcurrentHashMap<>(); // Session key -> attachments being uploaded
+    private final FormSessionStore sessions = new FormSessionStore(Duration.ofMinutes(config.discord.formSessionIdleMinutes),
+            config.discord.formSessionMaxCount, config.discord.formSessionMaxMemoryKb * 1024L);
 
-    public VDiscordBot(String token, List<ReportingProperty> properties, VNotionManager notionManager) {
+    public VDiscordBot(String token, VNotionManager notionManager) {
         this.token = token;
-        this.properties = properties;
         this.notionManager = notionManager;
+        MetricsRegistry.DEFAULT.gauge("form_sessions_active", "Half-filled bug report forms", sessions::getActiveSessions);
+        MetricsRegistry.DEFAULT.gauge("form_sessions_bytes", "Estimated memory used by half-filled bug report forms", sessions::getEstimatedBytes);
         setup();
     }
 
     private void setup() {
         try {
-            jda = JDABuilder.createLight(token, EnumSet.of(GatewayIntent.GUILD_MESSAGES)).build();
-            jda.addEventListener(this);
-            jda.awaitReady();
-            MessageChannel reportingChannel = jda.getTextChannelById(config.discord.discordReportingChannelID);
-            if (reportingChannel == null) {
-                throw new RuntimeException("Failed to find reporting channel with ID " + config.discord.discordReportingChannelID + ", please check the config");
-            }
-            // Check if we have an existing message to use with the ID saved in the config
-            String configMsgID = config.discord.discordReportingMessageID;
-            Message message = null;
-            if (configMsgID != null && !configMsgID.isEmpty() && !configMsgID.equals("discord-reporting-message-id")) {
-                try {
-                    message = reportingChannel.retrieveMessageById(configMsgID).complete();
-                } catch (Exception e) {
-                    LOG.warn("Failed to retrieve existing reporting message with ID {}, it might have been deleted. Creating new message...", configMsgID);
-                }
-            }
-            if (message == null) {
-                LOG.info("No existing reporting message found, creating a new one");
-                MessageCreateBuilder builder = new MessageCreateBuilder();
-                builder.setContent(config.discordMessages.reportingText);
-                builder.setComponents(createSelectionsFromProperties());
-                reportingChannel.sendMessage(builder.build()).submit().thenAccept(msg -> {
-                    config.discord.discordReportingMessageID = msg.getId();
-                    config.saveConfig();
-                });
-            }
-
-            LOG.info("Discord bot ready and waiting");
-        } catch (InterruptedException e) {
-            LOG.error("Discord bot thread interrupted", e);
+            // We don't need members or presences, so keep the caches small no matter how many guilds there are
+            shardManager = DefaultShardManagerBuilder.createLight(token, EnumSet.of(GatewayIntent.GUILD_MESSAGES))
+                    .setShardsTotal(config.discord.shardCount)
+                    .setMemberCachePolicy(MemberCachePolicy.NONE)
+                    .setChunkingFilter(ChunkingFilter.NONE)
+                    .addEventListeners(this)
+                    .build();
+            notificationSender = new NotificationSender(shardManager, config.discord.notificationQueueSize);
+            MetricsRegistry.DEFAULT.gauge("discord_guilds", "Guilds the bot is in", () -> shardManager.getGuildCache().size());
+            LOG.info("Discord bot started with {} shards for {} guild setups", shardManager.getShardsTotal(), config.guilds().size());
         } catch (Exception e) {
             LOG.error("Failed to start Discord bot", e);
         }
@@ -95,162 +105,327 @@ public class VDiscordBot implements EventListener {
 
     @Override
     public void onEvent(@NotNull GenericEvent event) {
+        if (event instanceof ReadyEvent && shardManager != null
+                && shardManager.getShardCache().stream().allMatch(shard -> shard.getStatus() == JDA.Status.CONNECTED)) {
+            StartupTimer.milestone("discord-ready");
+        }
+        if (!notionManager.handlesDiscord()) {
+            if (event instanceof IReplyCallback interaction) {
+                answerIfUnhandled(interaction);
+            }
+            return; // Another instance takes care of it
+        }
+        if (event instanceof GuildReadyEvent readyEvent) {
+            setupGuild(readyEvent.getGuild());
+            return;
+        }
+        String type = switch (event) {
+            case ButtonInteractionEvent ignored -> "button";
+            case StringSelectInteractionEvent ignored -> "select";
+            case ModalInteractionEvent ignored -> "modal";
+            case SlashCommandInteractionEvent ignored -> "command";
+            default -> null;
+        };
+        if (type == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            handleInteraction(event);
+        } finally {
+            MetricsRegistry.DEFAULT.histogram("discord_interaction_duration_seconds", "Time taken to handle a Discord interaction",
+                    "type", type).observeSince(start);
+        }
+    }
+
+    /*
+     * The instance that answers interactions acknowledges them right away. If none did after a while, e.g. because it
+     * stopped and its lease has not run out yet, tell the user instead of letting the interaction fail silently
+     */
+    private static void answerIfUnhandled(IReplyCallback interaction) {
+        interaction.reply("The bot is restarting, please try again in a moment").setEphemeral(true)
+                .queueAfter(UNHANDLED_INTERACTION_DELAY.toMillis(), TimeUnit.MILLISECONDS, null,
+                        new ErrorHandler().ignore(ErrorResponse.INTERACTION_ALREADY_ACKNOWLEDGED, ErrorResponse.UNKNOWN_INTERACTION));
+    }
+
+    /**
+     * Set up all guilds that are ready, after this instance took over answering interactions from another one
+     */
+    public void setupGuilds() {
+        if (shardManager != null && notionManager.handlesDiscord()) {
+            shardManager.getGuildCache().forEach(this::setupGuild);
+        }
+    }
+
+    /*
+     * Make sure the guild has its reporting message. Everything here is queued, so the shard's event thread is not blocked.
+     */
+    private void setupGuild(Guild guild) {
+        GuildSetup setup = config.guild(guild.getId());
+        if (setup == null || setUpGuilds.contains(guild.getId())) {
+            return;
+        }
+        MessageChannel reportingChannel = guild.getTextChannelById(setup.reportingChannelId);
+        if (reportingChannel == null) {
+            if (setup.guildId != null) { // Without a guilds section, only one of the guilds has the channel
+                LOG.error("Failed to find reporting channel with ID {} in guild {}, please check the config", setup.reportingChannelId, guild.getId());
+            }
+            return;
+        }
+        CompiledForm form = notionManager.getForm(setup.notionDatabaseUUID);
+        if (form == null) {
+            LOG.debug("Reporting database {} of guild {} is not loaded yet, setting up once it is", setup.notionDatabaseUUID, guild.getId());
+            return;
+        }
+        if (!setUpGuilds.add(guild.getId())) {
+            return; // Set up at the same time by setupGuilds
+        }
+        if (form.attachmentProperty() != null) {
+            registerAttachCommand(guild);
+        }
+        // Check if we have an existing message to use with the ID saved in the config
+        if (!setup.hasReportingMessage()) {
+            sendReportingMessage(guild, setup, reportingChannel, form);
+            return;
+        }
+        reportingChannel.retrieveMessageById(setup.reportingMessageId).queue(
+                message -> LOG.info("Guild {} ready and waiting", guild.getId()),
+                error -> {
+                    LOG.warn("Failed to retrieve existing reporting message with ID {}, it might have been deleted. Creating new message...", setup.reportingMessageId);
+                    sendReportingMessage(guild, setup, reportingChannel, form);
+                });
+    }
+
+    private void registerAttachCommand(Guild guild) {
+        guild.upsertCommand(Commands.slash(ATTACH_COMMAND, "Attach a screenshot or log file to your bug report")
+                        .addOption(OptionType.ATTACHMENT, ATTACH_OPTION, "The file to attach", true))
+                .queue(null, error -> LOG.error("Failed to register the /{} command in guild {}", ATTACH_COMMAND, guild.getId(), error));
+    }
+
+    private void sendReportingMessage(Guild guild, GuildSetup setup, MessageChannel reportingChannel, CompiledForm form) {
+        LOG.info("No existing reporting message found in channel {}, creating a new one", reportingChannel.getId());
+        MessageCreateBuilder builder = new MessageCreateBuilder();
+        builder.setContent(config.discordMessages.reportingText);
+        builder.setComponents(form.rows());
+        reportingChannel.sendMessage(builder.build()).queue(msg -> config.setReportingMessageId(setup, msg.getId()),
+                error -> {
+                    setUpGuilds.remove(guild.getId()); // Try again next time the guild becomes ready
+                    LOG.error("Failed to create reporting message in channel {}", reportingChannel.getId(), error);
+                });
+    }
+
+    private void handleInteraction(GenericEvent event) {
+        GenericInteractionCreateEvent interaction = (GenericInteractionCreateEvent) event;
+        Guild guild = interaction.getGuild();
+        GuildSetup setup = guild == null ? null : config.guild(guild.getId());
+        // The form might be swapped out while we are handling this, so we keep using this one
+        CompiledForm form = setup == null ? null : notionManager.getForm(setup.notionDatabaseUUID);
+        if (form == null) {
+            ((IReplyCallback) event).reply("Reporting is not set up in this server").setEphemeral(true).queue();
+            return;
+        }
+        // Users can fill in forms in several guilds at the same time
+        String sessionKey = guild.getId() + ":" + interaction.getUser().getId();
+        if (event instanceof SlashCommandInteractionEvent commandEvent) {
+            if (commandEvent.getName().equals(ATTACH_COMMAND)) {
+                attach(commandEvent, form, sessionKey);
+            }
+            return;
+        }
         if (event instanceof ButtonInteractionEvent buttonInteractionEvent) {
-            if (buttonInteractionEvent.getComponentId().equals("finishReport")) {
-                Map<String, String> properties = selectedByDiscordUser.get(buttonInteractionEvent.getUser().getId());
-                if (properties == null) {
-                    buttonInteractionEvent.reply("You have not selected any properties yet").setEphemeral(true).queue();
-                    return;
-                }
-                // Insert the properties into the Notion database
-                Map<String, String> props = selectedByDiscordUser.get(buttonInteractionEvent.getUser().getId());
-                props.put("Name", buttonInteractionEvent.getUser().getAsTag());
-                notionManager.insertIntoDatabase(props);
-                buttonInteractionEvent.reply("Report submitted!").setEphemeral(true).queue();
+            String componentId = buttonInteractionEvent.getComponentId();
+            if (componentId.equals(CompiledForm.FINISH_BUTTON_ID) || componentId.equals(CompiledForm.SUBMIT_ANYWAY_BUTTON_ID)) {
+                finish(buttonInteractionEvent, setup, sessionKey, componentId.equals(CompiledForm.FINISH_BUTTON_ID));
             } else {
                 // Check if this is a RichText property button
-                ReportingProperty property = properties.stream()
-                        .filter(p -> p.id().equals(buttonInteractionEvent.getComponentId()))
-                        .findFirst()
-                        .orElse(null);
+                ReportingProperty property = form.property(buttonInteractionEvent.getComponentId());
 
                 if (property != null && property.type() == PropertyType.RichText) {
-                    // Create a modal for the user to enter text. This is a workaround for the lack of text input in normal components
-                    TextInput textInput = TextInput.create(property.id(), property.id(), TextInputStyle.PARAGRAPH)
-                            .setPlaceholder("Enter your text here...")
-                            .setMinLength(1)
-                            .setMaxLength(2000)
-                            .build();
-
-                    Modal modal = Modal.create("text_" + property.id(), "Enter " + property.id())
-                            .addActionRow(textInput)
-                            .build();
-
-                    buttonInteractionEvent.replyModal(modal).queue();
+                    buttonInteractionEvent.replyModal(form.modal(property.id())).queue();
                     return;
                 }
 
-                selectForUser(buttonInteractionEvent.getUser().getId(), buttonInteractionEvent.getComponentId(), buttonInteractionEvent.getComponentId());
+                selectForUser(sessionKey, buttonInteractionEvent.getComponentId(), buttonInteractionEvent.getComponentId());
                 buttonInteractionEvent.deferEdit().queue();
             }
         }
         if (event instanceof StringSelectInteractionEvent selectInteractionEvent) {
-            selectForUser(selectInteractionEvent.getUser().getId(), selectInteractionEvent.getComponentId(), selectInteractionEvent.getSelectedOptions().get(0).getValue());
+            selectForUser(sessionKey, selectInteractionEvent.getComponentId(), selectInteractionEvent.getSelectedOptions().get(0).getValue());
             selectInteractionEvent.deferEdit().queue();
             // If all properties are selected, enable the finish button
-            if (selectedByDiscordUser.get(selectInteractionEvent.getUser().getId()).size() == properties.size()) {
-                updateComponentsWithSelections(selectInteractionEvent.getMessage(), selectInteractionEvent.getUser().getId());
-            }
+            updateComponentsWithSelections(form, selectInteractionEvent.getMessage(), sessionKey);
         }
         if (event instanceof ModalInteractionEvent modalEvent) {
-            String propertyId = modalEvent.getModalId().substring(5); // Remove "text_" prefix
+            String propertyId = modalEvent.getModalId().substring(CompiledForm.MODAL_PREFIX.length());
             String text = modalEvent.getValue(propertyId).getAsString();
 
-            selectForUser(modalEvent.getUser().getId(), propertyId, text);
+            selectForUser(sessionKey, propertyId, text);
             modalEvent.deferEdit().queue();
 
             // Check if all properties are now selected
-            if (selectedByDiscordUser.get(modalEvent.getUser().getId()).size() == properties.size()) {
-                Message message = modalEvent.getMessage();
-                if (message != null) {
-                    updateComponentsWithSelections(message, modalEvent.getUser().getId());
-                }
+            Message message = modalEvent.getMessage();
+            if (message != null) {
+                updateComponentsWithSelections(form, message, sessionKey);
             }
         }
     }
 
-    /**
-     * Update the message components with the user's selections.
-     * The user would not be able to see what they have selected after we update the message otherwise.
+    /*
+     * Submit the user's report, unless reports that look like it exist already. Those are shown to the user instead,
+     * who can submit anyway if theirs is a different bug
      */
-    private void updateComponentsWithSelections(Message message, String userId) {
-        List<ActionRow> updatedRows = new ArrayList<>();
-        Map<String, String> userSelections = selectedByDiscordUser.get(userId);
+    private void finish(ButtonInteractionEvent event, GuildSetup setup, String sessionKey, boolean checkDuplicates) {
+        Map<String, String> props = sessions.get(sessionKey); // This is a copy
+        String submissionId = sessions.submissionId(sessionKey);
+        if (props == null || submissionId == null) {
+            event.reply("You have not selected any properties yet").setEphemeral(true).queue();
+            return;
+        }
+        if (uploading.containsKey(sessionKey)) {
+            event.reply("Your attachments are still uploading, please try again in a moment").setEphemeral(true).queue();
+            return;
+        }
+        if (checkDuplicates) {
+            List<DuplicateIndex.Match> matches = notionManager.findDuplicates(setup.notionDatabaseUUID, props);
+            if (!matches.isEmpty()) {
+                event.reply(possibleDuplicates(matches)).setEphemeral(true)
+                        .addActionRow(Button.secondary(CompiledForm.SUBMIT_ANYWAY_BUTTON_ID, "Submit anyway"))
+                        .queue();
+                return;
+            }
+        }
+        // Store the report, it is inserted into the Notion database in the background
+        props.put("Name", event.getUser().getAsTag());
+        ReportOutbox.Result result;
+        try {
+            result = notionManager.submitReport(submissionId, setup.notionDatabaseUUID, props);
+        } catch (Exception e) {
+            LOG.error("Failed to store bug report from {}", event.getUser().getId(), e);
+            event.reply("Failed to submit your report, please try again").setEphemeral(true).queue();
+            return;
+        }
+        sessions.complete(sessionKey);
+        event.reply(result == ReportOutbox.Result.DUPLICATE ? "This report was already submitted" : "Report submitted!")
+                .setEphemeral(true).queue();
+    }
 
-        for (ActionRow row : message.getActionRows()) {
-            List<ItemComponent> components = new ArrayList<>();
-            for (var component : row.getComponents()) {
-                if (component instanceof Button button && button.getId().equals("finishReport")) {
-                    components.add(button.asEnabled());
-                } else if (component instanceof StringSelectMenu menu) {
-                    String selectedValue = userSelections.get(menu.getId());
-                    if (selectedValue != null) {
-                        components.add(menu.createCopy()
-                                .setDefaultValues(Collections.singleton(selectedValue))
-                                .build());
-                    } else {
-                        components.add(component);
-                    }
-                } else {
-                    components.add(component);
-                }
+    private static String possibleDuplicates(List<DuplicateIndex.Match> matches) {
+        StringBuilder message = new StringBuilder("Your report looks like these existing ones, please check if your bug was already reported:");
+        for (DuplicateIndex.Match match : matches) {
+            String label = match.label().isEmpty() ? "Untitled" : MarkdownSanitizer.escape(match.label()).replace("[", "(").replace("]", ")");
+            message.append("\n- [").append(label).append("](<").append(match.url()).append(">) (")
+                    .append(Math.round(match.similarity() * 100)).append("% similar)");
+        }
+        return message.toString();
+    }
+
+    /*
+     * Upload the file the user attached to the command into Notion, off the event thread. It is added to the user's
+     * form once it is uploaded, and attached to the page when the report is submitted.
+     */
+    private void attach(SlashCommandInteractionEvent event, CompiledForm form, String sessionKey) {
+        String property = form.attachmentProperty();
+        Message.Attachment attachment = event.getOption(ATTACH_OPTION, OptionMapping::getAsAttachment);
+        if (property == null || attachment == null) {
+            event.reply("Attachments are not enabled in this server").setEphemeral(true).queue();
+            return;
+        }
+        if (attachment.getSize() > config.notion.attachmentMaxSizeMb * 1024L * 1024L) {
+            event.reply(attachment.getFileName() + " is too large, files can be at most " + config.notion.attachmentMaxSizeMb + " MB")
+                    .setEphemeral(true).queue();
+            return;
+        }
+        // Check and count the upload in one step, so two /attach at the same time can't both take the last slot.
+        // A finished upload is added to the form before it stops counting, so it is never missed in between
+        AtomicBoolean accepted = new AtomicBoolean();
+        uploading.compute(sessionKey, (key, count) -> {
+            int running = count == null ? 0 : count;
+            Map<String, String> selections = sessions.get(sessionKey);
+            int attached = selections == null ? 0 : UploadedFile.decode(selections.get(property)).size();
+            if (attached + running >= config.notion.attachmentMaxCount) {
+                return count;
             }
-            updatedRows.add(ActionRow.of(components));
+            accepted.set(true);
+            return running + 1;
+        });
+        if (!accepted.get()) {
+            event.reply("You can attach at most " + config.notion.attachmentMaxCount + " files to a report").setEphemeral(true).queue();
+            return;
         }
-        message.editMessageComponents(updatedRows).queue();
+        event.deferReply(true).queue();
+        InteractionHook hook = event.getHook();
+        notionManager.uploadAttachment(attachment.getUrl(), attachment.getFileName(), attachment.getContentType(), attachment.getSize())
+                .whenComplete((file, error) -> {
+                    if (error == null) {
+                        sessions.add(sessionKey, property, file.encode());
+                    }
+                    uploading.computeIfPresent(sessionKey, (key, count) -> count > 1 ? count - 1 : null);
+                    if (error != null) {
+                        LOG.warn("Failed to upload attachment {} from {}", attachment.getFileName(), event.getUser().getId(), error);
+                        hook.editOriginal("Failed to upload " + attachment.getFileName() + ", please try again").queue();
+                        return;
+                    }
+                    hook.editOriginal("Attached " + attachment.getFileName() + " to your report").queue();
+                });
     }
 
     /**
-     * Store the selected property for a Discord user in a map
+     * Update the message components with the user's selections, once they filled in every property.
+     * The user would not be able to see what they have selected after we update the message otherwise.
      */
-    private void selectForUser(String userId, String notionPropId, String value) {
-        Map<String, String> userSelections =
-                selectedByDiscordUser.computeIfAbsent(userId, k -> new HashMap<>());
-        userSelections.put(notionPropId, value);
+    private void updateComponentsWithSelections(CompiledForm form, Message message, String sessionKey) {
+        if (sessions.selectedCount(sessionKey) < form.size()) {
+            return; // Cheap check before copying the selections
+        }
+        Map<String, String> userSelections = sessions.get(sessionKey);
+        if (!form.isComplete(userSelections)) {
+            return; // Not done yet, or expired in the meantime
+        }
+        message.editMessageComponents(form.rowsWithSelections(userSelections)).queue();
     }
 
+    /**
+     * Store the selected property for a Discord user in their form session
+     */
+    private void selectForUser(String sessionKey, String notionPropId, String value) {
+        sessions.select(sessionKey, notionPropId, value);
+    }
 
     /**
-     * Create Discord selection components based on the properties available in the Notion database
+     * Show the new form in the reporting messages of all guilds that use the database, after the Notion schema changed.
+     * Interactions that are handled right now keep using the form they started with.
      */
-    private Collection<ActionRow> createSelectionsFromProperties() {
-        List<ActionRow> rows = new ArrayList<>();
-        for (ReportingProperty property : properties) {
-            ActionRow row = null;
-            switch (property.type()) {
-                case Select:
-                    List<SelectOption> options = new ArrayList<>();
-                    if (property.availableValues() == null) {
-                        LOG.warn("Select property {} has no options. Add some in the Notion database", property.id());
-                        break;
-                    }
-                    for (String value : property.availableValues()) {
-                        options.add(SelectOption.of(value, value));
-                    }
-                    row = ActionRow.of(
-                            StringSelectMenu.create(property.id())
-                                    .addOptions(options)
-                                    .setPlaceholder(property.id())
-                                    .build()
-                    );
-                    break;
-                case Checkbox:
-                    row = ActionRow.of(
-                            StringSelectMenu.create(property.id())
-                                    .addOption("Yes", "yes")
-                                    .addOption("No", "no")
-                                    .setPlaceholder(property.id())
-                                    .build()
-                    );
-                    break;
-                case RichText:
-                    row = ActionRow.of(
-                            Button.primary(property.id(), property.id())
-                                    .withEmoji(Emoji.fromUnicode("📝"))
-                    );
-                default:
-                    break;
+    public void updateForm(String databaseId, CompiledForm updated) {
+        if (!notionManager.handlesDiscord()) {
+            return; // The instance that answers interactions updates the messages
+        }
+        for (GuildSetup setup : config.guilds()) {
+            if (!setup.notionDatabaseUUID.equals(databaseId)) {
+                continue;
+            }
+            TextChannel reportingChannel = shardManager.getTextChannelById(setup.reportingChannelId);
+            if (reportingChannel == null || !setup.hasReportingMessage()) {
+                LOG.warn("Reporting message in channel {} not found, the updated form will show up once it is created", setup.reportingChannelId);
+                continue;
             }
-            rows.add(row);
+            if (updated.attachmentProperty() != null) {
+                registerAttachCommand(reportingChannel.getGuild()); // In case the Files property was just added
+            }
+            reportingChannel.editMessageComponentsById(setup.reportingMessageId, updated.rows()).queue(
+                    message -> LOG.info("Updated reporting message in channel {} with {} properties", setup.reportingChannelId, updated.size()),
+                    error -> LOG.error("Failed to update reporting message in channel {}", setup.reportingChannelId, error));
         }
-        Button finishButton = Button.primary("finishReport", "Finish report")
-                .withEmoji(Emoji.fromUnicode("✅"))
-                .asDisabled();
-        rows.add(ActionRow.of(finishButton));
-        return rows;
     }
 
-    public JDA getJda() {
-        return jda;
+    public ShardManager getShardManager() {
+        return shardManager;
+    }
+
+    public NotificationSender getNotificationSender() {
+        return notificationSender;
+    }
+
+    public FormSessionStore getSessions() {
+        return sessions;
     }
 }
@@ -0,0 +1,26 @@
+package de.malfrador.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A value that only goes up. Cheap to increment from many threads at once.
+ */
+public final class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    Counter() {
+    }
+
+    public void inc() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
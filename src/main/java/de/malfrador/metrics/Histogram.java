@@ -0,0 +1,75 @@
+package de.malfrador.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of observed values (usually durations in seconds) over fixed buckets, like Prometheus expects them.
+ * Observing a value only touches one bucket counter plus sum and count, without any locking.
+ */
+public final class Histogram {
+
+    /**
+     * Suits API calls and handler durations, from a few milliseconds up to minutes
+     */
+    public static final double[] DEFAULT_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120};
+
+    private final double[] bounds;
+    private final LongAdder[] buckets; // Not cumulative, the last one is +Inf
+    private final DoubleAdder sum = new DoubleAdder();
+    private final LongAdder count = new LongAdder();
+
+    Histogram(double[] bounds) {
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void observe(double value) {
+        int index = 0;
+        while (index < bounds.length && value > bounds[index]) {
+            index++;
+        }
+        buckets[index].increment();
+        sum.add(value);
+        count.increment();
+    }
+
+    /**
+     * Observe the time passed since {@code startNanos} (from {@link System#nanoTime()}), in seconds
+     */
+    public void observeSince(long startNanos) {
+        observe((System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * @return the upper bounds of the buckets, without +Inf
+     */
+    public double[] bounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * @return the cumulative count of each bucket, the last one being +Inf
+     */
+    public long[] cumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    public double getSum() {
+        return sum.sum();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+}
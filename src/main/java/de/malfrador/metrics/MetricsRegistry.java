@@ -0,0 +1,168 @@
+package de.malfrador.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * All metrics of the bot, rendered in the Prometheus text format by {@link MetricsServer}.
+ * Metrics are created on first use and looked up by name and labels afterwards, so hot paths should keep the
+ * returned counter or histogram around if the labels don't change.
+ */
+public final class MetricsRegistry {
+
+    public static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    /**
+     * @param labels label names and values, alternating
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER).metrics.computeIfAbsent(labelString(labels), key -> new Counter());
+    }
+
+    /**
+     * Register a count that is kept elsewhere and read whenever the metrics are scraped. It must never go down
+     */
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, Type.COUNTER).metrics.put(labelString(labels), value);
+    }
+
+    public Histogram histogram(String name, String help, String... labels) {
+        return histogram(name, help, Histogram.DEFAULT_BUCKETS, labels);
+    }
+
+    public Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return (Histogram) family(name, help, Type.HISTOGRAM).metrics.computeIfAbsent(labelString(labels), key -> new Histogram(buckets));
+    }
+
+    /**
+     * Register a value that is read whenever the metrics are scraped, e.g. a queue size
+     */
+    public void gauge(String name, String help, Supplier<? extends Number> value, String... labels) {
+        family(name, help, Type.GAUGE).metrics.put(labelString(labels), value);
+    }
+
+    /**
+     * Stop reporting one labelled series, e.g. of a database that is no longer polled, so its value is not kept alive
+     */
+    public void remove(String name, String... labels) {
+        Family family = families.get(name);
+        if (family != null) {
+            family.metrics.remove(labelString(labels));
+        }
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(type, help));
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+        }
+        return family;
+    }
+
+    /**
+     * Render all metrics in the Prometheus text exposition format (version 0.0.4)
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        new TreeMap<>(families).forEach((name, family) -> {
+            out.append("# HELP ").append(name).append(' ').append(family.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type.name().toLowerCase(Locale.ROOT)).append('\n');
+            new TreeMap<>(family.metrics).forEach((labels, metric) -> {
+                switch (family.type) {
+                    case COUNTER -> sample(out, name, labels, metric instanceof Counter counter ? counter.get() : ((LongSupplier) metric).getAsLong());
+                    case GAUGE -> {
+                        Number value;
+                        try {
+                            @SuppressWarnings("unchecked")
+                            Supplier<? extends Number> supplier = (Supplier<? extends Number>) metric;
+                            value = supplier.get();
+                        } catch (Exception e) {
+                            value = null;
+                        }
+                        if (value != null) {
+                            sample(out, name, labels, value);
+                        }
+                    }
+                    case HISTOGRAM -> {
+                        Histogram histogram = (Histogram) metric;
+                        double[] bounds = histogram.bounds();
+                        long[] counts = histogram.cumulativeCounts();
+                        for (int i = 0; i < counts.length; i++) {
+                            String le = i < bounds.length ? formatDouble(bounds[i]) : "+Inf";
+                            sample(out, name + "_bucket", withLabel(labels, "le", le), counts[i]);
+                        }
+                        sample(out, name + "_sum", labels, histogram.getSum());
+                        sample(out, name + "_count", labels, counts[counts.length - 1]);
+                    }
+                }
+            });
+        });
+        return out.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, Number value) {
+        out.append(name).append(labels).append(' ');
+        if (value instanceof Double || value instanceof Float) {
+            out.append(formatDouble(value.doubleValue()));
+        } else {
+            out.append(value.longValue());
+        }
+        out.append('\n');
+    }
+
+    private static String formatDouble(double value) {
+        if (value == (long) value) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String labelString(String... labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be given as name/value pairs");
+        }
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return builder.append('}').toString();
+    }
+
+    private static String withLabel(String labels, String name, String value) {
+        String label = name + "=\"" + value + "\"";
+        return labels.isEmpty() ? "{" + label + "}" : labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static String escape(String value) {
+        return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private enum Type {
+        COUNTER,
+        GAUGE,
+        HISTOGRAM
+    }
+
+    private static final class Family {
+        private final Type type;
+        private final String help;
+        private final Map<String, Object> metrics = new ConcurrentHashMap<>();
+
+        private Family(Type type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package de.malfrador.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the metrics over HTTP for Prometheus to scrape, at {@code /metrics}.
+ * Bind it to localhost unless you really want the metrics to be public.
+ */
+public class MetricsServer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsServer.class);
+
+    private final MetricsRegistry registry;
+    private HttpServer server;
+
+    public MetricsServer(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void start(String bindAddress, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        server.setExecutor(Executors.newSingleThreadExecutor(Thread.ofPlatform().name("metrics-http").daemon().factory()));
+        server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        LOG.info("Serving metrics on http://{}:{}/metrics", bindAddress, port);
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+}
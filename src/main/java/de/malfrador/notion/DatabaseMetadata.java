@@ -0,0 +1,44 @@
+package de.malfrador.notion;
+
+import notion.api.v1.model.databases.Database;
+import notion.api.v1.model.databases.DatabaseProperty;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The parts of a Notion database we need over and over again: its title, the property schema and the select options
+ * of every Select property, indexed by name.
+ */
+public record DatabaseMetadata(String id, String title, Map<String, DatabaseProperty> properties,
+                               Map<String, Map<String, DatabaseProperty.Select.Option>> selectOptions) {
+
+    public static DatabaseMetadata of(Database database) {
+        String title = database.getTitle().stream()
+                .findFirst()
+                .map(t -> t.getPlainText())
+                .orElse("Unknown Database");
+        // Keep Notion's order, the reporting form shows properties and options in that order
+        Map<String, Map<String, DatabaseProperty.Select.Option>> selectOptions = new LinkedHashMap<>();
+        database.getProperties().forEach((name, property) -> {
+            if (property.getSelect() == null || property.getSelect().getOptions() == null) {
+                return;
+            }
+            Map<String, DatabaseProperty.Select.Option> options = new LinkedHashMap<>();
+            for (DatabaseProperty.Select.Option option : property.getSelect().getOptions()) {
+                if (option.getName() != null) {
+                    options.putIfAbsent(option.getName(), option);
+                }
+            }
+            selectOptions.put(name, Collections.unmodifiableMap(options));
+        });
+        return new DatabaseMetadata(database.getId(), title, Collections.unmodifiableMap(new LinkedHashMap<>(database.getProperties())),
+                Collections.unmodifiableMap(selectOptions));
+    }
+
+    public DatabaseProperty.Select.Option selectOption(String property, String optionName) {
+        Map<String, DatabaseProperty.Select.Option> options = selectOptions.get(property);
+        return options == null ? null : options.get(optionName);
+    }
+}
@@ -0,0 +1,147 @@
+package de.malfrador.notion;
+
+import notion.api.v1.model.databases.Database;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Caches database metadata, so we don't have to ask Notion for the same database title and schema for every single
+ * page notification. Entries expire after a fixed TTL, and the least recently used entry is dropped once the cache
+ * is full. Concurrent misses for the same database share a single request.
+ */
+public class DatabaseMetadataCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DatabaseMetadataCache.class);
+
+    private final Function<String, Database> loader;
+    private final long ttlNanos;
+    private final int maxSize;
+    private final Map<String, CompletableFuture<DatabaseMetadata>> loading = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public DatabaseMetadataCache(Function<String, Database> loader, Duration ttl, int maxSize) {
+        this.loader = loader;
+        this.ttlNanos = ttl.toNanos();
+        this.maxSize = Math.max(1, maxSize);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) { // Access order, so the eldest entry is the least recently used
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > DatabaseMetadataCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the metadata of a database, loading it from Notion if it is not cached or has expired
+     */
+    public DatabaseMetadata get(String databaseId) {
+        return get(databaseId, loader);
+    }
+
+    /**
+     * Same as {@link #get(String)}, but loads a missing entry with a different loader, e.g. one with a higher priority
+     */
+    public DatabaseMetadata get(String databaseId, Function<String, Database> loader) {
+        long now = System.nanoTime();
+        synchronized (entries) {
+            Entry entry = entries.get(databaseId);
+            if (entry != null && now - entry.loadedAt < ttlNanos) {
+                hits.incrementAndGet();
+                return entry.metadata;
+            }
+        }
+        misses.incrementAndGet();
+        CompletableFuture<DatabaseMetadata> future = new CompletableFuture<>();
+        CompletableFuture<DatabaseMetadata> existing = loading.putIfAbsent(databaseId, future);
+        if (existing != null) {
+            return join(existing); // Someone else is already loading it
+        }
+        try {
+            DatabaseMetadata metadata = DatabaseMetadata.of(loader.apply(databaseId));
+            put(databaseId, metadata);
+            future.complete(metadata);
+            return metadata;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(databaseId, future);
+        }
+    }
+
+    /**
+     * Store metadata we got from somewhere else, e.g. the reporting database retrieved on startup
+     *
+     * @param databaseId the ID the database is looked up by. Notion's own ID has dashes, the config's usually doesn't
+     */
+    public DatabaseMetadata put(String databaseId, Database database) {
+        DatabaseMetadata metadata = DatabaseMetadata.of(database);
+        put(databaseId, metadata);
+        return metadata;
+    }
+
+    public void invalidate(String databaseId) {
+        synchronized (entries) {
+            entries.remove(databaseId);
+        }
+    }
+
+    private void put(String databaseId, DatabaseMetadata metadata) {
+        synchronized (entries) {
+            entries.put(databaseId, new Entry(metadata, System.nanoTime()));
+        }
+    }
+
+    private static DatabaseMetadata join(CompletableFuture<DatabaseMetadata> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void logStats() {
+        LOG.info("Database metadata cache: {} entries, {} hits, {} misses, {} evictions", size(), getHits(), getMisses(), getEvictions());
+    }
+
+    private record Entry(DatabaseMetadata metadata, long loadedAt) {
+    }
+}
@@ -0,0 +1,186 @@
+package de.malfrador.notion;
+
+import de.malfrador.metrics.MetricsRegistry;
+import de.malfrador.notion.NotionRateLimiter.Priority;
+import notion.api.v1.NotionClient;
+import notion.api.v1.model.databases.query.sort.QuerySort;
+import notion.api.v1.model.databases.query.sort.QuerySortDirection;
+import notion.api.v1.model.databases.query.sort.QuerySortTimestamp;
+import notion.api.v1.model.pages.Page;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Asks Notion which pages of a database changed since the last poll, and hands every change to {@code changes}.
+ * How far each database has been polled is kept in the {@link WatermarkStore}.
+ */
+public class DatabasePoller {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DatabasePoller.class);
+
+    private static final int MAX_PAGE_SIZE = 100; // Notion does not return more than 100 results per request
+
+    private final NotionClient client;
+    private final NotionRateLimiter rateLimiter;
+    private final SlimDatabaseQuery slimQuery;
+    private final WatermarkStore watermarks;
+    private final SyncWatermark initialWatermark;
+    private final boolean incrementalSync;
+    private final int querySize;
+    private final Consumer<PageChange> changes;
+
+    /**
+     * @param initialWatermark where to start for databases that were never polled before
+     * @param slimQuery        used for incremental sync if not null, otherwise the SDK's query
+     * @param querySize        how many of the newest pages to look at if incremental sync is disabled
+     */
+    public DatabasePoller(NotionClient client, NotionRateLimiter rateLimiter, @Nullable SlimDatabaseQuery slimQuery,
+                          WatermarkStore watermarks, SyncWatermark initialWatermark, boolean incrementalSync, int querySize,
+                          Consumer<PageChange> changes) {
+        this.client = client;
+        this.rateLimiter = rateLimiter;
+        this.slimQuery = slimQuery;
+        this.watermarks = watermarks;
+        this.initialWatermark = initialWatermark;
+        this.incrementalSync = incrementalSync;
+        this.querySize = querySize;
+        this.changes = changes;
+    }
+
+    /**
+     * Query notion for new pages in the database.
+     * If a new page is found, notify Discord
+     *
+     * @return the number of changed pages found
+     */
+    public int poll(String databaseId) {
+        long start = System.nanoTime();
+        try {
+            if (incrementalSync) {
+                return syncChangedPages(databaseId);
+            } else {
+                return checkNewestPages(databaseId);
+            }
+        } finally {
+            MetricsRegistry.DEFAULT.histogram("notion_poll_duration_seconds", "Time taken to poll one database",
+                    "database", databaseId).observeSince(start);
+        }
+    }
+
+    /*
+     * Only ask Notion for pages edited since the watermark, oldest first, and follow the cursor until we are caught up.
+     * Quiet ticks transfer (almost) nothing, and bursts larger than one page of results are not dropped.
+     */
+    private int syncChangedPages(String databaseId) {
+        SyncWatermark watermark = watermarkOf(databaseId);
+
+        var sort = new QuerySort();
+        sort.setTimestamp(QuerySortTimestamp.LastEditedTime);
+        sort.setDirection(QuerySortDirection.Ascending);
+        List<QuerySort> sorts = Collections.singletonList(sort);
+        Instant filterTime = watermark.lastEdited();
+        LastEditedTimeFilter filter = LastEditedTimeFilter.onOrAfter(filterTime);
+
+        Instant newest = watermark.lastEdited();
+        Set<String> pagesAtNewest = new HashSet<>(watermark.pagesAtLastEdited());
+        int detected = 0;
+        String cursor = null;
+        try {
+            do {
+                String startCursor = cursor;
+                Batch batch;
+                if (slimQuery != null) {
+                    var results = rateLimiter.execute(Priority.BACKGROUND, "databases.query",
+                            () -> slimQuery.changedSince(databaseId, filterTime, startCursor, MAX_PAGE_SIZE));
+                    batch = new Batch(results.results(), null, results.hasMore(), results.nextCursor());
+                } else {
+                    var results = rateLimiter.execute(Priority.BACKGROUND, "databases.query",
+                            () -> client.queryDatabase(databaseId, filter, sorts, startCursor, MAX_PAGE_SIZE));
+                    batch = new Batch(results.getResults().stream().map(PageStub::of).toList(), results.getResults(),
+                            results.getHasMore(), results.getNextCursor());
+                }
+                for (int i = 0; i < batch.stubs.size(); i++) {
+                    PageStub stub = batch.stubs.get(i);
+                    Instant pageEditTime = stub.lastEditedTime();
+                    if (pageEditTime.isBefore(newest)) {
+                        continue;
+                    }
+                    if (pageEditTime.isAfter(newest)) {
+                        newest = pageEditTime;
+                        pagesAtNewest.clear();
+                    } else if (pagesAtNewest.contains(stub.id())) {
+                        continue; // Already handled at this timestamp, either in an earlier tick or earlier in this one
+                    }
+                    changes.accept(batch.pages != null
+                            ? PageChange.detected(databaseId, batch.pages.get(i))
+                            : PageChange.detected(databaseId, stub));
+                    pagesAtNewest.add(stub.id());
+                    detected++;
+                }
+                cursor = batch.hasMore ? batch.nextCursor : null;
+            } while (cursor != null);
+        } finally {
+            // Keep the progress we made even if a later page of results failed, so we don't notify twice
+            watermarks.put(databaseId, new SyncWatermark(newest, pagesAtNewest));
+        }
+        MetricsRegistry.DEFAULT.counter("notion_changes_detected_total", "Page changes detected by polling").add(detected);
+        if (detected > 0) {
+            LOG.info("Detected {} changed pages in database {}", detected, databaseId);
+        }
+        return detected;
+    }
+
+    private SyncWatermark watermarkOf(String databaseId) {
+        SyncWatermark watermark = watermarks.get(databaseId);
+        return watermark != null ? watermark : initialWatermark;
+    }
+
+    /*
+     * Legacy mode: look at the newest querySize pages only
+     */
+    private int checkNewestPages(String databaseId) {
+        SyncWatermark watermark = watermarkOf(databaseId);
+
+        var sort = new QuerySort();
+        sort.setTimestamp(QuerySortTimestamp.LastEditedTime);
+        sort.setDirection(QuerySortDirection.Descending);
+        List<QuerySort> sorts = Collections.singletonList(sort);
+
+        var results = rateLimiter.execute(Priority.BACKGROUND, "databases.query",
+                () -> client.queryDatabase(databaseId, null, sorts, null, querySize));
+        if (results.getResults().isEmpty()) {
+            LOG.info("No pages found in database {}", databaseId);
+            return 0;
+        }
+
+        String newestEditTime = results.getResults().getFirst().getLastEditedTime();
+
+        // Check for new pages and edits
+        int detected = 0;
+        for (var page : results.getResults()) {
+            Instant pageEditTime = Instant.parse(page.getLastEditedTime());
+            if (pageEditTime.compareTo(watermark.lastEdited()) <= 0) {
+                break;
+            }
+            changes.accept(PageChange.detected(databaseId, page));
+            detected++;
+        }
+
+        watermarks.put(databaseId, SyncWatermark.at(Instant.parse(newestEditTime)));
+        return detected;
+    }
+
+    /*
+     * One page of query results. The full pages are only there if the SDK's query was used.
+     */
+    private record Batch(List<PageStub> stubs, @Nullable List<Page> pages, boolean hasMore, String nextCursor) {
+    }
+}
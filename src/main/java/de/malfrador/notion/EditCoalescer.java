@@ -0,0 +1,106 @@
+package de.malfrador.notion;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Holds back page changes until the page has been quiet for a while, so someone typing into a page for five minutes
+ * results in one notification instead of one per poll. A page that is edited non-stop is still emitted once
+ * {@code maxDelay} has passed since its first change. Changes that could not be handed {@code downstream} are passed
+ * to {@code failed}, so whoever waits for them is not blocked forever.
+ */
+public class EditCoalescer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EditCoalescer.class);
+
+    private final long quietWindowNanos;
+    private final long maxDelayNanos;
+    private final Consumer<PageChange> downstream;
+    private final Consumer<PageChange> failed;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("notion-coalescer").daemon().factory());
+
+    public EditCoalescer(Duration quietWindow, Duration maxDelay, Consumer<PageChange> downstream) {
+        this(quietWindow, maxDelay, downstream, change -> {});
+    }
+
+    public EditCoalescer(Duration quietWindow, Duration maxDelay, Consumer<PageChange> downstream,
+                         Consumer<PageChange> failed) {
+        this.quietWindowNanos = quietWindow.toNanos();
+        this.maxDelayNanos = Math.max(quietWindowNanos, maxDelay.toNanos());
+        this.downstream = downstream;
+        this.failed = failed;
+        if (quietWindowNanos > 0) {
+            sweeper.scheduleWithFixedDelay(this::sweep, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    public void offer(PageChange change) {
+        if (quietWindowNanos <= 0) {
+            handOver(change);
+            return;
+        }
+        long now = System.nanoTime();
+        pending.merge(change.pageId(), new Pending(change, now, now),
+                (existing, added) -> new Pending(existing.change.merge(added.change), existing.firstSeen, now));
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /*
+     * Emit everything that has been quiet long enough, or has waited too long overall
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        List<PageChange> ready = new ArrayList<>();
+        pending.forEach((pageId, entry) -> {
+            if (now - entry.lastSeen >= quietWindowNanos || now - entry.firstSeen >= maxDelayNanos) {
+                // Only remove it if no newer change was merged in since we looked at it
+                if (pending.remove(pageId, entry)) {
+                    ready.add(entry.change);
+                }
+            }
+        });
+        ready.forEach(this::handOver);
+    }
+
+    private void handOver(PageChange change) {
+        try {
+            downstream.accept(change);
+        } catch (Exception e) {
+            LOG.error("Failed to hand over change of page {}", change.pageId(), e);
+            failed.accept(change);
+        }
+    }
+
+    /**
+     * Stop waiting and emit everything that is still pending, so nothing is lost on shutdown
+     */
+    public void flush() {
+        sweeper.shutdown();
+        List<PageChange> remaining = new ArrayList<>();
+        pending.keySet().forEach(pageId -> {
+            Pending entry = pending.remove(pageId);
+            if (entry != null) {
+                remaining.add(entry.change);
+            }
+        });
+        remaining.forEach(this::handOver);
+    }
+
+    private record Pending(PageChange change, long firstSeen, long lastSeen) {
+    }
+}
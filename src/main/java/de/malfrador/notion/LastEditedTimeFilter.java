@@ -0,0 +1,34 @@
+package de.malfrador.notion;
+
+import notion.api.v1.model.databases.query.filter.QueryTopLevelFilter;
+
+import java.time.Instant;
+
+/**
+ * Timestamp filter on the page's last_edited_time, which the SDK has no model for.
+ * Serialized by the SDK's Gson serializer as
+ * {@code {"timestamp": "last_edited_time", "last_edited_time": {"on_or_after": "..."}}}
+ */
+public class LastEditedTimeFilter implements QueryTopLevelFilter {
+
+    private final String timestamp = "last_edited_time";
+    private final Condition lastEditedTime;
+
+    private LastEditedTimeFilter(Condition lastEditedTime) {
+        this.lastEditedTime = lastEditedTime;
+    }
+
+    /**
+     * Notion rounds last_edited_time down to the minute, so "after" would miss edits made later in the same minute.
+     * Callers have to skip the pages they have already seen at that exact timestamp themselves.
+     */
+    public static LastEditedTimeFilter onOrAfter(Instant time) {
+        Condition condition = new Condition();
+        condition.onOrAfter = time.toString();
+        return new LastEditedTimeFilter(condition);
+    }
+
+    private static class Condition {
+        private String onOrAfter;
+    }
+}
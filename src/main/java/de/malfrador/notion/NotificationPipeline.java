@@ -0,0 +1,353 @@
+package de.malfrador.notion;
+
+import de.malfrador.discord.NotificationSender;
+import de.malfrador.metrics.Counter;
+import de.malfrador.metrics.Histogram;
+import de.malfrador.metrics.MetricsRegistry;
+import de.malfrador.notion.NotionRateLimiter.Priority;
+import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import notion.api.v1.NotionClient;
+import notion.api.v1.model.blocks.ParagraphBlock;
+import notion.api.v1.model.common.PropertyType;
+import notion.api.v1.model.pages.Page;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Turns detected page changes into Discord notifications, in stages connected by bounded queues:
+ * detect (polling) -> route (pick the channels) -> enrich (fetch database title, the full page and its content)
+ * -> render (build the embed) -> send. Changes that go to no channel are dropped before enrichment, so they cost no
+ * further requests.
+ * Enrichment runs on several virtual threads at once, still limited by the global Notion rate limiter. Polling only
+ * hands changes over, so slow enrichment never delays the next poll. If the queues fill up, handing over blocks,
+ * which lets the edit coalescer merge more edits in the meantime.
+ * Every change that leaves the pipeline, because the sender delivered or dropped it, it needed no notification or could
+ * not be fetched, is passed to {@code done}.
+ */
+public class NotificationPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationPipeline.class);
+
+    private static final int MAX_CONTENT_LENGTH = 500;
+
+    private final NotionClient client;
+    private final NotionRateLimiter rateLimiter;
+    private final DatabaseMetadataCache metadataCache;
+    private final PageSnapshotStore snapshots;
+    private final NotificationSender sender;
+    private final Function<PageChange, List<String>> router;
+    private final Consumer<PageChange> done;
+
+    private final BlockingQueue<RoutedChange> enrichQueue;
+    private final BlockingQueue<EnrichedChange> renderQueue;
+    private final List<Thread> enrichers = new ArrayList<>();
+    private Thread renderer;
+    private volatile boolean enriching = true;
+    private volatile boolean rendering = true;
+
+    private final Histogram enrichDuration = MetricsRegistry.DEFAULT.histogram("notification_enrich_duration_seconds",
+            "Time taken to fetch the details of a changed page from Notion");
+    private final Counter unchanged = MetricsRegistry.DEFAULT.counter("notifications_skipped_total",
+            "Changes that were not notified", "reason", "unchanged");
+    private final Counter dropped = MetricsRegistry.DEFAULT.counter("notifications_skipped_total",
+            "Changes that were not notified", "reason", "queue_full");
+    private final Counter unrouted = MetricsRegistry.DEFAULT.counter("notifications_skipped_total",
+            "Changes that were not notified", "reason", "no_route");
+
+    public NotificationPipeline(NotionClient client, NotionRateLimiter rateLimiter, DatabaseMetadataCache metadataCache,
+                                PageSnapshotStore snapshots, NotificationSender sender, Function<PageChange, List<String>> router,
+                                int enrichmentConcurrency, int queueCapacity) {
+        this(client, rateLimiter, metadataCache, snapshots, sender, router, change -> {}, enrichmentConcurrency, queueCapacity);
+    }
+
+    public NotificationPipeline(NotionClient client, NotionRateLimiter rateLimiter, DatabaseMetadataCache metadataCache,
+                                PageSnapshotStore snapshots, NotificationSender sender, Function<PageChange, List<String>> router,
+                                Consumer<PageChange> done, int enrichmentConcurrency, int queueCapacity) {
+        this.client = client;
+        this.rateLimiter = rateLimiter;
+        this.metadataCache = metadataCache;
+        this.snapshots = snapshots;
+        this.sender = sender;
+        this.router = router;
+        this.done = done;
+        this.enrichQueue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.renderQueue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        for (int i = 0; i < Math.max(1, enrichmentConcurrency); i++) {
+            enrichers.add(Thread.ofVirtual().name("notion-enrich-" + i).unstarted(this::enrichLoop));
+        }
+        MetricsRegistry.DEFAULT.gauge("notification_queue_depth", "Changes waiting in a pipeline stage", enrichQueue::size, "stage", "enrich");
+        MetricsRegistry.DEFAULT.gauge("notification_queue_depth", "Changes waiting in a pipeline stage", renderQueue::size, "stage", "render");
+    }
+
+    public void start() {
+        enrichers.forEach(Thread::start);
+        renderer = Thread.ofVirtual().name("notion-render").start(this::renderLoop);
+    }
+
+    /**
+     * Hand a change over to the pipeline, waiting if it is full. Changes that no channel gets notified about are dropped.
+     */
+    public void submit(PageChange change) {
+        List<String> channels = router.apply(change);
+        if (channels.isEmpty()) {
+            unrouted.inc();
+            LOG.debug("No notification rule matches the change of page {} in database {}", change.pageId(), change.databaseId());
+            done.accept(change);
+            return;
+        }
+        try {
+            enrichQueue.put(new RoutedChange(change, channels));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while handing over change of page {}", change.pageId());
+            done.accept(change);
+        }
+    }
+
+    public int getEnrichQueueDepth() {
+        return enrichQueue.size();
+    }
+
+    public int getRenderQueueDepth() {
+        return renderQueue.size();
+    }
+
+    /**
+     * Finish everything that was already handed over, then stop
+     */
+    public void shutdown(Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        enriching = false;
+        for (Thread enricher : enrichers) {
+            join(enricher, deadline);
+        }
+        rendering = false;
+        if (renderer != null) {
+            join(renderer, deadline);
+        }
+    }
+
+    private void enrichLoop() {
+        while (enriching || !enrichQueue.isEmpty()) {
+            RoutedChange routed;
+            try {
+                routed = enrichQueue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (routed == null) {
+                continue;
+            }
+            PageChange change = routed.change();
+            long start = System.nanoTime();
+            try {
+                EnrichedChange enriched = enrich(change, routed.channels());
+                enrichDuration.observeSince(start);
+                if (enriched != null) {
+                    renderQueue.put(enriched);
+                } else {
+                    done.accept(change);
+                }
+            } catch (InterruptedException e) {
+                done.accept(change);
+                return;
+            } catch (Exception e) {
+                LOG.error("Failed to fetch details of page {} in database {}", change.pageId(), change.databaseId(), e);
+                done.accept(change);
+            }
+        }
+    }
+
+    private void renderLoop() {
+        while (rendering || !renderQueue.isEmpty()) {
+            EnrichedChange enriched;
+            try {
+                enriched = renderQueue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (enriched == null) {
+                continue;
+            }
+            MessageEmbed embed;
+            try {
+                embed = render(enriched);
+            } catch (Exception e) {
+                LOG.error("Failed to render notification for page {}", enriched.change().pageId(), e);
+                done.accept(enriched.change());
+                continue;
+            }
+            send(enriched, embed);
+        }
+    }
+
+    /*
+     * Fetch everything the notification needs from Notion.
+     * Returns null if nothing visible changed, so there is nothing to notify about.
+     */
+    private EnrichedChange enrich(PageChange change, List<String> channels) {
+        Page page = change.page();
+        if (page == null) { // Polling only saw that it changed
+            page = rateLimiter.execute(Priority.BACKGROUND, "pages.retrieve", () -> client.retrievePage(change.pageId(), List.of()));
+        }
+        String databaseName = metadataCache.get(change.databaseId()).title();
+
+        // Get page content from blocks
+        StringBuilder blockText = new StringBuilder();
+        String pageId = page.getId();
+        var blocks = rateLimiter.execute(Priority.BACKGROUND, "blocks.children",
+                () -> client.retrieveBlockChildren(pageId, null, 5));
+        blocks.getResults().forEach(block -> {
+            if (block.asParagraph() != null) {
+                ParagraphBlock paragraph = block.asParagraph();
+                paragraph.getParagraph().getRichText().forEach(richText -> blockText.append(richText.getPlainText()));
+            }
+        });
+
+        // Skip the notification if nothing that we would show has changed, otherwise list what changed
+        List<String> changedProperties = snapshots.update(page.getId(), page.getProperties(), blockText.toString());
+        if (changedProperties != null && changedProperties.isEmpty() && !change.newPage()) {
+            LOG.debug("Page {} in database {} was edited, but nothing visible changed", page.getId(), change.databaseId());
+            unchanged.inc();
+            return null;
+        }
+        return new EnrichedChange(change, page, databaseName, blockText.toString(), changedProperties, channels);
+    }
+
+    /*
+     * Build the embed with the page title, content, and properties.
+     */
+    static MessageEmbed render(EnrichedChange enriched) {
+        PageChange change = enriched.change();
+        Page page = enriched.page();
+        String title = extractTitle(page);
+        String url = "https://notion.so/" + page.getId().replace("-", "");
+
+        StringBuilder contentBuilder = new StringBuilder(enriched.blockText());
+        // Get properties content
+        page.getProperties().forEach((key, prop) -> {
+            if (prop.getType() == PropertyType.RichText && prop.getRichText() != null) {
+                String text = prop.getRichText().stream()
+                        .map(t -> t.getPlainText())
+                        .filter(t -> !t.isEmpty())
+                        .reduce((a, b) -> a + "\n" + b)
+                        .orElse("");
+                if (!text.isEmpty()) {
+                    contentBuilder.append("**").append(key).append("**:\n")
+                            .append(text).append("\n\n");
+                }
+            }
+        });
+
+        String content = contentBuilder.toString().trim();
+
+        Instant lastEdited = Instant.parse(page.getLastEditedTime());
+        boolean isEdit = !change.newPage();
+
+        EmbedBuilder embed = new EmbedBuilder()
+                .setTitle(title, url)
+                .setColor(isEdit ? Color.YELLOW : Color.GREEN)
+                .setTimestamp(Instant.now())
+                .addField("Database", enriched.databaseName(), false)
+                .addField("Type", isEdit ? "Page Edit" : "New Page", true)
+                .addField("Last Edited", lastEdited.toString(), true);
+        if (change.edits() > 1) {
+            embed.addField("Edits", String.valueOf(change.edits()), true);
+        }
+        List<String> changedProperties = enriched.changedProperties();
+        if (changedProperties != null && !changedProperties.isEmpty() && isEdit) {
+            embed.addField("Changed", String.join(", ", changedProperties), false);
+        }
+
+        if (!content.isEmpty()) {
+            if (content.length() > MAX_CONTENT_LENGTH) { // Let's not spam the channel with huge messages
+                content = content.substring(0, MAX_CONTENT_LENGTH) + "...";
+            }
+            embed.addField("Content", content, false);
+        }
+        return embed.build();
+    }
+
+    /*
+     * Send the notification to every channel it was routed to. The change is done once every channel got it, or
+     * dropped it because its queue was full
+     */
+    private void send(EnrichedChange enriched, MessageEmbed embed) {
+        PageChange change = enriched.change();
+        AtomicInteger remaining = new AtomicInteger(enriched.channels().size());
+        Runnable delivered = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                done.accept(change);
+            }
+        };
+        for (String channelId : enriched.channels()) {
+            boolean queued;
+            try {
+                queued = sender.submit(channelId, embed, change.stub().lastEditedTime(), delivered);
+            } catch (RuntimeException e) {
+                LOG.error("Failed to queue notification about {} for channel {}", embed.getTitle(), channelId, e);
+                delivered.run();
+                continue;
+            }
+            if (!queued) {
+                dropped.inc();
+                LOG.warn("Notification queue of channel {} is full, dropped notification about {} in database {}",
+                        channelId, embed.getTitle(), change.databaseId());
+                delivered.run();
+                continue;
+            }
+            LOG.info("Notified channel {} about {} {} in database {}",
+                    channelId, change.newPage() ? "new" : "edited", embed.getTitle(), change.databaseId());
+        }
+    }
+
+    /*
+     * Extract the title of a Notion page, as a plain text string
+     */
+    static String extractTitle(Page page) {
+        var titleProp = page.getProperties().values().stream()
+                .filter(p -> p.getType() == PropertyType.Title)
+                .findFirst();
+
+        return titleProp.map(p -> p.getTitle().isEmpty() ? "Untitled" : p.getTitle().get(0).getPlainText())
+                .orElse("New Page");
+    }
+
+    private static void join(Thread thread, long deadline) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            thread.interrupt();
+            return;
+        }
+        try {
+            if (!thread.join(Duration.ofNanos(remaining))) {
+                thread.interrupt();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A change together with everything fetched from Notion to render it
+     */
+    record EnrichedChange(PageChange change, Page page, String databaseName, String blockText, List<String> changedProperties,
+                          List<String> channels) {
+    }
+
+    private record RoutedChange(PageChange change, List<String> channels) {
+    }
+}
@@ -0,0 +1,141 @@
+package de.malfrador.notion;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which channels are notified about a change, from rules on the database, the value of a Select, Status,
+ * Multi-select or Checkbox property (like Severity = Critical) and whether the page is new or edited.
+ * The rules are compiled into an index by database, property and value, so routing a change takes a few map lookups
+ * no matter how many rules there are. Routing only needs what polling already has, so changes that no rule matches
+ * are dropped before anything else is fetched from Notion for them.
+ */
+public final class NotificationRouter {
+
+    private final Map<String, DatabaseRoutes> databases;
+
+    private NotificationRouter(Map<String, DatabaseRoutes> databases) {
+        this.databases = databases;
+    }
+
+    public static NotificationRouter compile(Collection<Rule> rules) {
+        Map<String, DatabaseRoutes> databases = new HashMap<>();
+        for (Rule rule : rules) {
+            DatabaseRoutes routes = databases.computeIfAbsent(rule.databaseId(), id -> new DatabaseRoutes());
+            if (rule.property() == null || rule.values().isEmpty()) {
+                routes.always.add(rule);
+                continue;
+            }
+            Map<String, Targets> byValue = routes.byProperty.computeIfAbsent(rule.property(), property -> new HashMap<>());
+            for (String value : rule.values()) {
+                byValue.computeIfAbsent(normalize(value), key -> new Targets()).add(rule);
+            }
+        }
+        databases.values().forEach(DatabaseRoutes::freeze);
+        return new NotificationRouter(Map.copyOf(databases));
+    }
+
+    /**
+     * @return the channels to notify, empty if no rule matches
+     */
+    public List<String> route(PageChange change) {
+        DatabaseRoutes routes = databases.get(change.databaseId());
+        if (routes == null) {
+            return List.of();
+        }
+        boolean newPage = change.newPage();
+        if (routes.byProperty.isEmpty()) {
+            return routes.always.channels(newPage); // Most databases only have unconditional rules
+        }
+        Set<String> channels = new LinkedHashSet<>(routes.always.channels(newPage));
+        routes.byProperty.forEach((property, byValue) -> {
+            for (String value : change.stub().values(property)) {
+                Targets targets = byValue.get(normalize(value));
+                if (targets != null) {
+                    channels.addAll(targets.channels(newPage));
+                }
+            }
+        });
+        return List.copyOf(channels);
+    }
+
+    /**
+     * @return names of the properties the rules of the database look at, which polling has to fetch
+     */
+    public Set<String> properties(String databaseId) {
+        DatabaseRoutes routes = databases.get(databaseId);
+        return routes == null ? Set.of() : routes.byProperty.keySet();
+    }
+
+    private static String normalize(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    public enum ChangeType {
+        NEW,
+        EDIT,
+        ANY
+    }
+
+    /**
+     * Notify the channel about changes in the database. If a property is given, only if it has one of the values.
+     * For Checkbox properties, the values are "true" and "false".
+     */
+    public record Rule(String databaseId, @Nullable String property, Set<String> values, ChangeType changeType,
+                       String channelId) {
+
+        public Rule {
+            values = Set.copyOf(values);
+        }
+
+        public static Rule always(String databaseId, String channelId) {
+            return new Rule(databaseId, null, Set.of(), ChangeType.ANY, channelId);
+        }
+    }
+
+    private static final class DatabaseRoutes {
+        private final Targets always = new Targets();
+        private Map<String, Map<String, Targets>> byProperty = new HashMap<>();
+
+        private void freeze() {
+            always.freeze();
+            byProperty.values().forEach(byValue -> byValue.values().forEach(Targets::freeze));
+            byProperty = Map.copyOf(byProperty);
+        }
+    }
+
+    /*
+     * The channels of all rules that matched, split by change type
+     */
+    private static final class Targets {
+        private final Set<String> newPages = new LinkedHashSet<>();
+        private final Set<String> edits = new LinkedHashSet<>();
+        private List<String> newPageChannels = List.of();
+        private List<String> editChannels = List.of();
+
+        private void add(Rule rule) {
+            if (rule.changeType() != ChangeType.EDIT) {
+                newPages.add(rule.channelId());
+            }
+            if (rule.changeType() != ChangeType.NEW) {
+                edits.add(rule.channelId());
+            }
+        }
+
+        private void freeze() {
+            newPageChannels = List.copyOf(newPages);
+            editChannels = List.copyOf(edits);
+        }
+
+        private List<String> channels(boolean newPage) {
+            return newPage ? newPageChannels : editChannels;
+        }
+    }
+}
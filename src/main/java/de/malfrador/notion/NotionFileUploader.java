@@ -0,0 +1,299 @@
+package de.malfrador.notion;
+
+import de.malfrador.metrics.MetricsRegistry;
+import de.malfrador.notion.NotionRateLimiter.Priority;
+import de.malfrador.reporting.UploadedFile;
+import net.dv8tion.jda.api.utils.data.DataArray;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import notion.api.v1.exception.NotionAPIError;
+import notion.api.v1.http.NotionHttpResponse;
+import notion.api.v1.json.GsonSerializer;
+import notion.api.v1.request.pages.CreatePageRequest;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams files from a URL, like an attachment on Discord's CDN, into Notion's file uploads.
+ * No file is ever held in memory as a whole: each part is downloaded with a range request and piped straight into
+ * its upload request, so an upload only needs a few small buffers, no matter how large the file is.
+ * Files up to 20 MB are sent in one request, larger ones in parts of 10 MB. Since every attempt downloads its part
+ * again, a part that was rate limited can simply be sent again.
+ * <p>
+ * Uploads run on their own threads, at most {@code maxConcurrentUploads} at a time, and every request to Notion goes
+ * through the rate limiter.
+ */
+public class NotionFileUploader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NotionFileUploader.class);
+
+    private static final String NOTION_VERSION = "2022-06-28"; // Same as the SDK
+    private static final GsonSerializer JSON = new GsonSerializer(false);
+    private static final DummyLogger NOTION_LOGGER = new DummyLogger();
+    static final long SINGLE_PART_LIMIT = 20L * 1024 * 1024;
+    static final long PART_SIZE = 10L * 1024 * 1024; // Notion wants 5 to 20 MB per part
+
+    private final PooledNotionHttpClient http;
+    private final String baseUrl;
+    private final String authorization;
+    private final NotionRateLimiter rateLimiter;
+    private final Duration timeout;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final HttpClient downloads;
+    private final Semaphore permits;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * @param timeout for each request, including sending a part
+     */
+    public NotionFileUploader(PooledNotionHttpClient http, String baseUrl, String token, NotionRateLimiter rateLimiter,
+                              int maxConcurrentUploads, Duration timeout) {
+        this.http = http;
+        this.baseUrl = baseUrl;
+        this.authorization = "Bearer " + token;
+        this.rateLimiter = rateLimiter;
+        this.timeout = timeout;
+        this.permits = new Semaphore(Math.max(1, maxConcurrentUploads));
+        this.downloads = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor)
+                .build();
+        MetricsRegistry.DEFAULT.gauge("file_uploads_waiting", "File uploads waiting for a free upload slot", waiting::get);
+    }
+
+    /**
+     * Upload a file in the background
+     *
+     * @param size the exact size of the file in bytes, to split it into parts up front
+     */
+    public CompletableFuture<UploadedFile> submit(String sourceUrl, String filename, @Nullable String contentType, long size) {
+        waiting.incrementAndGet();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            } finally {
+                waiting.decrementAndGet();
+            }
+            long start = System.nanoTime();
+            try {
+                UploadedFile file = upload(sourceUrl, filename, contentType, size);
+                MetricsRegistry.DEFAULT.counter("file_upload_bytes_total", "Bytes uploaded to Notion").add(size);
+                return file;
+            } catch (RuntimeException e) {
+                MetricsRegistry.DEFAULT.counter("file_upload_failures_total", "Files that could not be uploaded to Notion").inc();
+                throw e;
+            } finally {
+                permits.release();
+                MetricsRegistry.DEFAULT.histogram("file_upload_duration_seconds", "Time taken to upload a file to Notion")
+                        .observeSince(start);
+            }
+        }, executor);
+    }
+
+    /**
+     * Upload a file on the calling thread
+     */
+    public UploadedFile upload(String sourceUrl, String filename, @Nullable String contentType, long size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("File " + filename + " is empty");
+        }
+        // Notion does not like parameters like charset
+        String type = contentType == null || contentType.isBlank() ? "application/octet-stream" : contentType.split(";")[0].trim();
+        int parts = size <= SINGLE_PART_LIMIT ? 1 : (int) ((size + PART_SIZE - 1) / PART_SIZE);
+        DataObject create = DataObject.empty()
+                .put("filename", filename)
+                .put("content_type", type);
+        if (parts > 1) {
+            create.put("mode", "multi_part").put("number_of_parts", parts);
+        } else {
+            create.put("mode", "single_part");
+        }
+        long created = System.currentTimeMillis(); // Notion's hour starts with the upload, not when it is sent
+        String id = rateLimiter.execute(Priority.INTERACTIVE, "file_uploads.create",
+                () -> post("/file_uploads", create.toString()).getString("id"));
+        for (int part = 1; part <= parts; part++) {
+            long offset = (part - 1) * PART_SIZE;
+            long length = parts == 1 ? size : Math.min(PART_SIZE, size - offset);
+            Integer partNumber = parts == 1 ? null : part;
+            rateLimiter.execute(Priority.INTERACTIVE, "file_uploads.send",
+                    () -> sendPart(id, partNumber, sourceUrl, filename, type, offset, length));
+        }
+        if (parts > 1) {
+            rateLimiter.execute(Priority.INTERACTIVE, "file_uploads.complete",
+                    () -> post("/file_uploads/" + id + "/complete", "{}"));
+        }
+        LOG.info("Uploaded {} ({} bytes in {} parts) to Notion as {}", filename, size, parts, id);
+        return new UploadedFile(id, filename, created, sourceUrl, contentType, size);
+    }
+
+    /**
+     * Create a page with uploaded files in a Files property. The SDK has no way to attach file uploads, so the page
+     * is sent as JSON with the files added
+     *
+     * @return the ID of the new page
+     */
+    public String createPage(CreatePageRequest request, String filesProperty, List<UploadedFile> files) {
+        DataArray attached = DataArray.empty();
+        for (UploadedFile file : files) {
+            attached.add(DataObject.empty()
+                    .put("type", "file_upload")
+                    .put("name", file.filename())
+                    .put("file_upload", DataObject.empty().put("id", file.id())));
+        }
+        DataObject page = DataObject.fromJson(JSON.toJsonString(request));
+        page.getObject("properties").put(filesProperty, DataObject.empty().put("files", attached));
+        return post("/pages", page.toString()).getString("id");
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private DataObject post(String path, String body) {
+        return check(http.postTextBody(NOTION_LOGGER, baseUrl + path, Map.of(), body, headers("application/json; charset=utf-8")));
+    }
+
+    private Map<String, String> headers(String contentType) {
+        return Map.of(
+                "Authorization", authorization,
+                "Notion-Version", NOTION_VERSION,
+                "Content-Type", contentType);
+    }
+
+    /*
+     * Download one part of the file and stream it into the upload as multipart/form-data
+     */
+    private DataObject sendPart(String id, @Nullable Integer partNumber, String sourceUrl, String filename, String type,
+                                long offset, long length) {
+        HttpRequest download = HttpRequest.newBuilder(URI.create(sourceUrl))
+                .timeout(timeout)
+                .header("Range", "bytes=" + offset + "-" + (offset + length - 1))
+                .GET()
+                .build();
+        HttpResponse<InputStream> response;
+        try {
+            response = downloads.send(download, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to download " + filename, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while downloading " + filename, e);
+        }
+        try (InputStream source = response.body()) {
+            if (response.statusCode() == 200) {
+                source.skipNBytes(offset); // The server ignored the range, skip to our part without keeping anything
+            } else if (response.statusCode() != 206) {
+                throw new IOException("Downloading " + filename + " failed with HTTP " + response.statusCode());
+            }
+            String boundary = "----" + UUID.randomUUID().toString().replace("-", "");
+            StringBuilder head = new StringBuilder();
+            if (partNumber != null) {
+                head.append("--").append(boundary).append("\r\n")
+                        .append("Content-Disposition: form-data; name=\"part_number\"\r\n\r\n")
+                        .append(partNumber).append("\r\n");
+            }
+            head.append("--").append(boundary).append("\r\n")
+                    .append("Content-Disposition: form-data; name=\"file\"; filename=\"").append(filename.replace("\"", "'")).append("\"\r\n")
+                    .append("Content-Type: ").append(type).append("\r\n\r\n");
+            byte[] headBytes = head.toString().getBytes(StandardCharsets.UTF_8);
+            byte[] tailBytes = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+            BoundedInputStream part = new BoundedInputStream(source, length);
+            InputStream body = new SequenceInputStream(Collections.enumeration(List.of(
+                    new ByteArrayInputStream(headBytes), part, new ByteArrayInputStream(tailBytes))));
+            // The download can only be read once. Should the client want to send the body again, fail the upload
+            // instead of sending what is left of it as the whole part
+            AtomicBoolean opened = new AtomicBoolean();
+            HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.fromPublisher(
+                    HttpRequest.BodyPublishers.ofInputStream(() -> {
+                        if (!opened.compareAndSet(false, true)) {
+                            throw new IllegalStateException("Part of " + filename + " can't be sent twice from the same download");
+                        }
+                        return body;
+                    }), headBytes.length + length + tailBytes.length);
+            NotionHttpResponse sent = http.sendStreaming("POST", baseUrl + "/file_uploads/" + id + "/send", publisher,
+                    headers("multipart/form-data; boundary=" + boundary), timeout);
+            if (part.remaining > 0 && sent.getStatus() < 300) {
+                throw new IOException("Download of " + filename + " ended " + part.remaining + " bytes early");
+            }
+            return check(sent);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to upload " + filename, e);
+        }
+    }
+
+    private static DataObject check(NotionHttpResponse response) {
+        if (response.getStatus() < 200 || response.getStatus() >= 300) {
+            throw new NotionAPIError(JSON.toError(response.getBody()), response);
+        }
+        return DataObject.fromJson(response.getBody());
+    }
+
+    /*
+     * Reads at most length bytes, and leaves the underlying stream open
+     */
+    private static final class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() {
+            // The download is closed by whoever opened it
+        }
+    }
+}
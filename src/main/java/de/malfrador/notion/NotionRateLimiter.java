@@ -0,0 +1,201 @@
+package de.malfrador.notion;
+
+import de.malfrador.metrics.Counter;
+import de.malfrador.metrics.Histogram;
+import de.malfrador.metrics.MetricsRegistry;
+import notion.api.v1.exception.NotionAPIError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Token bucket shared by every call to the Notion API, as Notion only allows an average of ~3 requests per second
+ * per integration. Interactive calls (report submissions) always get the next free token before background calls
+ * (polling, notifications). If Notion still answers with 429, all callers pause for the time given in Retry-After
+ * and the call is retried. Server errors are only retried for calls that can safely be sent twice.
+ */
+public class NotionRateLimiter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NotionRateLimiter.class);
+
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    public enum Priority {
+        INTERACTIVE,
+        BACKGROUND
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final double tokensPerNano;
+    private final double capacity;
+    private final int maxRetries;
+
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long pausedUntil = lastRefill;
+    private int waitingInteractive;
+
+    private final Counter rateLimited = MetricsRegistry.DEFAULT.counter("notion_rate_limited_total",
+            "Times Notion answered with 429 Too Many Requests");
+    private final Map<String, Histogram> latencyByEndpoint = new ConcurrentHashMap<>();
+
+    public NotionRateLimiter(double requestsPerSecond, int burst, int maxRetries) {
+        this.tokensPerNano = Math.max(0.01, requestsPerSecond) / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = Math.max(1, burst);
+        this.tokens = capacity;
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * Run a Notion call once a token is available, retrying it if Notion rate limits us anyway or fails
+     */
+    public <T> T execute(Priority priority, String endpoint, Supplier<T> call) {
+        return execute(priority, endpoint, true, call);
+    }
+
+    /**
+     * Run a Notion call once a token is available, retrying it if Notion rate limits us anyway
+     *
+     * @param idempotent false for calls that must not be sent twice, like creating a page. Notion may have done what
+     *                   was asked before answering with a server error, so they are only retried on 429, which Notion
+     *                   sends before doing anything
+     */
+    public <T> T execute(Priority priority, String endpoint, boolean idempotent, Supplier<T> call) {
+        int attempt = 0;
+        while (true) {
+            acquire(priority);
+            long start = System.nanoTime();
+            try {
+                T result = call.get();
+                latency(endpoint).observeSince(start);
+                return result;
+            } catch (NotionAPIError e) {
+                latency(endpoint).observeSince(start);
+                int status = e.getHttpResponse().getStatus();
+                MetricsRegistry.DEFAULT.counter("notion_request_errors_total", "Notion API calls that returned an error",
+                        "endpoint", endpoint, "status", String.valueOf(status)).inc();
+                boolean retry = status == 429 || (idempotent && status >= 500);
+                if (!retry || attempt >= maxRetries) {
+                    throw e;
+                }
+                long delay = retryAfterMillis(e.getHttpResponse().getHeaders())
+                        .orElse(Math.min(MAX_BACKOFF_MILLIS, 1000L << attempt));
+                if (status == 429) {
+                    rateLimited.inc();
+                    pause(delay); // Rate limits apply to the whole integration, so everyone has to wait
+                }
+                attempt++;
+                LOG.warn("Notion answered {} for {}, retrying in {} ms (attempt {}/{})", status, endpoint, delay, attempt, maxRetries);
+                if (status != 429) {
+                    sleep(delay);
+                }
+            }
+        }
+    }
+
+    private Histogram latency(String endpoint) {
+        return latencyByEndpoint.computeIfAbsent(endpoint, key -> MetricsRegistry.DEFAULT.histogram(
+                "notion_request_duration_seconds", "Latency of Notion API calls, without waiting for the rate limiter", "endpoint", key));
+    }
+
+    private void acquire(Priority priority) {
+        boolean interactive = priority == Priority.INTERACTIVE;
+        lock.lock();
+        try {
+            if (interactive) {
+                waitingInteractive++;
+            }
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    refill(now);
+                    long waitNanos;
+                    if (now - pausedUntil < 0) {
+                        waitNanos = pausedUntil - now;
+                    } else if (!interactive && waitingInteractive > 0) {
+                        waitNanos = Long.MAX_VALUE; // Woken up once the interactive calls got their tokens
+                    } else if (tokens >= 1) {
+                        tokens -= 1;
+                        return;
+                    } else {
+                        waitNanos = (long) Math.ceil((1 - tokens) / tokensPerNano);
+                    }
+                    if (waitNanos == Long.MAX_VALUE) {
+                        changed.awaitUninterruptibly();
+                    } else {
+                        changed.awaitNanos(waitNanos);
+                    }
+                }
+            } finally {
+                if (interactive && --waitingInteractive == 0) {
+                    changed.signalAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the Notion rate limiter", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+
+    private void pause(long millis) {
+        lock.lock();
+        try {
+            long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            if (until - pausedUntil > 0) {
+                pausedUntil = until;
+                tokens = 0;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Optional<Long> retryAfterMillis(Map<String, List<String>> headers) {
+        if (headers == null) {
+            return Optional.empty();
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (header.getKey() != null && header.getKey().equalsIgnoreCase("Retry-After")
+                    && header.getValue() != null && !header.getValue().isEmpty()) {
+                try {
+                    // Notion sends the number of seconds. Round up a bit, so we don't hit the limit again right away
+                    double seconds = Double.parseDouble(header.getValue().getFirst().trim());
+                    return Optional.of(Math.min(MAX_BACKOFF_MILLIS, (long) (seconds * 1000) + 100));
+                } catch (NumberFormatException e) {
+                    return Optional.empty();
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while backing off from Notion", e);
+        }
+    }
+
+    public long getRateLimitedCount() {
+        return rateLimited.get();
+    }
+}
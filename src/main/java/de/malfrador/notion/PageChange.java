@@ -0,0 +1,40 @@
+package de.malfrador.notion;
+
+import notion.api.v1.model.pages.Page;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
+
+/**
+ * A change to a page detected by polling. If several changes to the same page were merged, this holds the newest
+ * state of the page, and {@code newPage} is true if the first of them created the page.
+ * The full page is only present if the query already returned it, otherwise it is fetched when the notification
+ * is built, so merged edits only fetch it once.
+ */
+public record PageChange(String databaseId, PageStub stub, @Nullable Page page, boolean newPage, int edits,
+                         Instant firstDetected) {
+
+    public static PageChange detected(String databaseId, PageStub stub) {
+        return new PageChange(databaseId, stub, null, isNew(stub), 1, Instant.now());
+    }
+
+    public static PageChange detected(String databaseId, Page page) {
+        PageStub stub = PageStub.of(page);
+        return new PageChange(databaseId, stub, page, isNew(stub), 1, Instant.now());
+    }
+
+    private static boolean isNew(PageStub stub) {
+        return !stub.lastEditedTime().isAfter(stub.createdTime());
+    }
+
+    public String pageId() {
+        return stub.id();
+    }
+
+    /**
+     * Merge a newer change of the same page into this one
+     */
+    public PageChange merge(PageChange newer) {
+        return new PageChange(databaseId, newer.stub, newer.page, newPage || newer.newPage, edits + newer.edits, firstDetected);
+    }
+}
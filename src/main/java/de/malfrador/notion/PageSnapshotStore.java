@@ -0,0 +1,200 @@
+package de.malfrador.notion;
+
+import notion.api.v1.model.pages.PageProperty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Remembers a fingerprint of every page we notified about, so we can tell which properties actually changed when
+ * Notion bumps last_edited_time. Per page, only one long per property is stored (32 bit hash of the property name,
+ * 32 bit hash of its value), keyed by the page UUID, which comes down to roughly 150 bytes for a typical page.
+ * Once more than {@code maxPages} pages are tracked, the least recently changed ones are forgotten.
+ */
+public class PageSnapshotStore {
+
+    private static final String CONTENT = "\u0000content"; // Can't clash with a real property name
+    private static final String CONTENT_DISPLAY_NAME = "Content";
+
+    private final Map<UUID, long[]> snapshots;
+
+    public PageSnapshotStore(int maxPages) {
+        int limit = Math.max(1, maxPages);
+        this.snapshots = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, long[]> eldest) {
+                return size() > limit;
+            }
+        };
+    }
+
+    /**
+     * Store the new state of a page and compare it to the previous one.
+     *
+     * @param content the visible page content
+     * @return the names of the changed properties (empty if nothing visible changed),
+     * or null if we have never seen this page before
+     */
+    public List<String> update(String pageId, Map<String, PageProperty> properties, String content) {
+        List<String> names = new ArrayList<>(properties.size() + 1);
+        long[] current = new long[properties.size() + 1];
+        int count = 0;
+        for (Map.Entry<String, PageProperty> entry : properties.entrySet()) {
+            String value = canonicalValue(entry.getValue());
+            if (value == null) {
+                continue; // Metadata, or something we can't show anyway
+            }
+            current[count++] = pack(entry.getKey(), value);
+            names.add(entry.getKey());
+        }
+        current[count++] = pack(CONTENT, content);
+        names.add(CONTENT_DISPLAY_NAME);
+        current = Arrays.copyOf(current, count);
+
+        long[] previous;
+        UUID key = UUID.fromString(normalizeId(pageId));
+        synchronized (snapshots) {
+            previous = snapshots.put(key, sorted(current));
+        }
+        if (previous == null) {
+            return null;
+        }
+
+        List<String> changed = new ArrayList<>();
+        int matched = 0;
+        for (int i = 0; i < count; i++) {
+            long packed = current[i];
+            int index = findName(previous, nameHash(packed));
+            if (index >= 0) {
+                matched++;
+            }
+            if (index < 0 || previous[index] != packed) {
+                changed.add(names.get(i));
+            }
+        }
+        if (previous.length > matched) {
+            changed.add("(removed properties)");
+        }
+        return changed;
+    }
+
+    public int size() {
+        synchronized (snapshots) {
+            return snapshots.size();
+        }
+    }
+
+    /*
+     * Plain text representation of everything a user can see in a property. Returns null for properties that change
+     * on their own (timestamps, formulas, rollups) or that we don't know how to compare.
+     */
+    static String canonicalValue(PageProperty property) {
+        if (property.getType() == null) {
+            // The SDK has no property type for Status, but fills in its value
+            return property.getStatus() == null ? null : property.getStatus().getName();
+        }
+        StringBuilder builder = new StringBuilder();
+        switch (property.getType()) {
+            case Title -> {
+                if (property.getTitle() != null) {
+                    property.getTitle().forEach(text -> builder.append(text.getPlainText()));
+                }
+            }
+            case RichText -> {
+                if (property.getRichText() != null) {
+                    property.getRichText().forEach(text -> builder.append(text.getPlainText()));
+                }
+            }
+            case Select -> builder.append(property.getSelect() == null ? "" : property.getSelect().getName());
+            case MultiSelect -> {
+                if (property.getMultiSelect() != null) {
+                    property.getMultiSelect().forEach(option -> builder.append(option.getName()).append('\u0001'));
+                }
+            }
+            case Checkbox -> builder.append(property.getCheckbox());
+            case Number -> builder.append(property.getNumber());
+            case Url -> builder.append(property.getUrl());
+            case Email -> builder.append(property.getEmail());
+            case PhoneNumber -> builder.append(property.getPhoneNumber());
+            case Date -> {
+                if (property.getDate() != null) {
+                    builder.append(property.getDate().getStart()).append('\u0001').append(property.getDate().getEnd());
+                }
+            }
+            case People -> {
+                if (property.getPeople() != null) {
+                    property.getPeople().forEach(user -> builder.append(user.getId()).append('\u0001'));
+                }
+            }
+            case Relation -> {
+                if (property.getRelation() != null) {
+                    property.getRelation().forEach(page -> builder.append(page.getId()).append('\u0001'));
+                }
+            }
+            case Files -> {
+                if (property.getFiles() != null) {
+                    property.getFiles().forEach(file -> builder.append(file.getName()).append('\u0001'));
+                }
+            }
+            default -> {
+                return null;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static long[] sorted(long[] values) {
+        long[] copy = values.clone();
+        Arrays.sort(copy); // The name hash is in the upper half, so this sorts by name
+        return copy;
+    }
+
+    private static int findName(long[] sorted, int nameHash) {
+        int low = 0;
+        int high = sorted.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int hash = nameHash(sorted[middle]);
+            if (hash < nameHash) {
+                low = middle + 1;
+            } else if (hash > nameHash) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private static long pack(String name, String value) {
+        return ((long) hash(name) << 32) | (hash(value) & 0xFFFFFFFFL);
+    }
+
+    private static int nameHash(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    /*
+     * 32 bit FNV-1a. String.hashCode() is too weak for similar strings.
+     */
+    private static int hash(String value) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    private static String normalizeId(String pageId) {
+        if (pageId.length() == 32) { // Notion also uses UUIDs without dashes
+            return pageId.substring(0, 8) + "-" + pageId.substring(8, 12) + "-" + pageId.substring(12, 16) + "-"
+                    + pageId.substring(16, 20) + "-" + pageId.substring(20);
+        }
+        return pageId;
+    }
+}
@@ -0,0 +1,81 @@
+package de.malfrador.notion;
+
+import notion.api.v1.model.pages.Page;
+import notion.api.v1.model.pages.PageProperty;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The only fields of a page that polling needs to detect a change, and the values of the properties notifications
+ * are routed by (Select, Status, Multi-select and Checkbox, by property name). Text and Title properties have their
+ * plain text as their only value, for duplicate detection.
+ *
+ * @param archived true if the page was archived or moved to the trash
+ */
+public record PageStub(String id, Instant createdTime, Instant lastEditedTime, Map<String, List<String>> properties,
+                       boolean archived) {
+
+    public PageStub {
+        properties = Map.copyOf(properties);
+    }
+
+    public PageStub(String id, Instant createdTime, Instant lastEditedTime, Map<String, List<String>> properties) {
+        this(id, createdTime, lastEditedTime, properties, false);
+    }
+
+    public PageStub(String id, Instant createdTime, Instant lastEditedTime) {
+        this(id, createdTime, lastEditedTime, Map.of());
+    }
+
+    public static PageStub of(Page page) {
+        Map<String, List<String>> properties = new HashMap<>();
+        page.getProperties().forEach((name, property) -> {
+            List<String> values = routingValues(property);
+            if (values != null) {
+                properties.put(name, values);
+            }
+        });
+        return new PageStub(page.getId(), Instant.parse(page.getCreatedTime()), Instant.parse(page.getLastEditedTime()), properties,
+                Boolean.TRUE.equals(page.getArchived()) || Boolean.TRUE.equals(page.getInTrash()));
+    }
+
+    /**
+     * @return the values of the property, or an empty list if it is empty or was not fetched
+     */
+    public List<String> values(String property) {
+        return properties.getOrDefault(property, List.of());
+    }
+
+    private static List<String> routingValues(PageProperty property) {
+        if (property.getType() == null) {
+            // The SDK has no property type for Status, but fills in its value
+            return property.getStatus() == null ? null : List.of(property.getStatus().getName());
+        }
+        return switch (property.getType()) {
+            case Select -> property.getSelect() == null ? List.of() : List.of(property.getSelect().getName());
+            case MultiSelect -> {
+                List<String> values = new ArrayList<>();
+                if (property.getMultiSelect() != null) {
+                    property.getMultiSelect().forEach(option -> values.add(option.getName()));
+                }
+                yield values;
+            }
+            case Checkbox -> List.of(String.valueOf(Boolean.TRUE.equals(property.getCheckbox())));
+            case RichText -> List.of(plainText(property.getRichText()));
+            case Title -> List.of(plainText(property.getTitle()));
+            default -> null;
+        };
+    }
+
+    private static String plainText(List<PageProperty.RichText> texts) {
+        StringBuilder text = new StringBuilder();
+        if (texts != null) {
+            texts.forEach(part -> text.append(part.getPlainText() == null ? "" : part.getPlainText()));
+        }
+        return text.toString();
+    }
+}
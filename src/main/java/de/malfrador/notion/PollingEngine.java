@@ -0,0 +1,234 @@
+package de.malfrador.notion;
+
+import de.malfrador.metrics.Counter;
+import de.malfrador.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * Polls every monitored database on its own, adaptive schedule.
+ * A database that had changes is polled again after the minimum interval. Every poll without changes (or with an
+ * error) stretches its interval by half, up to the maximum, so idle databases cost little API budget while busy ones
+ * are polled often. Each interval gets up to 10% of jitter, so the databases don't line up over time.
+ * A single timer thread only dispatches ticks, the actual queries run on virtual threads. At most {@code maxConcurrent}
+ * databases are queried at the same time, and the next poll of a database is only scheduled once the previous one
+ * finished, so a slow or failing database never holds up the others.
+ */
+public class PollingEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PollingEngine.class);
+
+    private static final double BACKOFF_FACTOR = 1.5;
+    private static final double JITTER = 0.1;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("notion-poll-timer").daemon().factory());
+    private final ExecutorService workers = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("notion-poll-", 0).factory());
+    private final Map<String, PolledDatabase> databases = new ConcurrentHashMap<>();
+    private final Semaphore permits;
+    private final long initialIntervalMillis;
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final ToIntFunction<String> pollTask;
+    private volatile boolean running = true;
+    private final Counter skippedTicks = MetricsRegistry.DEFAULT.counter("notion_poll_skipped_total",
+            "Poll ticks skipped because no slot was free");
+    private final Counter failedPolls = MetricsRegistry.DEFAULT.counter("notion_poll_failures_total",
+            "Polls that failed with an error");
+
+    /**
+     * @param interval    interval of the first poll of each database
+     * @param minInterval interval after a poll that found changes
+     * @param maxInterval interval that idle databases back off to. If this equals minInterval, polling is not adaptive
+     * @param pollTask    polls the given database and returns the number of changes found
+     */
+    public PollingEngine(int maxConcurrent, Duration interval, Duration minInterval, Duration maxInterval,
+                         ToIntFunction<String> pollTask) {
+        this.permits = new Semaphore(Math.max(1, maxConcurrent), true);
+        this.minIntervalMillis = Math.max(1, minInterval.toMillis());
+        this.maxIntervalMillis = Math.max(minIntervalMillis, maxInterval.toMillis());
+        this.initialIntervalMillis = Math.clamp(interval.toMillis(), minIntervalMillis, maxIntervalMillis);
+        this.pollTask = pollTask;
+    }
+
+    /**
+     * Schedule all databases. The first ticks are spread evenly over one interval, so the databases don't all hit
+     * Notion at the same moment.
+     */
+    public void start(List<String> databaseIds) {
+        int count = databaseIds.size();
+        for (int i = 0; i < count; i++) {
+            long initialDelay = initialIntervalMillis * i / count;
+            schedule(databaseIds.get(i), initialDelay);
+        }
+        LOG.info("Polling {} databases every {} to {} ms with at most {} concurrent queries", count, minIntervalMillis,
+                maxIntervalMillis, permits.availablePermits());
+    }
+
+    /**
+     * Start polling a database, e.g. after another instance handed it over. The first tick comes within one interval.
+     */
+    public void add(String databaseId) {
+        schedule(databaseId, ThreadLocalRandom.current().nextLong(initialIntervalMillis));
+    }
+
+    /**
+     * Stop polling a database. Does not wait for a poll that is running right now, but the returned future only
+     * completes once it finished, so the database can be handed over to another instance without both polling it.
+     */
+    public CompletableFuture<Void> remove(String databaseId) {
+        PolledDatabase polled = databases.remove(databaseId);
+        if (polled == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        MetricsRegistry.DEFAULT.remove("notion_poll_interval_seconds", "database", databaseId);
+        ScheduledFuture<?> future = polled.future;
+        if (future != null) {
+            future.cancel(false);
+        }
+        CompletableFuture<Void> stopped = new CompletableFuture<>();
+        Thread.ofVirtual().name("notion-poll-stop-" + databaseId).start(() -> {
+            polled.polling.lock(); // Polls that did not start yet see that the database was removed
+            polled.polling.unlock();
+            stopped.complete(null);
+        });
+        return stopped;
+    }
+
+    private void schedule(String databaseId, long initialDelay) {
+        PolledDatabase polled = new PolledDatabase(databaseId, initialIntervalMillis);
+        if (databases.putIfAbsent(databaseId, polled) != null) {
+            LOG.warn("Database {} is listed more than once, ignoring duplicate", databaseId);
+            return;
+        }
+        MetricsRegistry.DEFAULT.gauge("notion_poll_interval_seconds", "Current polling interval of a database",
+                () -> polled.intervalMillis / 1000.0, "database", databaseId);
+        scheduleNext(polled, initialDelay);
+    }
+
+    private void scheduleNext(PolledDatabase polled, long delayMillis) {
+        if (!running || databases.get(polled.id) != polled) { // Removed in the meantime
+            return;
+        }
+        try {
+            polled.future = timer.schedule(() -> tick(polled), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    /*
+     * Runs on the timer thread, so this must never block.
+     */
+    private void tick(PolledDatabase polled) {
+        try {
+            workers.execute(() -> poll(polled));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    private void poll(PolledDatabase polled) {
+        boolean acquired = false;
+        int changes = 0;
+        try {
+            // Don't wait longer than one interval for a permit, the next tick will try again anyway
+            acquired = permits.tryAcquire(polled.intervalMillis, TimeUnit.MILLISECONDS);
+            if (!acquired) {
+                skippedTicks.inc();
+                LOG.warn("No free polling slot for database {} within one interval, skipping this tick", polled.id);
+                return;
+            }
+            polled.polling.lock();
+            try {
+                if (databases.get(polled.id) != polled) {
+                    return; // Removed while we waited for a slot
+                }
+                changes = pollTask.applyAsInt(polled.id);
+            } finally {
+                polled.polling.unlock();
+            }
+            if (polled.consecutiveFailures > 0) {
+                LOG.info("Database {} recovered after {} failed polls", polled.id, polled.consecutiveFailures);
+                polled.consecutiveFailures = 0;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            polled.consecutiveFailures++;
+            failedPolls.inc();
+            LOG.error("Error while checking database {} for new pages ({} failures in a row)", polled.id, polled.consecutiveFailures, e);
+        } finally {
+            if (acquired) {
+                permits.release();
+                polled.intervalMillis = nextInterval(polled.intervalMillis, changes);
+            }
+            scheduleNext(polled, jitter(polled.intervalMillis));
+        }
+    }
+
+    private long nextInterval(long current, int changes) {
+        if (changes > 0) {
+            return minIntervalMillis;
+        }
+        return Math.min(maxIntervalMillis, Math.max(current + 1, (long) (current * BACKOFF_FACTOR)));
+    }
+
+    private long jitter(long intervalMillis) {
+        if (minIntervalMillis == maxIntervalMillis) {
+            return intervalMillis; // Fixed interval, keep it exact
+        }
+        double factor = 1 + ThreadLocalRandom.current().nextDouble(-JITTER, JITTER);
+        return Math.max(1, (long) (intervalMillis * factor));
+    }
+
+    public void shutdown() {
+        running = false;
+        databases.values().forEach(polled -> {
+            ScheduledFuture<?> future = polled.future;
+            if (future != null) {
+                future.cancel(false);
+            }
+        });
+        timer.shutdown();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(60, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class PolledDatabase {
+        private final String id;
+        private volatile ScheduledFuture<?> future;
+        private volatile long intervalMillis;
+        private volatile int consecutiveFailures;
+        private final ReentrantLock polling = new ReentrantLock(); // Held while the database is being polled
+
+        private PolledDatabase(String id, long intervalMillis) {
+            this.id = id;
+            this.intervalMillis = intervalMillis;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package de.malfrador.notion;
+
+import notion.api.v1.http.NotionHttpClient;
+import notion.api.v1.http.NotionHttpResponse;
+import notion.api.v1.logging.NotionLogger;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Transport for the Notion SDK on top of {@link java.net.http.HttpClient}.
+ * The single client keeps its connections to Notion alive and reuses them, so we don't pay a TLS handshake for every
+ * request, and multiplexes concurrent requests over one HTTP/2 connection. Responses are requested gzip compressed.
+ */
+public class PooledNotionHttpClient implements NotionHttpClient {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PooledNotionHttpClient.class);
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final HttpClient client;
+    private final Duration requestTimeout;
+
+    public PooledNotionHttpClient(Duration connectTimeout, Duration requestTimeout, boolean http2) {
+        this.client = HttpClient.newBuilder()
+                .version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor)
+                .build();
+        this.requestTimeout = requestTimeout;
+    }
+
+    @NotNull
+    @Override
+    public NotionHttpResponse get(@NotNull NotionLogger logger, @NotNull String url,
+                                  @NotNull Map<String, ? extends List<String>> query, @NotNull Map<String, String> headers) {
+        return send(request(url, query, headers).GET());
+    }
+
+    @NotNull
+    @Override
+    public NotionHttpResponse postTextBody(@NotNull NotionLogger logger, @NotNull String url,
+                                           @NotNull Map<String, ? extends List<String>> query, @NotNull String body,
+                                           @NotNull Map<String, String> headers) {
+        return send(request(url, query, headers).POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8)));
+    }
+
+    @NotNull
+    @Override
+    public NotionHttpResponse patchTextBody(@NotNull NotionLogger logger, @NotNull String url,
+                                            @NotNull Map<String, ? extends List<String>> query, @NotNull String body,
+                                            @NotNull Map<String, String> headers) {
+        return send(request(url, query, headers).method("PATCH", HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8)));
+    }
+
+    @NotNull
+    @Override
+    public NotionHttpResponse delete(@NotNull NotionLogger logger, @NotNull String url,
+                                     @NotNull Map<String, ? extends List<String>> query, @NotNull Map<String, String> headers) {
+        return send(request(url, query, headers).DELETE());
+    }
+
+    /**
+     * Send a POST request and hand the response body to {@code handler} as a stream, without reading it into a string
+     * first. Error responses are passed to the handler as well.
+     */
+    public <T> T postStreaming(String url, Map<String, ? extends List<String>> query, String body,
+                               Map<String, String> headers, StreamHandler<T> handler) throws IOException {
+        HttpRequest request = request(url, query, headers)
+                .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+                .build();
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for Notion", e);
+        }
+        try (InputStream in = bodyStream(response)) {
+            return handler.handle(response.statusCode(), response.headers().map(), in);
+        }
+    }
+
+    /**
+     * Send a request with a streamed body, like a file upload. Sending a large body takes a while, so it gets its own
+     * timeout instead of the usual request timeout.
+     */
+    public NotionHttpResponse sendStreaming(String method, String url, HttpRequest.BodyPublisher body,
+                                            Map<String, String> headers, Duration timeout) {
+        return send(request(url, Map.of(), headers).timeout(timeout).method(method, body));
+    }
+
+    @Override
+    public void close() {
+        client.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    // The SDK's interface is written in Kotlin, so Java implementations have to forward its default methods
+
+    @NotNull
+    @Override
+    public String urlEncode(@NotNull String value) {
+        return NotionHttpClient.DefaultImpls.urlEncode(this, value);
+    }
+
+    @NotNull
+    @Override
+    public String buildQueryString(@NotNull Map<String, ? extends List<String>> query) {
+        return NotionHttpClient.DefaultImpls.buildQueryString(this, query);
+    }
+
+    @NotNull
+    @Override
+    public String buildFullUrl(@NotNull String url, @NotNull String queryString) {
+        return NotionHttpClient.DefaultImpls.buildFullUrl(this, url, queryString);
+    }
+
+    @Override
+    public void debugLogStart(@NotNull NotionLogger logger, @NotNull String method, @NotNull String fullUrl, String body) {
+        NotionHttpClient.DefaultImpls.debugLogStart(this, logger, method, fullUrl, body);
+    }
+
+    @Override
+    public void debugLogSuccess(@NotNull NotionLogger logger, long startTimeMillis, @NotNull NotionHttpResponse response) {
+        NotionHttpClient.DefaultImpls.debugLogSuccess(this, logger, startTimeMillis, response);
+    }
+
+    @Override
+    public void warnLogFailure(@NotNull NotionLogger logger, @NotNull Exception e) {
+        NotionHttpClient.DefaultImpls.warnLogFailure(this, logger, e);
+    }
+
+    private HttpRequest.Builder request(String url, Map<String, ? extends List<String>> query, Map<String, String> headers) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url + queryString(query)))
+                .timeout(requestTimeout)
+                .header("Accept-Encoding", "gzip");
+        headers.forEach((name, value) -> {
+            // The JDK client manages these itself and refuses them
+            if (!name.equalsIgnoreCase("Content-Length") && !name.equalsIgnoreCase("Connection") && !name.equalsIgnoreCase("Host")) {
+                builder.header(name, value);
+            }
+        });
+        return builder;
+    }
+
+    private NotionHttpResponse send(HttpRequest.Builder builder) {
+        HttpRequest request = builder.build();
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for Notion", e);
+        }
+        String body = decode(response);
+        LOG.debug("{} {} -> {} ({})", request.method(), request.uri().getPath(), response.statusCode(), response.version());
+        return new NotionHttpResponse(response.statusCode(), body, response.headers().map());
+    }
+
+    private static String decode(HttpResponse<InputStream> response) {
+        try (InputStream in = bodyStream(response)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static InputStream bodyStream(HttpResponse<InputStream> response) throws IOException {
+        boolean gzip = response.headers().firstValue("Content-Encoding").map(encoding -> encoding.equalsIgnoreCase("gzip")).orElse(false);
+        return gzip ? new GZIPInputStream(response.body()) : response.body();
+    }
+
+    private static String queryString(Map<String, ? extends List<String>> query) {
+        if (query.isEmpty()) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder();
+        query.forEach((name, values) -> {
+            for (String value : values) {
+                builder.append(builder.isEmpty() ? '?' : '&')
+                        .append(URLEncoder.encode(name, StandardCharsets.UTF_8))
+                        .append('=')
+                        .append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+            }
+        });
+        return builder.toString();
+    }
+
+    public interface StreamHandler<T> {
+        T handle(int status, Map<String, List<String>> headers, InputStream body) throws IOException;
+    }
+}
@@ -0,0 +1,92 @@
+package de.malfrador.notion;
+
+import notion.api.v1.model.databases.Database;
+import notion.api.v1.model.databases.DatabaseProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Re-fetches the reporting database every now and then, so new properties or select options show up on Discord
+ * without restarting the bot. Only the parts of the schema the form is built from go into the fingerprint, so a
+ * renamed database or a changed description does not cause an update.
+ */
+public class SchemaWatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SchemaWatcher.class);
+
+    private final Supplier<Database> fetcher;
+    private final Consumer<Database> onChange;
+    private final long intervalSeconds;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("notion-schema-watcher").daemon().factory());
+    private volatile long fingerprint;
+
+    public SchemaWatcher(Supplier<Database> fetcher, Consumer<Database> onChange, Duration interval, DatabaseMetadata current) {
+        this.fetcher = fetcher;
+        this.onChange = onChange;
+        this.intervalSeconds = interval.toSeconds();
+        this.fingerprint = fingerprint(current);
+    }
+
+    public void start() {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(this::check, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void check() {
+        try {
+            Database database = fetcher.get();
+            long current = fingerprint(DatabaseMetadata.of(database));
+            if (current == fingerprint) {
+                return;
+            }
+            LOG.info("Schema of the reporting database changed, updating the reporting form");
+            onChange.accept(database);
+            fingerprint = current; // Only once the change went through, otherwise try again next time
+        } catch (Exception e) {
+            LOG.warn("Failed to check the reporting database for schema changes", e);
+        }
+    }
+
+    /*
+     * 64 bit FNV-1a over property names, types and select options, in Notion's order
+     */
+    static long fingerprint(DatabaseMetadata metadata) {
+        long hash = 0xcbf29ce484222325L;
+        for (Map.Entry<String, DatabaseProperty> entry : metadata.properties().entrySet()) {
+            hash = hash(hash, entry.getKey());
+            hash = hash(hash, String.valueOf(entry.getValue().getType()));
+            Map<String, DatabaseProperty.Select.Option> options = metadata.selectOptions().get(entry.getKey());
+            if (options != null) {
+                for (String option : options.keySet()) {
+                    hash = hash(hash, option);
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= 0xFF; // Separator, so "ab" + "c" differs from "a" + "bc"
+        hash *= 0x100000001b3L;
+        return hash;
+    }
+}
@@ -0,0 +1,257 @@
+package de.malfrador.notion;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import net.dv8tion.jda.api.utils.data.DataArray;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import notion.api.v1.exception.NotionAPIError;
+import notion.api.v1.http.NotionHttpResponse;
+import notion.api.v1.json.GsonSerializer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Database query for change detection only. Asks Notion to leave out all properties but the title and the ones
+ * notifications are routed by, and stream-parses the response for the id, timestamps and routing values of each page,
+ * skipping everything else without building objects for it.
+ * Much cheaper than the SDK's query for databases with many properties, which turns every result into a full
+ * {@code Page}. The full pages are fetched later, and only for pages that actually changed.
+ */
+public class SlimDatabaseQuery {
+
+    private static final String NOTION_VERSION = "2022-06-28"; // Same as the SDK
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final GsonSerializer ERRORS = new GsonSerializer(false);
+
+    private final PooledNotionHttpClient http;
+    private final String baseUrl;
+    private final Map<String, String> headers;
+    private final Function<String, Collection<String>> routedPropertyIds;
+
+    public SlimDatabaseQuery(PooledNotionHttpClient http, String baseUrl, String token) {
+        this(http, baseUrl, token, databaseId -> List.of());
+    }
+
+    /**
+     * @param routedPropertyIds IDs of the properties of a database to return the values of, see {@link PageStub#properties()}
+     */
+    public SlimDatabaseQuery(PooledNotionHttpClient http, String baseUrl, String token,
+                             Function<String, Collection<String>> routedPropertyIds) {
+        this.http = http;
+        this.baseUrl = baseUrl;
+        this.routedPropertyIds = routedPropertyIds;
+        this.headers = Map.of(
+                "Authorization", "Bearer " + token,
+                "Notion-Version", NOTION_VERSION,
+                "Content-Type", "application/json; charset=utf-8");
+    }
+
+    /**
+     * Pages edited on or after {@code onOrAfter}, oldest first
+     *
+     * @throws NotionAPIError if Notion answers with an error, like the SDK does
+     */
+    public Result changedSince(String databaseId, Instant onOrAfter, String startCursor, int pageSize) {
+        return query(databaseId, "last_edited_time", onOrAfter, startCursor, pageSize);
+    }
+
+    /**
+     * Pages created on or after {@code onOrAfter}, oldest first
+     *
+     * @throws NotionAPIError if Notion answers with an error, like the SDK does
+     */
+    public Result createdSince(String databaseId, Instant onOrAfter, String startCursor, int pageSize) {
+        return query(databaseId, "created_time", onOrAfter, startCursor, pageSize);
+    }
+
+    private Result query(String databaseId, String timestamp, Instant onOrAfter, String startCursor, int pageSize) {
+        DataObject body = DataObject.empty()
+                .put("filter", DataObject.empty()
+                        .put("timestamp", timestamp)
+                        .put(timestamp, DataObject.empty().put("on_or_after", onOrAfter.toString())))
+                .put("sorts", DataArray.empty().add(DataObject.empty()
+                        .put("timestamp", timestamp)
+                        .put("direction", "ascending")))
+                .put("page_size", pageSize);
+        if (startCursor != null) {
+            body.put("start_cursor", startCursor);
+        }
+        // The title property always has the ID "title". Notion has no way to ask for no properties at all
+        Collection<String> routed = routedPropertyIds.apply(databaseId);
+        List<String> properties = new ArrayList<>(routed.size() + 1);
+        properties.add("title");
+        for (String id : routed) {
+            properties.add(decodePropertyId(id));
+        }
+        try {
+            return http.postStreaming(baseUrl + "/databases/" + databaseId + "/query",
+                    Map.of("filter_properties", properties), body.toString(), headers, SlimDatabaseQuery::handle);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * Notion hands out property IDs percent-encoded, like "%3AUPp", and the query string is encoded again when the
+     * request is built. A literal + would be a space for the decoder
+     */
+    static String decodePropertyId(String id) {
+        return URLDecoder.decode(id.replace("+", "%2B"), StandardCharsets.UTF_8);
+    }
+
+    static Result handle(int status, Map<String, List<String>> headers, InputStream body) throws IOException {
+        if (status < 200 || status >= 300) {
+            String error = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+            throw new NotionAPIError(ERRORS.toError(error), new NotionHttpResponse(status, error, headers));
+        }
+        return parse(body);
+    }
+
+    static Result parse(InputStream body) throws IOException {
+        List<PageStub> results = new ArrayList<>();
+        boolean hasMore = false;
+        String nextCursor = null;
+        try (JsonParser parser = JSON.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object from Notion");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "results" -> {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            results.add(parseStub(parser));
+                        }
+                    }
+                    case "has_more" -> hasMore = value == JsonToken.VALUE_TRUE;
+                    case "next_cursor" -> nextCursor = value == JsonToken.VALUE_NULL ? null : parser.getText();
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+        return new Result(results, hasMore, nextCursor);
+    }
+
+    private static PageStub parseStub(JsonParser parser) throws IOException {
+        String id = null;
+        String created = null;
+        String lastEdited = null;
+        Map<String, List<String>> properties = Map.of();
+        boolean archived = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "id" -> id = parser.getText();
+                case "archived", "in_trash" -> archived |= value == JsonToken.VALUE_TRUE;
+                case "created_time" -> created = parser.getText();
+                case "last_edited_time" -> lastEdited = parser.getText();
+                case "properties" -> properties = value == JsonToken.START_OBJECT ? parseProperties(parser) : Map.of();
+                default -> parser.skipChildren(); // Everything else
+            }
+        }
+        if (id == null || created == null || lastEdited == null) {
+            throw new IOException("Page in query result is missing its id or timestamps");
+        }
+        return new PageStub(id, Instant.parse(created), Instant.parse(lastEdited), properties, archived);
+    }
+
+    /*
+     * Property name -> values, for the property types notifications can be routed by, and the text of Text and
+     * Title properties
+     */
+    private static Map<String, List<String>> parseProperties(JsonParser parser) throws IOException {
+        Map<String, List<String>> properties = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            List<String> values = parsePropertyValues(parser);
+            if (values != null) {
+                if (properties == null) {
+                    properties = new HashMap<>();
+                }
+                properties.put(name, values);
+            }
+        }
+        return properties == null ? Map.of() : properties;
+    }
+
+    private static List<String> parsePropertyValues(JsonParser parser) throws IOException {
+        List<String> values = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "select", "status" -> {
+                    values = new ArrayList<>(1);
+                    if (value == JsonToken.START_OBJECT) {
+                        addOptionName(parser, values);
+                    }
+                }
+                case "multi_select" -> {
+                    values = new ArrayList<>();
+                    if (value == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            addOptionName(parser, values);
+                        }
+                    }
+                }
+                case "checkbox" -> values = List.of(String.valueOf(value == JsonToken.VALUE_TRUE));
+                case "rich_text", "title" -> {
+                    StringBuilder text = new StringBuilder();
+                    if (value == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            addPlainText(parser, text);
+                        }
+                    }
+                    values = List.of(text.toString());
+                }
+                default -> parser.skipChildren(); // id, type, and the values of other property types
+            }
+        }
+        return values;
+    }
+
+    private static void addOptionName(JsonParser parser, List<String> values) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if (field.equals("name")) {
+                values.add(parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static void addPlainText(JsonParser parser, StringBuilder text) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if (field.equals("plain_text")) {
+                text.append(parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    public record Result(List<PageStub> results, boolean hasMore, String nextCursor) {
+    }
+}
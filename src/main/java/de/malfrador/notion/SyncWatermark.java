@@ -0,0 +1,35 @@
+package de.malfrador.notion;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * How far polling got in a database: the newest last_edited_time we have handled, and the pages that were
+ * already handled at exactly that time (Notion only has minute precision, so there can be several).
+ */
+public record SyncWatermark(Instant lastEdited, Set<String> pagesAtLastEdited) {
+
+    public SyncWatermark {
+        pagesAtLastEdited = Set.copyOf(pagesAtLastEdited);
+    }
+
+    public static SyncWatermark at(Instant lastEdited) {
+        return new SyncWatermark(lastEdited, Set.of());
+    }
+
+    /**
+     * As a single line of text, for handing the database over to another instance
+     */
+    public String encode() {
+        return lastEdited.toEpochMilli() + ":" + String.join(",", pagesAtLastEdited);
+    }
+
+    public static SyncWatermark decode(String encoded) {
+        int separator = encoded.indexOf(':');
+        String pages = encoded.substring(separator + 1);
+        return new SyncWatermark(Instant.ofEpochMilli(Long.parseLong(encoded.substring(0, separator))),
+                pages.isEmpty() ? Set.of() : Arrays.stream(pages.split(",")).collect(Collectors.toSet()));
+    }
+}
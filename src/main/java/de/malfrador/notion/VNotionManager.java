@@ -1,53 +1,101 @@
 package de.malfrador.notion;
 
 import de.malfrador.Main;
+import de.malfrador.StartupTimer;
 import de.malfrador.VConfig;
-import de.malfrador.discord.DiscordProperty;
+import de.malfrador.cluster.LeaseStore;
+import de.malfrador.cluster.PartitionCoordinator;
 import de.malfrador.discord.VDiscordBot;
-import de.malfrador.reporting.ReportingProperty;
-import net.dv8tion.jda.api.EmbedBuilder;
-import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
+import de.malfrador.metrics.MetricsRegistry;
+import de.malfrador.notion.NotionRateLimiter.Priority;
+import de.malfrador.reporting.CompiledForm;
+import de.malfrador.reporting.DuplicateIndex;
+import de.malfrador.reporting.ReportOutbox;
+import de.malfrador.reporting.UploadedFile;
 import notion.api.v1.NotionClient;
 import notion.api.v1.logging.NotionLogger;
-import notion.api.v1.model.blocks.ParagraphBlock;
 import notion.api.v1.model.common.PropertyType;
 import notion.api.v1.model.databases.Database;
 import notion.api.v1.model.databases.DatabaseProperty;
-import notion.api.v1.model.databases.query.sort.QuerySort;
-import notion.api.v1.model.databases.query.sort.QuerySortDirection;
-import notion.api.v1.model.databases.query.sort.QuerySortTimestamp;
 import notion.api.v1.model.pages.PageParent;
 import notion.api.v1.model.pages.PageProperty;
 import notion.api.v1.request.pages.CreatePageRequest;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.awt.*;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 public class VNotionManager {
 
     private static final Logger LOG = LoggerFactory.getLogger(VNotionManager.class);
 
-    private final Map<String, String> lastPageIds = new HashMap<>();
-    private final Instant startupTime = Instant.now();
+    // Lease for answering Discord interactions, so only one instance handles each of them
+    private static final String DISCORD_LEASE = "discord-interactions";
+
+    private WatermarkStore watermarks;
+    // Databases we have never polled before start at the startup time, so we don't spam the channel.
+    // Notion timestamps only have minute precision
+    private final SyncWatermark initialWatermark = SyncWatermark.at(Instant.now().truncatedTo(ChronoUnit.MINUTES));
 
     private final String token;
     private final VConfig config = Main.config;
-    private Database database;
     private NotionClient client;
-    private final List<DiscordProperty> discordProperties = new ArrayList<>();
+    private PooledNotionHttpClient http;
+    private DatabaseMetadataCache metadataCache;
+    private NotionRateLimiter rateLimiter;
+    private NotionFileUploader fileUploader;
+    private volatile ReportOutbox reportOutbox;
+    private SlimDatabaseQuery reportQuery; // Looks for reports that may have been sent already
+    // Reporting database ID -> its form. Guilds that share a reporting database share the form
+    private final Map<String, ReportingDatabase> reportingDatabases = new ConcurrentHashMap<>();
+    private String defaultDatabaseId; // For reports stored before multi-guild support
     VDiscordBot discordBotThread;
 
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private PollingEngine pollingEngine;
+    private PartitionCoordinator coordinator;
+    private EditCoalescer coalescer;
+    private final PageSnapshotStore snapshots = new PageSnapshotStore(config.notion.snapshotMaxPages);
+    private NotificationPipeline notificationPipeline;
+    private NotificationRouter router;
+    // Database ID/property name of rule properties that were reported missing, to only log them once
+    private final Set<String> missingRuleProperties = ConcurrentHashMap.newKeySet();
+    // Text of the existing reports, to find possible duplicates of new ones. Null if duplicate detection is off
+    private final DuplicateIndex duplicates = config.notion.duplicateDetection ? new DuplicateIndex(config.notion.duplicateThreshold) : null;
+    private final ScheduledExecutorService duplicateSync = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("duplicate-index").daemon().factory());
+    private SlimDatabaseQuery duplicateQuery;
+    // Reporting database -> newest edit the duplicate index has seen, where to look for changes polling doesn't see
+    private final Map<String, Instant> duplicatesSeenUntil = new ConcurrentHashMap<>();
+    private CompletableFuture<Void> reportingReady = new CompletableFuture<>();
+    private final CountDownLatch firstPoll = new CountDownLatch(1);
 
 
     public VNotionManager(String token) {
@@ -57,260 +105,722 @@ public class VNotionManager {
     public void start() {
         this.client = new NotionClient(token);
         client.setLogger(new DummyLogger());
+        http = new PooledNotionHttpClient(Duration.ofSeconds(config.notion.notionConnectTimeout),
+                Duration.ofSeconds(config.notion.notionRequestTimeout), config.notion.notionHttp2);
+        client.setHttpClient(http);
+        rateLimiter = new NotionRateLimiter(config.notion.notionRequestsPerSecond, config.notion.notionRequestBurst, config.notion.notionMaxRetries);
+        fileUploader = new NotionFileUploader(http, client.getBaseUrl(), token, rateLimiter, config.notion.maxConcurrentUploads,
+                Duration.ofSeconds(config.notion.uploadTimeout));
+        metadataCache = new DatabaseMetadataCache(id -> retrieveDatabase(id, Priority.BACKGROUND),
+                Duration.ofSeconds(config.notion.metadataCacheTtl), config.notion.metadataCacheSize);
+        MetricsRegistry.DEFAULT.counter("metadata_cache_hits_total", "Database metadata cache hits", metadataCache::getHits);
+        MetricsRegistry.DEFAULT.counter("metadata_cache_misses_total", "Database metadata cache misses", metadataCache::getMisses);
+        MetricsRegistry.DEFAULT.counter("metadata_cache_evictions_total", "Database metadata cache evictions", metadataCache::getEvictions);
         LOG.info("Logged in to Notion API with token {}", token);
-        String dbUUID = config.notion.notionDatabaseUUID;
-        if (dbUUID == null || dbUUID.isEmpty() || dbUUID.equals("notion-database-uuid")) {
-            LOG.error("Please set the Notion database UUID in the config");
+        for (String dbUUID : config.reportingDatabases()) {
+            if (dbUUID == null || dbUUID.isEmpty() || dbUUID.equals("notion-database-uuid")) {
+                LOG.error("Please set the Notion database UUID in the config");
+                return;
+            }
+        }
+        defaultDatabaseId = config.guilds().getFirst().notionDatabaseUUID;
+
+        // Steps that don't depend on each other run at the same time. Polling only needs Discord and the watermarks,
+        // so it does not wait for the reporting databases
+        ExecutorService startup = Executors.newVirtualThreadPerTaskExecutor();
+        CompletableFuture<Void> discordLogin = phase(startup, "discord-login",
+                () -> discordBotThread = new VDiscordBot(config.global.discordToken, this));
+        CompletableFuture<Void> watermarksLoaded = phase(startup, "watermarks", () -> {
+            watermarks = new WatermarkStore(Path.of(config.notion.watermarkFile));
+            watermarks.load();
+        });
+        reportingReady = phase(startup, "notion-schema", this::loadProperties);
+        startup.shutdown(); // Runs the submitted steps to the end
+        // Replayed reports are sent right away, so they need the forms of the reporting databases
+        CompletableFuture<Void> outboxStarted = reportingReady.thenCompose(ignored ->
+                phase(Thread.ofVirtual().name("report-outbox-start")::start, "report-outbox", this::startReportOutbox));
+
+        outboxStarted.exceptionally(e -> {
+            if (!reportingReady.isCompletedExceptionally()) {
+                LOG.error("Failed to open report outbox {}, bug reports can't be accepted. Error: {}", config.notion.reportOutboxFile, e.getCause().getMessage());
+            }
+            return null;
+        });
+        reportingReady.whenComplete((ignored, e) -> {
+            if (e != null) {
+                LOG.error("Failed to load the reporting databases, please check the config. Error: {}", e.getCause().getMessage());
+                return;
+            }
+            discordLogin.thenRun(() -> discordBotThread.setupGuilds()); // Guilds that became ready before the forms
+            if (duplicates != null) {
+                startDuplicateIndex();
+            }
+        });
+        try {
+            discordLogin.join();
+        } catch (CompletionException e) {
+            LOG.error("Failed to start Discord bot. Error: {}", e.getCause().getMessage());
             return;
         }
-
         try {
-            this.database = client.retrieveDatabase(dbUUID);
-        } catch (Exception e) {
-            LOG.error("Failed to retrieve Notion database with UUID {}, please check the config. Error: {}", dbUUID, e.getMessage());
+            watermarksLoaded.join();
+        } catch (CompletionException e) {
+            LOG.error("Failed to open watermark file {}. Error: {}", config.notion.watermarkFile, e.getCause().getMessage());
             return;
         }
-
-        loadProperties();
         runScheduler(); // Start the scheduler
+        StartupTimer.milestone("polling-started");
+    }
+
+    /*
+     * Run a startup step on its own thread and record how long it took
+     */
+    private static CompletableFuture<Void> phase(Executor executor, String name, StartupStep step) {
+        return CompletableFuture.runAsync(() -> {
+            long start = System.nanoTime();
+            try {
+                step.run();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            } finally {
+                StartupTimer.phase(name, start);
+            }
+        }, executor);
+    }
+
+    /**
+     * Block until the first database was polled, or the timeout passed
+     *
+     * @return true if a database was polled
+     */
+    public boolean awaitFirstPoll(Duration timeout) throws InterruptedException {
+        return firstPoll.await(timeout.toMillis(), TimeUnit.MILLISECONDS);
     }
 
     public void runScheduler() {
-        scheduler.scheduleAtFixedRate(() -> {
+        router = NotificationRouter.compile(notificationRules());
+        notificationPipeline = new NotificationPipeline(client, rateLimiter, metadataCache, snapshots,
+                discordBotThread.getNotificationSender(), router::route, watermarks::release,
+                config.notion.enrichmentConcurrency, config.notion.notificationPipelineQueueSize);
+        notificationPipeline.start();
+        coalescer = new EditCoalescer(Duration.ofSeconds(config.notion.notificationQuietWindow),
+                Duration.ofSeconds(config.notion.notificationMaxDelay), notificationPipeline::submit, watermarks::release);
+        MetricsRegistry.DEFAULT.gauge("coalescer_pending_pages", "Changed pages waiting for their quiet window", coalescer::getPendingCount);
+        MetricsRegistry.DEFAULT.gauge("page_snapshots", "Pages tracked for change detection", snapshots::size);
+        SlimDatabaseQuery slimQuery = config.notion.slimPolling
+                ? new SlimDatabaseQuery(http, client.getBaseUrl(), token, this::polledPropertyIds)
+                : null;
+        Set<String> monitored = config.monitoredDatabases();
+        // The stored watermark stays behind changes until the pipeline is done with them, so a crash doesn't lose them
+        Consumer<PageChange> notify = change -> {
+            watermarks.hold(change);
+            coalescer.offer(change);
+        };
+        Consumer<PageChange> changes = duplicates == null ? notify : change -> {
+            indexChange(change);
+            if (monitored.contains(change.databaseId())) {
+                notify.accept(change); // Reporting databases are only polled for the index otherwise
+            }
+        };
+        DatabasePoller poller = new DatabasePoller(client, rateLimiter, slimQuery, watermarks, initialWatermark,
+                config.notion.incrementalSync, config.notion.databaseQuerySize, changes);
+        // With several instances, only poll databases we hold the lease for, even if a handover is under way
+        ToIntFunction<String> ownedPolls = config.cluster.enabled
+                ? databaseId -> coordinator.owns(databaseId) ? poller.poll(databaseId) : 0
+                : poller::poll;
+        ToIntFunction<String> pollTask = databaseId -> {
             try {
-                for (String dbId : config.notion.monitoredDatabases) {
-                    checkForNewPages(dbId);
+                return ownedPolls.applyAsInt(databaseId);
+            } finally {
+                if (firstPoll.getCount() > 0) {
+                    firstPoll.countDown();
+                    StartupTimer.milestone("first-poll");
                 }
-            } catch (Exception e) {
-                LOG.error("Error while checking for new pages", e);
             }
-        }, 0, config.notion.databaseQueryInterval, TimeUnit.SECONDS);
+        };
+        Duration interval = Duration.ofSeconds(config.notion.databaseQueryInterval);
+        pollingEngine = config.notion.adaptivePolling
+                ? new PollingEngine(config.notion.maxConcurrentPolls, interval, Duration.ofSeconds(config.notion.minQueryInterval),
+                        Duration.ofSeconds(config.notion.maxQueryInterval), pollTask)
+                : new PollingEngine(config.notion.maxConcurrentPolls, interval, interval, interval, pollTask);
+        if (config.cluster.enabled) {
+            startCluster();
+        } else {
+            pollingEngine.start(List.copyOf(polledDatabases()));
+        }
     }
 
     /*
-     * Shutdown the scheduler, just in case
+     * Split the monitored databases with the other instances that share the lease directory.
+     * Databases are only polled while we hold their lease.
      */
-    public void shutdown() {
-        scheduler.shutdown();
+    private void startCluster() {
+        String instanceId = config.cluster.instanceId.isEmpty() ? defaultInstanceId() : config.cluster.instanceId;
+        LeaseStore leases;
         try {
-            if (!scheduler.awaitTermination(60, TimeUnit.SECONDS)) {
-                scheduler.shutdownNow();
-            }
-        } catch (InterruptedException e) {
-            scheduler.shutdownNow();
-            Thread.currentThread().interrupt();
+            leases = new LeaseStore(Path.of(config.cluster.leaseDirectory));
+        } catch (IOException e) {
+            LOG.error("Failed to open lease directory {}, not polling any databases. Error: {}", config.cluster.leaseDirectory, e.getMessage());
+            return;
         }
+        coordinator = new PartitionCoordinator(leases, instanceId, Duration.ofSeconds(config.cluster.leaseDuration),
+                Duration.ofSeconds(config.cluster.leaseRenewInterval), config.cluster.virtualNodes,
+                new PartitionCoordinator.OwnershipListener() {
+                    @Override
+                    public void acquired(String key, @Nullable String state) {
+                        if (key.equals(DISCORD_LEASE)) {
+                            discordBotThread.setupGuilds();
+                            return;
+                        }
+                        takeOverWatermark(key, state);
+                        pollingEngine.add(key);
+                    }
+
+                    @Override
+                    public CompletableFuture<?> released(String key) {
+                        return key.equals(DISCORD_LEASE) ? CompletableFuture.completedFuture(null) : pollingEngine.remove(key);
+                    }
+                },
+                key -> {
+                    // What we have delivered, the next owner polls the rest again if we crash
+                    SyncWatermark watermark = watermarks.stored(key);
+                    return watermark == null ? null : watermark.encode();
+                });
+        List<String> keys = new ArrayList<>(polledDatabases());
+        keys.add(DISCORD_LEASE);
+        pollingEngine.start(List.of());
+        coordinator.start(keys);
     }
 
-    /**
-     * Insert a new page into the Notion database.
-     * This is used by the Discord bot to insert bug reports.
+    /*
+     * Continue from where the previous owner of the database stopped, unless we got further ourselves
      */
-    public void insertIntoDatabase(Map<String, String> properties) {
-        if (database == null) {
-            LOG.error("Notion database is not loaded yet, skipping insert");
+    private void takeOverWatermark(String databaseId, @Nullable String state) {
+        if (state == null) {
             return;
         }
-        Map<String, PageProperty> propertiesMap = new HashMap<>();
-        for (Map.Entry<String, String> entry : properties.entrySet()) {
-            PropertyType propertyType = getPropertyType(entry.getKey());
-            if (propertyType == null) {
-                LOG.warn("Property {} not found in Notion database, skipping", entry.getKey());
+        SyncWatermark handedOver = SyncWatermark.decode(state);
+        SyncWatermark local = watermarks.get(databaseId);
+        if (local == null || !handedOver.lastEdited().isBefore(local.lastEdited())) {
+            watermarks.put(databaseId, handedOver);
+        }
+    }
+
+    private static String defaultInstanceId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "localhost";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+
+    /**
+     * @return true if this instance answers Discord interactions. Only one instance does when running several
+     */
+    public boolean handlesDiscord() {
+        return coordinator == null ? !config.cluster.enabled : coordinator.owns(DISCORD_LEASE);
+    }
+
+    /*
+     * The notification rules of all guilds. Guilds without rules get notified about every change in their monitored
+     * databases, in their notification channel
+     */
+    private List<NotificationRouter.Rule> notificationRules() {
+        List<NotificationRouter.Rule> rules = new ArrayList<>();
+        for (VConfig.BotConfig.GuildSetup guild : config.guilds()) {
+            if (guild.notificationRules.isEmpty()) {
+                guild.monitoredDatabases.forEach(databaseId -> rules.add(NotificationRouter.Rule.always(databaseId, guild.notificationChannelId)));
                 continue;
             }
-            PageProperty property = new PageProperty();
-            switch (propertyType) {
-                case RichText:
-                    PageProperty.RichText richText = new PageProperty.RichText();
-                    richText.setText(new PageProperty.RichText.Text(entry.getValue()));
-                    property.setRichText(Collections.singletonList(richText));
-                    break;
-                case Checkbox:
-                    property.setCheckbox(Boolean.parseBoolean(entry.getValue()));
-                    break;
-                case Select:
-                    DatabaseProperty.Select.Option option = database.getProperties().get(entry.getKey()).getSelect().getOptions().stream()
-                            .filter(o -> o.getName().equals(entry.getValue()))
-                            .findFirst()
-                            .orElse(null);
-                    property.setSelect(option);
-                    break;
-                case Title:
-                    PageProperty.RichText titleText = new PageProperty.RichText();
-                    titleText.setText(new PageProperty.RichText.Text(entry.getValue()));
-                    property.setTitle(Collections.singletonList(titleText));
-                    break;
-                default:
-                    LOG.warn("Property {} has unsupported type {}, skipping", entry.getKey(), propertyType);
+            for (VConfig.BotConfig.NotificationRule rule : guild.notificationRules) {
+                NotificationRouter.ChangeType changeType;
+                try {
+                    changeType = NotificationRouter.ChangeType.valueOf(rule.changeType.toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("Unknown change type {} in notification rule, use new, edit or any", rule.changeType);
+                    changeType = NotificationRouter.ChangeType.ANY;
+                }
+                String channelId = rule.channelId.isEmpty() ? guild.notificationChannelId : rule.channelId;
+                for (String databaseId : rule.databases.isEmpty() ? guild.monitoredDatabases : rule.databases) {
+                    if (!guild.monitoredDatabases.contains(databaseId)) {
+                        LOG.warn("Notification rule for database {} has no effect, it is not monitored", databaseId);
+                        continue;
+                    }
+                    rules.add(new NotificationRouter.Rule(databaseId, rule.property.isEmpty() ? null : rule.property,
+                            Set.copyOf(rule.values), changeType, channelId));
+                }
             }
-            propertiesMap.put(entry.getKey(), property);
         }
-        PageParent parent = PageParent.database(database.getId());
-        CreatePageRequest createPageRequest = new CreatePageRequest(parent, propertiesMap);
-        client.createPage(createPageRequest);
+        return rules;
     }
 
-    /**
-     * Get the property type of a property in the Notion database
+    /*
+     * The monitored databases, and the reporting databases if the duplicate index needs to see their changes
+     */
+    private Set<String> polledDatabases() {
+        Set<String> databases = new LinkedHashSet<>(config.monitoredDatabases());
+        if (duplicates != null) {
+            databases.addAll(config.reportingDatabases());
+        }
+        return databases;
+    }
+
+    /*
+     * IDs of the properties that notifications of the database are routed by, and of the Text properties of reporting
+     * databases for the duplicate index, for the slim query to include
      */
-    private PropertyType getPropertyType(String notionID) {
-        for (DiscordProperty property : discordProperties) {
-            if (property.notionID().equals(notionID)) {
-                return property.notionPropertyType();
+    private Collection<String> polledPropertyIds(String databaseId) {
+        Set<String> names = new LinkedHashSet<>(router.properties(databaseId));
+        Map<String, DatabaseProperty> properties = metadataCache.get(databaseId).properties();
+        for (String name : names) {
+            if (!properties.containsKey(name) && missingRuleProperties.add(databaseId + "/" + name)) {
+                LOG.error("Notification rules for database {} look at the property {}, which the database doesn't have. "
+                        + "These rules never match, check the property name in the config", databaseId, name);
             }
         }
-        return null;
+        if (duplicates != null && reportingDatabases.containsKey(databaseId)) {
+            names.addAll(textProperties(databaseId));
+        }
+        return propertyIds(databaseId, names);
     }
 
-    /**
-     * Load the properties available in the Notion database
+    private Collection<String> propertyIds(String databaseId, Collection<String> names) {
+        if (names.isEmpty()) {
+            return List.of();
+        }
+        Map<String, DatabaseProperty> properties = metadataCache.get(databaseId).properties();
+        List<String> ids = new ArrayList<>(names.size());
+        for (String name : names) {
+            DatabaseProperty property = properties.get(name);
+            if (property != null && property.getId() != null) {
+                ids.add(property.getId());
+            }
+        }
+        return ids;
+    }
+
+    /*
+     * Names of the Text properties of a reporting database, kept up to date by the schema watcher. Never goes to
+     * Notion, so this is safe on the Discord event threads
      */
-    private void loadProperties() {
-        List<ReportingProperty> properties = new ArrayList<>(List.of());
-        for (Map.Entry<String, DatabaseProperty> entry : database.getProperties().entrySet()) {
-            discordProperties.add(
-                    new DiscordProperty(
-                            entry.getKey(),
-                            entry.getKey(),
-                            entry.getValue().getType()
-                    )
-            );
-            switch (entry.getValue().getType()) {
-                case RichText, Checkbox -> properties.add(new ReportingProperty(entry.getKey(), entry.getValue().getType()));
-                case Select -> {
-                    List<String> values = new ArrayList<>(List.of());
-                    if (entry.getValue().getSelect() == null || entry.getValue().getSelect().getOptions() == null) {
-                        LOG.warn("Select property {} has no options. Add some in the Notion database", entry.getKey());
-                        break;
-                    }
-                    for (DatabaseProperty.Select.Option option : entry.getValue().getSelect().getOptions()) {
-                        values.add(option.getName());
-                    }
-                    properties.add(new ReportingProperty(entry.getKey(), entry.getValue().getType(), values.toArray(new String[0])));
-                }
-                default -> {} // Ignore unsupported property types that we aren't able to show on Discord anyway
+    private List<String> textProperties(String databaseId) {
+        ReportingDatabase reporting = reportingDatabases.get(databaseId);
+        return reporting == null ? List.of() : reporting.textProperties;
+    }
+
+    /*
+     * In a fixed order, so the text of a report is always put together the same way
+     */
+    private static List<String> textProperties(DatabaseMetadata metadata) {
+        List<String> names = new ArrayList<>();
+        metadata.properties().forEach((name, property) -> {
+            if (property.getType() == PropertyType.RichText) {
+                names.add(name);
             }
+        });
+        names.sort(null);
+        return List.copyOf(names);
+    }
+
+    /*
+     * Load every report of the reporting databases into the duplicate index, and keep it up to date. With several
+     * instances, polling only sees the databases we hold the lease for, so the others are queried for changes here.
+     * Deleted, archived and trashed reports don't show up in queries, so everything is loaded again now and then to
+     * drop them
+     */
+    private void startDuplicateIndex() {
+        // Polling may not have started yet, so this can't use the routed properties
+        duplicateQuery = new SlimDatabaseQuery(http, client.getBaseUrl(), token,
+                databaseId -> propertyIds(databaseId, textProperties(databaseId)));
+        MetricsRegistry.DEFAULT.gauge("duplicate_index_reports", "Reports in the duplicate detection index", duplicates::size);
+        duplicateSync.execute(this::loadDuplicateIndex);
+        if (config.cluster.enabled) {
+            long interval = config.notion.databaseQueryInterval;
+            duplicateSync.scheduleWithFixedDelay(this::updateDuplicateIndex, interval, interval, TimeUnit.SECONDS);
+        }
+        long reload = config.notion.duplicateIndexReload * 60L;
+        if (reload > 0) {
+            duplicateSync.scheduleWithFixedDelay(this::loadDuplicateIndex, reload, reload, TimeUnit.SECONDS);
         }
-        LOG.info("Loaded {} properties from Notion database", properties.size());
-        discordBotThread = new VDiscordBot(config.global.discordToken, properties, this);
     }
 
     /*
-     * Query notion for new pages in the database.
-     * If a new page is found, notify Discord
+     * Changes polled in the meantime are newer, so the index keeps them
      */
-    private void checkForNewPages(String databaseId) {
-        Instant lastKnownTime = lastPageIds.containsKey(databaseId)
-                ? Instant.parse(lastPageIds.getOrDefault(databaseId, ""))
-                : startupTime;  // Check for pages created after startup, so we don't spam the channel
-
-        var sort = new QuerySort();
-        sort.setTimestamp(QuerySortTimestamp.LastEditedTime);
-        sort.setDirection(QuerySortDirection.Descending);
-        List<QuerySort> sorts = Collections.singletonList(sort);
-
-        var results = client.queryDatabase(databaseId, null, sorts, null, config.notion.databaseQuerySize);
-        if (results.getResults().isEmpty()) {
-            LOG.info("No pages found in database {}", databaseId);
-            return;
+    private void loadDuplicateIndex() {
+        for (String databaseId : reportingDatabases.keySet()) {
+            long start = System.nanoTime();
+            Set<String> pages = new HashSet<>();
+            try {
+                queryDuplicateIndex(databaseId, Instant.EPOCH, pages);
+            } catch (RuntimeException e) {
+                LOG.error("Failed to load reports of Notion database {} for duplicate detection. Error: {}", databaseId, e.getMessage());
+                continue;
+            }
+            int removed = duplicates.retain(databaseId, pages, start);
+            LOG.info("Indexed {} reports of Notion database {} for duplicate detection in {} ms, removed {}", pages.size(),
+                    databaseId, (System.nanoTime() - start) / 1_000_000, removed);
         }
+    }
 
-        String newestEditTime = results.getResults().getFirst().getLastEditedTime();
+    /*
+     * Index the changes of the reporting databases we don't poll
+     */
+    private void updateDuplicateIndex() {
+        for (String databaseId : reportingDatabases.keySet()) {
+            Instant seenUntil = duplicatesSeenUntil.get(databaseId);
+            if (seenUntil == null || (coordinator != null && coordinator.owns(databaseId))) {
+                continue; // Not loaded yet, or polling sees its changes
+            }
+            try {
+                // Notion compares timestamps by the minute
+                queryDuplicateIndex(databaseId, seenUntil.truncatedTo(ChronoUnit.MINUTES), new HashSet<>());
+            } catch (RuntimeException e) {
+                LOG.warn("Failed to update the duplicate index for Notion database {}. Error: {}", databaseId, e.getMessage());
+            }
+        }
+    }
 
-        // Check for new pages and edits
-        for (var page : results.getResults()) {
-            Instant pageEditTime = Instant.parse(page.getLastEditedTime());
-            if (pageEditTime.compareTo(lastKnownTime) <= 0) {
-                break;
+    /*
+     * Index the reports edited on or after the given time
+     *
+     * @param pages filled with the IDs of the indexed reports
+     */
+    private void queryDuplicateIndex(String databaseId, Instant onOrAfter, Set<String> pages) {
+        String cursor = null;
+        do {
+            String startCursor = cursor;
+            SlimDatabaseQuery.Result result = rateLimiter.execute(Priority.BACKGROUND, "databases.query",
+                    () -> duplicateQuery.changedSince(databaseId, onOrAfter, startCursor, 100));
+            for (PageStub stub : result.results()) {
+                indexStub(databaseId, stub);
+                if (!stub.archived()) {
+                    pages.add(stub.id());
+                }
             }
-            notifyDiscord(page, databaseId);
+            cursor = result.hasMore() ? result.nextCursor() : null;
+        } while (cursor != null);
+    }
+
+    private void indexChange(PageChange change) {
+        if (reportingDatabases.containsKey(change.databaseId())) {
+            indexStub(change.databaseId(), change.stub());
         }
+    }
 
-        lastPageIds.put(databaseId, newestEditTime);
+    private void indexStub(String databaseId, PageStub stub) {
+        if (stub.archived()) {
+            duplicates.remove(databaseId, stub.id());
+        } else {
+            indexReport(databaseId, stub.id(), stub.lastEditedTime(), name -> String.join("\n", stub.values(name)));
+        }
+        duplicatesSeenUntil.merge(databaseId, stub.lastEditedTime(), (seen, edited) -> edited.isAfter(seen) ? edited : seen);
     }
 
     /*
-     * Notify Discord about a new page or edit in the Notion database.
-     * This will create an embed message with the page title, content, and properties.
+     * The title of a report is the reporter's Discord tag, so only its Text properties are compared
      */
-    private void notifyDiscord(notion.api.v1.model.pages.Page page, String databaseId) {
-        MessageChannel channel = discordBotThread.getJda()
-                .getTextChannelById(config.discord.notificationChannelId);
-        if (channel == null) {
-            LOG.error("Notification channel not found");
-            return;
+    private void indexReport(String databaseId, String pageId, Instant lastEdited, Function<String, String> values) {
+        String label = null;
+        StringBuilder text = new StringBuilder();
+        for (String name : textProperties(databaseId)) {
+            String value = values.apply(name);
+            if (value == null || value.isBlank()) {
+                continue;
+            }
+            if (label == null) {
+                label = value;
+            }
+            text.append(value).append('\n');
         }
+        duplicates.put(databaseId, pageId, lastEdited, label == null ? "" : label, pageUrl(pageId), text.toString());
+    }
 
-        String title = extractTitle(page);
-        String url = "https://notion.so/" + page.getId().replace("-", "");
+    private static String pageUrl(String pageId) {
+        return "https://www.notion.so/" + pageId.replace("-", "");
+    }
 
-        // Get database name
-        Database db = client.retrieveDatabase(databaseId);
-        String databaseName = db.getTitle().stream()
-                .findFirst()
-                .map(t -> t.getPlainText())
-                .orElse("Unknown Database");
+    /**
+     * Existing reports with text similar to a report that is about to be submitted, most similar first. Only looks at
+     * the index in memory, so it is fast enough to run while the user waits
+     *
+     * @return an empty list if there are none, or duplicate detection is off
+     */
+    public List<DuplicateIndex.Match> findDuplicates(String databaseId, Map<String, String> properties) {
+        if (duplicates == null) {
+            return List.of();
+        }
+        StringBuilder text = new StringBuilder();
+        for (String name : textProperties(databaseId)) {
+            String value = properties.get(name);
+            if (value != null && !value.isBlank()) {
+                text.append(value).append('\n');
+            }
+        }
+        return duplicates.similar(databaseId, text.toString(), config.notion.duplicateMaxShown);
+    }
 
-        // Get page content from blocks
-        StringBuilder contentBuilder = new StringBuilder();
-        var blocks = client.retrieveBlockChildren(page.getId(), null, 5);
-        blocks.getResults().forEach(block -> {
-            if (block.asParagraph() != null) {
-                ParagraphBlock paragraph = block.asParagraph();
-                paragraph.getParagraph().getRichText().forEach(richText -> contentBuilder.append(richText.getPlainText()));
+    /*
+     * Shutdown the scheduler, just in case
+     */
+    public void shutdown() {
+        duplicateSync.shutdownNow();
+        reportingDatabases.values().forEach(reporting -> {
+            if (reporting.schemaWatcher != null) {
+                reporting.schemaWatcher.shutdown();
             }
         });
+        if (pollingEngine != null) {
+            pollingEngine.shutdown();
+        }
+        if (coalescer != null) {
+            coalescer.flush(); // Don't lose changes that are still waiting for their quiet window
+        }
+        if (notificationPipeline != null) {
+            notificationPipeline.shutdown(Duration.ofSeconds(30));
+        }
+        if (discordBotThread != null && discordBotThread.getNotificationSender() != null) {
+            // Stored watermarks only move past changes once Discord got them
+            discordBotThread.getNotificationSender().shutdown(Duration.ofSeconds(30));
+        }
+        if (coordinator != null) {
+            // Hands our databases over with their watermarks. Changes we could not deliver in time are still behind
+            // the watermark, so the next owner notifies them again
+            coordinator.shutdown();
+        }
+        if (reportOutbox != null) {
+            reportOutbox.shutdown();
+        }
+        if (fileUploader != null) {
+            fileUploader.shutdown();
+        }
+        if (watermarks != null) {
+            watermarks.close();
+        }
+        if (metadataCache != null) {
+            metadataCache.logStats();
+        }
+        if (client != null) {
+            client.close(); // Closes the pooled connections
+        }
+    }
 
-        // Get properties content
-        page.getProperties().forEach((key, prop) -> {
-            if (prop.getType() == PropertyType.RichText && prop.getRichText() != null) {
-                String text = prop.getRichText().stream()
-                        .map(t -> t.getPlainText())
-                        .filter(t -> !t.isEmpty())
-                        .reduce((a, b) -> a + "\n" + b)
-                        .orElse("");
-                if (!text.isEmpty()) {
-                    contentBuilder.append("**").append(key).append("**:\n")
-                            .append(text).append("\n\n");
+    /**
+     * Queue a bug report from the Discord bot for insertion into the Notion database.
+     * The report is stored on disk before this returns, and sent to Notion in the background.
+     */
+    public ReportOutbox.Result submitReport(String submissionId, String databaseId, Map<String, String> properties) {
+        ReportOutbox outbox = reportOutbox;
+        if (outbox == null) {
+            throw new IllegalStateException("Report outbox is not open");
+        }
+        return outbox.submit(submissionId, databaseId, properties);
+    }
+
+    /**
+     * Stream a file from Discord's CDN into Notion in the background. Notion drops uploaded files that are not attached
+     * to a page within an hour
+     */
+    public CompletableFuture<UploadedFile> uploadAttachment(String url, String filename, @Nullable String contentType, long size) {
+        return fileUploader.submit(url, filename, contentType, size);
+    }
+
+    /**
+     * @return the form of the reporting database, or null if it is not loaded
+     */
+    public CompiledForm getForm(String databaseId) {
+        ReportingDatabase reporting = reportingDatabases.get(databaseId);
+        return reporting == null ? null : reporting.form;
+    }
+
+    private void startReportOutbox() throws IOException {
+        reportQuery = new SlimDatabaseQuery(http, client.getBaseUrl(), token, databaseId -> propertyIds(databaseId, textProperties(databaseId)));
+        ReportOutbox outbox = new ReportOutbox(Path.of(config.notion.reportOutboxFile), this::sendReport, config.notion.reportMaxAttempts);
+        outbox.start();
+        MetricsRegistry.DEFAULT.gauge("report_outbox_pending", "Bug reports waiting to be sent to Notion", outbox::getPendingCount);
+        reportOutbox = outbox;
+    }
+
+    /*
+     * Used by the report outbox, throws if the report should be sent again later
+     */
+    private void sendReport(ReportOutbox.Report report, boolean resend) {
+        String databaseId = report.databaseId() != null ? report.databaseId() : defaultDatabaseId;
+        ReportingDatabase reporting = reportingDatabases.get(databaseId);
+        if (reporting == null || reporting.form == null) {
+            throw new IllegalStateException("Notion database " + databaseId + " is not loaded");
+        }
+        if (resend) {
+            String pageId = findSentReport(databaseId, report);
+            if (pageId != null) {
+                LOG.info("Bug report {} is already in Notion as page {}, not sending it again", report.submissionId(), pageId);
+                return;
+            }
+        }
+        insertIntoDatabase(databaseId, reporting, report);
+    }
+
+    /*
+     * A report that may have been sent already is in Notion if a page created since it was submitted has the same
+     * title and text. Notion timestamps only have minute precision, and our clock may be a bit off
+     *
+     * @return the ID of the page, or null if there is none
+     */
+    private String findSentReport(String databaseId, ReportOutbox.Report report) {
+        Instant since = Instant.ofEpochMilli(report.submittedAt()).minus(Duration.ofMinutes(2));
+        String cursor = null;
+        do {
+            String startCursor = cursor;
+            SlimDatabaseQuery.Result result = rateLimiter.execute(Priority.INTERACTIVE, "databases.query",
+                    () -> reportQuery.createdSince(databaseId, since, startCursor, 100));
+            for (PageStub stub : result.results()) {
+                if (sameReport(stub, report.properties())) {
+                    return stub.id();
                 }
             }
-        });
+            cursor = result.hasMore() ? result.nextCursor() : null;
+        } while (cursor != null);
+        return null;
+    }
 
-        String content = contentBuilder.toString().trim();
+    /*
+     * The query only returns the title and the Text properties
+     */
+    private static boolean sameReport(PageStub stub, Map<String, String> properties) {
+        for (Map.Entry<String, List<String>> property : stub.properties().entrySet()) {
+            String value = properties.get(property.getKey());
+            if (value != null && !value.equals(String.join("", property.getValue()))) {
+                return false;
+            }
+        }
+        return !stub.properties().isEmpty();
+    }
+
+    /**
+     * Insert a new page into the Notion database.
+     */
+    private void insertIntoDatabase(String databaseId, ReportingDatabase reporting, ReportOutbox.Report report) {
+        long start = System.nanoTime();
+        try {
+            CompiledForm form = reporting.form;
+            Map<String, PageProperty> propertiesMap = form.toPageProperties(report.properties());
+            PageParent parent = PageParent.database(reporting.database.getId());
+            CreatePageRequest createPageRequest = new CreatePageRequest(parent, propertiesMap);
+            String filesProperty = form.attachmentProperty();
+            List<UploadedFile> files = filesProperty == null ? List.of() : unexpired(UploadedFile.decode(report.properties().get(filesProperty)));
+            String pageId = files.isEmpty()
+                    ? rateLimiter.execute(Priority.INTERACTIVE, "pages.create", false, () -> client.createPage(createPageRequest)).getId()
+                    : rateLimiter.execute(Priority.INTERACTIVE, "pages.create", false, () -> fileUploader.createPage(createPageRequest, filesProperty, files));
+            if (duplicates != null) {
+                // Reports of the same problem often come in right after each other, so don't wait for polling to see
+                // it. Whatever polling sees later is newer. The page exists now, so a failure here must not retry it
+                try {
+                    indexReport(databaseId, pageId, Instant.EPOCH, report.properties()::get);
+                } catch (RuntimeException e) {
+                    LOG.warn("Failed to add report {} to the duplicate index. Error: {}", pageId, e.getMessage());
+                }
+            }
+        } catch (RuntimeException e) {
+            MetricsRegistry.DEFAULT.counter("report_insert_failures_total", "Failed attempts to insert a bug report into Notion").inc();
+            throw e;
+        } finally {
+            MetricsRegistry.DEFAULT.histogram("report_insert_duration_seconds", "Time taken to insert a bug report into Notion")
+                    .observeSince(start);
+        }
+    }
 
-        Instant lastEdited = Instant.parse(page.getLastEditedTime());
-        Instant created = Instant.parse(page.getCreatedTime());
-        boolean isEdit = lastEdited.isAfter(created);
+    /*
+     * Notion drops file uploads that were not attached within an hour, so upload the files of a report that waited in
+     * the outbox for that long again. Files that can't be uploaded again, like when Discord no longer has them, are
+     * left out instead of failing the report
+     */
+    private List<UploadedFile> unexpired(List<UploadedFile> files) {
+        Instant now = Instant.now();
+        List<UploadedFile> unexpired = new ArrayList<>(files.size());
+        for (UploadedFile file : files) {
+            if (!file.isExpired(now)) {
+                unexpired.add(file);
+                continue;
+            }
+            try {
+                unexpired.add(fileUploader.submit(file.sourceUrl(), file.filename(), file.contentType(), file.size()).join());
+                LOG.info("Uploaded expired attachment {} again", file.filename());
+            } catch (RuntimeException e) {
+                MetricsRegistry.DEFAULT.counter("report_attachments_lost_total", "Attachments left out of a report because their upload expired").inc();
+                LOG.error("Attachment {} expired in Notion and could not be uploaded again, sending the report without it. Error: {}",
+                        file.filename(), e.getMessage());
+            }
+        }
+        return unexpired;
+    }
 
-        EmbedBuilder embed = new EmbedBuilder()
-                .setTitle(title, url)
-                .setColor(isEdit ? Color.YELLOW : Color.GREEN)
-                .setTimestamp(Instant.now())
-                .addField("Database", databaseName, false)
-                .addField("Type", isEdit ? "Page Edit" : "New Page", true)
-                .addField("Last Edited", lastEdited.toString(), true);
+    private Database retrieveDatabase(String databaseId, Priority priority) {
+        return rateLimiter.execute(priority, "databases.retrieve", () -> client.retrieveDatabase(databaseId));
+    }
 
-        if (!content.isEmpty()) {
-            if (content.length() > 500) { // Let's not spam the channel with huge messages
-                content = content.substring(0, 500) + "...";
+    /**
+     * Load the properties available in the Notion databases, fetching all reporting databases at the same time
+     */
+    private void loadProperties() throws Exception {
+        try (ExecutorService fetchers = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Database>> fetches = new ArrayList<>();
+            List<String> databaseIds = List.copyOf(config.reportingDatabases());
+            for (String databaseId : databaseIds) {
+                fetches.add(fetchers.submit(() -> retrieveDatabase(databaseId, Priority.INTERACTIVE)));
+            }
+            for (int i = 0; i < databaseIds.size(); i++) {
+                String databaseId = databaseIds.get(i);
+                Database database;
+                try {
+                    database = fetches.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Failed to retrieve Notion database with UUID " + databaseId + ": " + e.getCause().getMessage(), e.getCause());
+                }
+                ReportingDatabase reporting = new ReportingDatabase(database);
+                DatabaseMetadata metadata = metadataCache.put(databaseId, database);
+                reporting.form = CompiledForm.compile(metadata);
+                reporting.textProperties = textProperties(metadata);
+                reportingDatabases.put(databaseId, reporting);
+                LOG.info("Loaded {} properties from Notion database {}", reporting.form.size(), metadata.title());
             }
-            embed.addField("Content", content, false);
         }
 
-        channel.sendMessageEmbeds(embed.build()).queue();
-        LOG.info("Notified Discord about {} {} in database {}",
-                isEdit ? "edited" : "new", title, databaseId);
+        reportingDatabases.forEach((databaseId, reporting) -> {
+            reporting.schemaWatcher = new SchemaWatcher(() -> retrieveDatabase(databaseId, Priority.BACKGROUND),
+                    updated -> reloadProperties(databaseId, reporting, updated), Duration.ofSeconds(config.notion.schemaRefreshInterval),
+                    metadataCache.get(databaseId));
+            reporting.schemaWatcher.start();
+        });
     }
 
     /*
-     * Extract the title of a Notion page, as a plain text string
+     * Called by the schema watcher when properties or select options were changed in Notion
      */
-    private String extractTitle(notion.api.v1.model.pages.Page page) {
-        var titleProp = page.getProperties().values().stream()
-                .filter(p -> p.getType() == PropertyType.Title)
-                .findFirst();
+    private void reloadProperties(String databaseId, ReportingDatabase reporting, Database updated) {
+        // Polling and notifications read the new properties from the cache right away, the rest is swapped in here
+        DatabaseMetadata metadata = metadataCache.put(databaseId, updated);
+        CompiledForm updatedForm = CompiledForm.compile(metadata);
+        reporting.database = updated;
+        reporting.form = updatedForm;
+        reporting.textProperties = textProperties(metadata);
+        LOG.info("Reloaded {} properties from Notion database {}", updatedForm.size(), updated.getId());
+        discordBotThread.updateForm(databaseId, updatedForm);
+    }
+
+    private interface StartupStep {
+        void run() throws Exception;
+    }
 
-        return titleProp.map(p -> p.getTitle().isEmpty() ? "Untitled" : p.getTitle().get(0).getPlainText())
-                .orElse("New Page");
+    private static class ReportingDatabase {
+        private volatile Database database;
+        private volatile CompiledForm form;
+        private volatile List<String> textProperties = List.of();
+        private SchemaWatcher schemaWatcher;
+
+        private ReportingDatabase(Database database) {
+            this.database = database;
+        }
     }
 }
@@ -0,0 +1,214 @@
+package de.malfrador.notion;
+
+import de.malfrador.storage.AppendLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe store for the polling watermarks, so polling resumes where it stopped after a restart.
+ * Every change is appended to a log file as one checksummed line and fsync'd. Lines torn by a crash fail the
+ * checksum and are ignored, and the newest valid line per database wins. Unchanged watermarks are not written at all,
+ * so quiet ticks cost nothing. The log is rewritten once it has grown well beyond one line per database.
+ * Changes that were polled but not delivered yet are {@linkplain #hold held}, and the stored watermark does not move
+ * past the oldest of them, so they are polled again after a crash. Some changes may be notified twice then, but none
+ * are lost.
+ */
+public class WatermarkStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WatermarkStore.class);
+
+    private static final int MIN_COMPACTION_LINES = 1000;
+
+    private final AppendLog log;
+    private final Map<String, SyncWatermark> watermarks = new ConcurrentHashMap<>(); // How far polling got
+    private final Map<String, SyncWatermark> stored = new HashMap<>(); // What is in the log
+    // Database ID -> page ID -> its changes that are not delivered yet
+    private final Map<String, Map<String, Undelivered>> undelivered = new HashMap<>();
+    private int lines;
+
+    public WatermarkStore(Path file) {
+        this.log = new AppendLog(file);
+    }
+
+    public synchronized void load() throws IOException {
+        int skipped = 0;
+        List<String> content = log.readLines();
+        for (String line : content) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (!parse(line)) {
+                skipped++;
+            }
+        }
+        if (skipped > 0) {
+            LOG.warn("Skipped {} damaged lines in watermark file {}", skipped, log.file());
+        }
+        if (!content.isEmpty()) {
+            LOG.info("Loaded polling watermarks for {} databases", watermarks.size());
+        }
+        stored.putAll(watermarks);
+        compact();
+    }
+
+    /**
+     * @return how far the database was polled, or null if it was never polled
+     */
+    public SyncWatermark get(String databaseId) {
+        return watermarks.get(databaseId);
+    }
+
+    /**
+     * @return where polling continues after a crash, which is before changes that were not delivered yet,
+     * or null if the database was never polled
+     */
+    public synchronized SyncWatermark stored(String databaseId) {
+        return stored.get(databaseId);
+    }
+
+    public void put(String databaseId, SyncWatermark watermark) {
+        SyncWatermark previous = watermarks.put(databaseId, watermark);
+        if (watermark.equals(previous)) {
+            return;
+        }
+        store(databaseId);
+    }
+
+    /**
+     * Keep the stored watermark from moving past a change until it is {@linkplain #release released}
+     */
+    public synchronized void hold(PageChange change) {
+        undelivered.computeIfAbsent(change.databaseId(), id -> new HashMap<>())
+                .merge(change.pageId(), new Undelivered(change.stub().lastEditedTime(), change.edits()), Undelivered::merge);
+    }
+
+    /**
+     * The change was delivered, or given up on. Changes of the same page that were merged count as one
+     */
+    public void release(PageChange change) {
+        synchronized (this) {
+            Map<String, Undelivered> pages = undelivered.get(change.databaseId());
+            if (pages == null) {
+                return;
+            }
+            pages.computeIfPresent(change.pageId(), (pageId, held) -> held.changes > change.edits()
+                    ? new Undelivered(held.oldest, held.changes - change.edits())
+                    : null);
+            if (pages.isEmpty()) {
+                undelivered.remove(change.databaseId());
+            }
+        }
+        store(change.databaseId());
+    }
+
+    public void close() {
+        log.close();
+    }
+
+    /*
+     * Write the watermark of the database if it moved
+     */
+    private synchronized void store(String databaseId) {
+        SyncWatermark watermark = durable(databaseId);
+        if (watermark == null || watermark.equals(stored.put(databaseId, watermark))) {
+            return;
+        }
+        try {
+            log.append(format(databaseId, watermark));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write polling watermark to " + log.file(), e);
+        }
+        lines++;
+        if (lines > Math.max(MIN_COMPACTION_LINES, stored.size() * 4)) {
+            try {
+                compact();
+            } catch (IOException e) {
+                LOG.warn("Failed to compact watermark file {}", log.file(), e);
+            }
+        }
+    }
+
+    /*
+     * The polled watermark, moved back to the oldest change that is not delivered yet. Pages at that time are polled
+     * again, except the ones we know were delivered
+     */
+    private SyncWatermark durable(String databaseId) {
+        SyncWatermark polled = watermarks.get(databaseId);
+        Map<String, Undelivered> pages = undelivered.get(databaseId);
+        if (polled == null || pages == null) {
+            return polled;
+        }
+        Instant oldest = pages.values().stream().map(Undelivered::oldest).min(Comparator.naturalOrder()).orElseThrow();
+        if (oldest.isAfter(polled.lastEdited())) {
+            return polled;
+        }
+        if (oldest.equals(polled.lastEdited())) {
+            Set<String> delivered = new HashSet<>(polled.pagesAtLastEdited());
+            delivered.removeAll(pages.keySet());
+            return new SyncWatermark(oldest, delivered);
+        }
+        return SyncWatermark.at(oldest);
+    }
+
+    private void compact() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        stored.forEach((databaseId, watermark) -> builder.append(format(databaseId, watermark)));
+        log.rewrite(builder.toString());
+        lines = stored.size();
+    }
+    /*
+     * <database id> TAB <last edited, epoch millis> TAB <page ids, comma separated> TAB <crc32 of everything before>
+     */
+    private static String format(String databaseId, SyncWatermark watermark) {
+        String line = databaseId + '\t' + watermark.lastEdited().toEpochMilli() + '\t' + String.join(",", watermark.pagesAtLastEdited());
+        return line + '\t' + Long.toHexString(crc(line)) + '\n';
+    }
+
+    private boolean parse(String line) {
+        int checksumStart = line.lastIndexOf('\t');
+        if (checksumStart < 0) {
+            return false;
+        }
+        String content = line.substring(0, checksumStart);
+        String[] parts = content.split("\t", -1);
+        try {
+            if (parts.length != 3 || Long.parseLong(line.substring(checksumStart + 1), 16) != crc(content)) {
+                return false;
+            }
+            Set<String> pages = parts[2].isEmpty() ? Set.of() : Arrays.stream(parts[2].split(",")).collect(Collectors.toSet());
+            watermarks.put(parts[0], new SyncWatermark(Instant.ofEpochMilli(Long.parseLong(parts[1])), pages));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static long crc(String content) {
+        CRC32 crc = new CRC32();
+        crc.update(content.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    private record Undelivered(Instant oldest, int changes) {
+
+        private Undelivered merge(Undelivered other) {
+            return new Undelivered(oldest.isBefore(other.oldest) ? oldest : other.oldest, changes + other.changes);
+        }
+    }
+}
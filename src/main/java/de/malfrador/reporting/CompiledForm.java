@@ -0,0 +1,256 @@
+package de.malfrador.reporting;
+
+import de.malfrador.notion.DatabaseMetadata;
+import net.dv8tion.jda.api.entities.emoji.Emoji;
+import net.dv8tion.jda.api.interactions.components.ActionRow;
+import net.dv8tion.jda.api.interactions.components.buttons.Button;
+import net.dv8tion.jda.api.interactions.components.selections.SelectOption;
+import net.dv8tion.jda.api.interactions.components.selections.StringSelectMenu;
+import net.dv8tion.jda.api.interactions.components.text.TextInput;
+import net.dv8tion.jda.api.interactions.components.text.TextInputStyle;
+import net.dv8tion.jda.api.interactions.modals.Modal;
+import notion.api.v1.model.common.PropertyType;
+import notion.api.v1.model.databases.DatabaseProperty;
+import notion.api.v1.model.pages.PageProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The reporting form, compiled once from the schema of the Notion reporting database.
+ * Everything an interaction needs is looked up in a hash map, and all Discord components are built up front,
+ * so handling a click neither scans the properties nor rebuilds components. Immutable, so it can be swapped out
+ * as a whole when the schema changes.
+ */
+public final class CompiledForm {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompiledForm.class);
+
+    public static final String FINISH_BUTTON_ID = "finishReport";
+    public static final String SUBMIT_ANYWAY_BUTTON_ID = "submitAnyway"; // Submit even though there are possible duplicates
+    public static final String MODAL_PREFIX = "text_";
+    private static final int MAX_SELECT_OPTIONS = 25; // Discord limit
+
+    private final DatabaseMetadata schema;
+    private final List<ReportingProperty> properties;
+    private final String attachmentProperty;
+    private final Map<String, ReportingProperty> byComponentId;
+    private final Map<String, PropertyType> propertyTypes;
+    private final List<ActionRow> rows;
+    private final Map<String, Map<String, ActionRow>> rowsWithSelection; // Component ID -> selected value -> row
+    private final ActionRow enabledFinishRow;
+    private final Map<String, Modal> modals;
+
+    private CompiledForm(DatabaseMetadata schema, List<ReportingProperty> properties, String attachmentProperty) {
+        this.schema = schema;
+        this.properties = List.copyOf(properties);
+        this.attachmentProperty = attachmentProperty;
+
+        Map<String, ReportingProperty> byComponentId = new HashMap<>();
+        Map<String, PropertyType> propertyTypes = new HashMap<>();
+        schema.properties().forEach((name, property) -> propertyTypes.put(name, property.getType()));
+        List<ActionRow> rows = new ArrayList<>();
+        Map<String, Map<String, ActionRow>> rowsWithSelection = new HashMap<>();
+        Map<String, Modal> modals = new HashMap<>();
+        for (ReportingProperty property : this.properties) {
+            byComponentId.put(property.id(), property);
+            switch (property.type()) {
+                case Select, Checkbox -> {
+                    List<SelectOption> options = new ArrayList<>();
+                    if (property.type() == PropertyType.Checkbox) {
+                        options.add(SelectOption.of("Yes", "yes"));
+                        options.add(SelectOption.of("No", "no"));
+                    } else {
+                        for (String value : property.availableValues()) {
+                            options.add(SelectOption.of(value, value));
+                        }
+                    }
+                    rows.add(ActionRow.of(selectMenu(property.id(), options, null)));
+                    Map<String, ActionRow> selected = new HashMap<>();
+                    for (SelectOption option : options) {
+                        selected.put(option.getValue(), ActionRow.of(selectMenu(property.id(), options, option.getValue())));
+                    }
+                    rowsWithSelection.put(property.id(), Map.copyOf(selected));
+                }
+                case RichText -> {
+                    rows.add(ActionRow.of(Button.primary(property.id(), property.id()).withEmoji(Emoji.fromUnicode("📝"))));
+                    // Create a modal for the user to enter text. This is a workaround for the lack of text input in normal components
+                    TextInput textInput = TextInput.create(property.id(), property.id(), TextInputStyle.PARAGRAPH)
+                            .setPlaceholder("Enter your text here...")
+                            .setMinLength(1)
+                            .setMaxLength(2000)
+                            .build();
+                    modals.put(property.id(), Modal.create(MODAL_PREFIX + property.id(), "Enter " + property.id())
+                            .addActionRow(textInput)
+                            .build());
+                }
+                default -> {}
+            }
+        }
+        Button finishButton = Button.primary(FINISH_BUTTON_ID, "Finish report")
+                .withEmoji(Emoji.fromUnicode("✅"));
+        rows.add(ActionRow.of(finishButton.asDisabled()));
+
+        this.byComponentId = Map.copyOf(byComponentId);
+        this.propertyTypes = Map.copyOf(propertyTypes);
+        this.rows = List.copyOf(rows);
+        this.rowsWithSelection = Map.copyOf(rowsWithSelection);
+        this.enabledFinishRow = ActionRow.of(finishButton.asEnabled());
+        this.modals = Map.copyOf(modals);
+    }
+
+    /**
+     * Build the form from the properties available in the Notion database
+     */
+    public static CompiledForm compile(DatabaseMetadata schema) {
+        List<ReportingProperty> properties = new ArrayList<>();
+        String attachmentProperty = null;
+        for (Map.Entry<String, DatabaseProperty> entry : schema.properties().entrySet()) {
+            switch (entry.getValue().getType()) {
+                case RichText, Checkbox -> properties.add(new ReportingProperty(entry.getKey(), entry.getValue().getType()));
+                // Files can't be picked in a component, they are attached with the /attach command instead
+                case Files -> {
+                    if (attachmentProperty == null) {
+                        attachmentProperty = entry.getKey();
+                    } else {
+                        LOG.warn("Files property {} is not used, attachments go to {}", entry.getKey(), attachmentProperty);
+                    }
+                }
+                case Select -> {
+                    Map<String, DatabaseProperty.Select.Option> options = schema.selectOptions().get(entry.getKey());
+                    if (options == null || options.isEmpty()) {
+                        LOG.warn("Select property {} has no options. Add some in the Notion database", entry.getKey());
+                        break;
+                    }
+                    List<String> values = new ArrayList<>(options.keySet());
+                    if (values.size() > MAX_SELECT_OPTIONS) {
+                        LOG.warn("Select property {} has {} options, only the first {} can be shown on Discord", entry.getKey(), values.size(), MAX_SELECT_OPTIONS);
+                        values = values.subList(0, MAX_SELECT_OPTIONS);
+                    }
+                    properties.add(new ReportingProperty(entry.getKey(), entry.getValue().getType(), values.toArray(new String[0])));
+                }
+                default -> {} // Ignore unsupported property types that we aren't able to show on Discord anyway
+            }
+        }
+        return new CompiledForm(schema, properties, attachmentProperty);
+    }
+
+    private static StringSelectMenu selectMenu(String id, List<SelectOption> options, String selectedValue) {
+        StringSelectMenu.Builder builder = StringSelectMenu.create(id)
+                .addOptions(options)
+                .setPlaceholder(id);
+        if (selectedValue != null) {
+            builder.setDefaultValues(Collections.singleton(selectedValue));
+        }
+        return builder.build();
+    }
+
+    public List<ReportingProperty> properties() {
+        return properties;
+    }
+
+    public int size() {
+        return properties.size();
+    }
+
+    /**
+     * @return the form property belonging to a component, or null if there is none
+     */
+    public ReportingProperty property(String componentId) {
+        return byComponentId.get(componentId);
+    }
+
+    /**
+     * @return the Files property that attachments go to, or null if the database has none
+     */
+    public String attachmentProperty() {
+        return attachmentProperty;
+    }
+
+    /**
+     * @return true if the user filled in every property of the form. Attachments are optional
+     */
+    public boolean isComplete(Map<String, String> selections) {
+        if (selections == null) {
+            return false;
+        }
+        for (ReportingProperty property : properties) {
+            if (!selections.containsKey(property.id())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Modal modal(String propertyId) {
+        return modals.get(propertyId);
+    }
+
+    /**
+     * The components of a fresh form, with the finish button disabled
+     */
+    public List<ActionRow> rows() {
+        return rows;
+    }
+
+    /**
+     * The components of a completely filled form, showing the user's selections and with the finish button enabled.
+     * The user would not be able to see what they have selected after we update the message otherwise.
+     */
+    public List<ActionRow> rowsWithSelections(Map<String, String> selections) {
+        List<ActionRow> result = new ArrayList<>(rows.size());
+        for (int i = 0; i < properties.size(); i++) {
+            ReportingProperty property = properties.get(i);
+            Map<String, ActionRow> selectedRows = rowsWithSelection.get(property.id());
+            String selected = selections.get(property.id());
+            ActionRow selectedRow = selectedRows == null || selected == null ? null : selectedRows.get(selected);
+            result.add(selectedRow != null ? selectedRow : rows.get(i));
+        }
+        result.add(enabledFinishRow);
+        return result;
+    }
+
+    /**
+     * Turn the values of a submitted form into Notion page properties
+     */
+    public Map<String, PageProperty> toPageProperties(Map<String, String> values) {
+        Map<String, PageProperty> propertiesMap = new HashMap<>(values.size() * 2);
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            PropertyType propertyType = propertyTypes.get(entry.getKey());
+            if (propertyType == null) {
+                LOG.warn("Property {} not found in Notion database, skipping", entry.getKey());
+                continue;
+            }
+            PageProperty property = new PageProperty();
+            switch (propertyType) {
+                case RichText -> {
+                    PageProperty.RichText richText = new PageProperty.RichText();
+                    richText.setText(new PageProperty.RichText.Text(entry.getValue()));
+                    property.setRichText(Collections.singletonList(richText));
+                }
+                // The select menu uses yes/no as values
+                case Checkbox -> property.setCheckbox(entry.getValue().equalsIgnoreCase("yes") || Boolean.parseBoolean(entry.getValue()));
+                case Select -> property.setSelect(schema.selectOption(entry.getKey(), entry.getValue()));
+                case Title -> {
+                    PageProperty.RichText titleText = new PageProperty.RichText();
+                    titleText.setText(new PageProperty.RichText.Text(entry.getValue()));
+                    property.setTitle(Collections.singletonList(titleText));
+                }
+                case Files -> {
+                    continue; // Uploaded files are added by the uploader, the SDK can't attach them
+                }
+                default -> {
+                    LOG.warn("Property {} has unsupported type {}, skipping", entry.getKey(), propertyType);
+                    continue;
+                }
+            }
+            propertiesMap.put(entry.getKey(), property);
+        }
+        return propertiesMap;
+    }
+}
@@ -0,0 +1,314 @@
+package de.malfrador.reporting;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Finds existing bug reports that look like a new one, without asking Notion.
+ * Every report is reduced to a MinHash signature of the character 4-grams of its text, which estimates how much two
+ * texts overlap (their Jaccard similarity) and tolerates different word forms and typos. Signatures are split into
+ * bands, and only reports that share a band with the new one are compared, so a lookup touches a handful of reports
+ * instead of all of them. Reports are added and updated one by one as polling sees them.
+ */
+public final class DuplicateIndex {
+
+    private static final int SHINGLE_LENGTH = 4;
+    private static final int BANDS = 20;
+    private static final int ROWS = 3;
+    static final int SIGNATURE_LENGTH = BANDS * ROWS;
+    private static final long[] SEEDS = new long[SIGNATURE_LENGTH];
+    private static final int LABEL_LENGTH = 80;
+
+    static {
+        long seed = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < SEEDS.length; i++) {
+            seed = mix(seed + i);
+            SEEDS[i] = seed;
+        }
+    }
+
+    private final Map<String, Shard> databases = new ConcurrentHashMap<>();
+    private final double threshold;
+
+    /**
+     * @param threshold estimated similarity from 0 to 1 above which a report counts as a possible duplicate
+     */
+    public DuplicateIndex(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Add a report, or update it if it is already indexed. Older states of a report than the indexed one are ignored,
+     * so a slow full load can't overwrite what polling saw in the meantime
+     *
+     * @param label what to show the user, like the beginning of the description
+     */
+    public void put(String databaseId, String pageId, Instant lastEdited, String label, String url, String text) {
+        int[] signature = signature(text);
+        Shard shard = databases.computeIfAbsent(databaseId, id -> new Shard());
+        shard.lock.writeLock().lock();
+        try {
+            Entry previous = shard.pages.get(pageId);
+            if (previous != null) {
+                if (previous.lastEdited.isAfter(lastEdited)) {
+                    return;
+                }
+                if (Arrays.equals(previous.signature, signature)) {
+                    shard.pages.put(pageId, new Entry(previous.label, url, lastEdited, signature, System.nanoTime())); // Edited, but not the text
+                    return;
+                }
+                shard.unlink(pageId, previous.signature);
+            }
+            if (signature == null) {
+                shard.pages.remove(pageId); // No text to compare
+                return;
+            }
+            shard.pages.put(pageId, new Entry(abbreviate(label), url, lastEdited, signature, System.nanoTime()));
+            for (int band = 0; band < BANDS; band++) {
+                shard.link(pageId, bandKey(signature, band));
+            }
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the most similar reports, most similar first, or an empty list if none is similar enough
+     */
+    public List<Match> similar(String databaseId, String text, int limit) {
+        Shard shard = databases.get(databaseId);
+        int[] signature = signature(text);
+        if (shard == null || signature == null) {
+            return List.of();
+        }
+        List<Match> matches = new ArrayList<>();
+        shard.lock.readLock().lock();
+        try {
+            Set<String> compared = new HashSet<>();
+            for (int band = 0; band < BANDS; band++) {
+                for (String pageId : shard.bucket(bandKey(signature, band))) {
+                    if (!compared.add(pageId)) {
+                        continue;
+                    }
+                    Entry entry = shard.pages.get(pageId);
+                    double similarity = similarity(signature, entry.signature);
+                    if (similarity >= threshold) {
+                        matches.add(new Match(pageId, entry.label, entry.url, similarity));
+                    }
+                }
+            }
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+        matches.sort(Comparator.comparingDouble(Match::similarity).reversed());
+        return matches.size() > limit ? List.copyOf(matches.subList(0, limit)) : matches;
+    }
+
+    /**
+     * Remove a report, like one that was archived or moved to the trash
+     */
+    public void remove(String databaseId, String pageId) {
+        Shard shard = databases.get(databaseId);
+        if (shard == null) {
+            return;
+        }
+        shard.lock.writeLock().lock();
+        try {
+            shard.remove(pageId);
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the reports of a database that a full load did not see anymore, because they were deleted, archived or
+     * moved to the trash. Reports added or updated since the load started are kept
+     *
+     * @param pageIds   the reports the load saw
+     * @param loadStart {@link System#nanoTime()} when the load started
+     * @return how many reports were removed
+     */
+    public int retain(String databaseId, Set<String> pageIds, long loadStart) {
+        Shard shard = databases.get(databaseId);
+        if (shard == null) {
+            return 0;
+        }
+        shard.lock.writeLock().lock();
+        try {
+            List<String> removed = new ArrayList<>();
+            shard.pages.forEach((pageId, entry) -> {
+                if (entry.indexed - loadStart < 0 && !pageIds.contains(pageId)) {
+                    removed.add(pageId);
+                }
+            });
+            removed.forEach(shard::remove);
+            return removed.size();
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : databases.values()) {
+            shard.lock.readLock().lock();
+            try {
+                size += shard.pages.size();
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /*
+     * MinHash of the character 4-grams of the lower-cased text with runs of whitespace and punctuation collapsed,
+     * or null if the text is too short to have any
+     */
+    static int[] signature(String text) {
+        String normalized = normalize(text);
+        if (normalized.length() < SHINGLE_LENGTH) {
+            return null;
+        }
+        int[] signature = new int[SIGNATURE_LENGTH];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (int i = 0; i + SHINGLE_LENGTH <= normalized.length(); i++) {
+            long shingle = 0;
+            for (int j = 0; j < SHINGLE_LENGTH; j++) {
+                shingle = (shingle << 16) | normalized.charAt(i + j);
+            }
+            for (int k = 0; k < SIGNATURE_LENGTH; k++) {
+                int hash = (int) (mix(shingle ^ SEEDS[k]) >>> 33);
+                if (hash < signature[k]) {
+                    signature[k] = hash;
+                }
+            }
+        }
+        return signature;
+    }
+
+    private static String normalize(String text) {
+        StringBuilder builder = new StringBuilder(text.length());
+        boolean separator = true;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                builder.append(Character.toLowerCase(c));
+                separator = false;
+            } else if (!separator) {
+                builder.append(' ');
+                separator = true;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static double similarity(int[] a, int[] b) {
+        int same = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                same++;
+            }
+        }
+        return (double) same / a.length;
+    }
+
+    private static long bandKey(int[] signature, int band) {
+        long key = band;
+        for (int row = band * ROWS; row < (band + 1) * ROWS; row++) {
+            key = key * 31 + signature[row];
+        }
+        return mix(key);
+    }
+
+    /*
+     * Finalizer of SplitMix64, spreads the bits of similar inputs
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    private static String abbreviate(String label) {
+        String line = label.strip().replace('\n', ' ');
+        return line.length() <= LABEL_LENGTH ? line : line.substring(0, LABEL_LENGTH - 1) + "…";
+    }
+
+    /**
+     * A report that looks like the new one
+     *
+     * @param similarity estimated share of 4-grams both have in common, from 0 to 1
+     */
+    public record Match(String pageId, String label, String url, double similarity) {
+    }
+
+    // indexed is System.nanoTime() of the last put, to tell which entries a full load could not have seen
+    private record Entry(String label, String url, Instant lastEdited, int[] signature, long indexed) {
+    }
+
+    private static final class Shard {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<String, Entry> pages = new HashMap<>();
+        // Band key -> the page ID, or a set of them if several pages share the band. Most bands belong to a single
+        // page, and a set for each of them would take up most of the memory of the index
+        private final Map<Long, Object> buckets = new HashMap<>();
+
+        private void remove(String pageId) {
+            Entry entry = pages.remove(pageId);
+            if (entry != null) {
+                unlink(pageId, entry.signature);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private Collection<String> bucket(long key) {
+            Object bucket = buckets.get(key);
+            if (bucket == null) {
+                return List.of();
+            }
+            return bucket instanceof String pageId ? List.of(pageId) : (Set<String>) bucket;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void link(String pageId, long key) {
+            buckets.merge(key, pageId, (bucket, added) -> {
+                if (bucket instanceof String existing) {
+                    if (existing.equals(added)) {
+                        return existing;
+                    }
+                    Set<String> pages = new HashSet<>(4);
+                    pages.add(existing);
+                    pages.add(pageId);
+                    return pages;
+                }
+                ((Set<String>) bucket).add(pageId);
+                return bucket;
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        private void unlink(String pageId, int[] signature) {
+            for (int band = 0; band < BANDS; band++) {
+                buckets.computeIfPresent(bandKey(signature, band), (key, bucket) -> {
+                    if (bucket instanceof String existing) {
+                        return existing.equals(pageId) ? null : existing;
+                    }
+                    Set<String> pages = (Set<String>) bucket;
+                    pages.remove(pageId);
+                    return pages.size() == 1 ? pages.iterator().next() : pages;
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package de.malfrador.reporting;
+
+import de.malfrador.storage.AppendLog;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only log of bug report submissions.
+ * A submission is written (and fsync'd) to disk before the user gets their confirmation, and a background worker
+ * then sends it to Notion, retrying with backoff if that fails. Submissions that were not sent yet are replayed on
+ * startup. Each submission has an ID that is created once per form, so double clicks are only stored once. A report
+ * that may have reached Notion already, because an attempt failed or the bot stopped while sending it, is sent with
+ * {@code resend} set, so the sender can check Notion for it first.
+ */
+public class ReportOutbox {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReportOutbox.class);
+
+    private static final String SUBMIT = "submit";
+    private static final String DONE = "done";
+    private static final String FAILED = "failed";
+    private static final int COMPACT_AFTER_RECORDS = 1000;
+    private static final Duration MAX_BACKOFF = Duration.ofMinutes(5);
+
+    public enum Result {
+        ACCEPTED,
+        DUPLICATE
+    }
+
+    private final AppendLog log;
+    private final Sender sender;
+    private final int maxAttempts;
+    private final Map<String, Report> pending = new LinkedHashMap<>();
+    private final Map<String, Long> finished = new LinkedHashMap<>(); // Submission ID -> time it was sent or given up
+    private final DelayQueue<Attempt> queue = new DelayQueue<>();
+    private int recordsSinceCompaction;
+    private Thread worker;
+
+    public ReportOutbox(Path file, Sender sender, int maxAttempts) {
+        this.log = new AppendLog(file);
+        this.sender = sender;
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * Read the log, compact it and start sending everything that is still pending
+     */
+    public synchronized void start() throws IOException {
+        replay(log.readLines());
+        compact();
+        for (String key : pending.keySet()) {
+            queue.add(new Attempt(key, 0, 0, true)); // We may have stopped right after sending it
+        }
+        if (!pending.isEmpty()) {
+            LOG.info("Replaying {} bug reports that were not sent to Notion yet", pending.size());
+        }
+        worker = Thread.ofVirtual().name("report-outbox").start(this::drain);
+    }
+
+    /**
+     * Durably store a submission. Once this returns ACCEPTED, the report will reach Notion eventually,
+     * even if the bot is restarted in the meantime.
+     *
+     * @param submissionId created once per form, so submitting the same form twice is detected
+     * @throws UncheckedIOException if the submission could not be stored
+     */
+    public synchronized Result submit(String submissionId, String databaseId, Map<String, String> properties) {
+        if (pending.containsKey(submissionId) || finished.containsKey(submissionId)) {
+            return Result.DUPLICATE;
+        }
+        Report report = new Report(submissionId, databaseId, Map.copyOf(properties), System.currentTimeMillis());
+        append(submitRecord(report));
+        pending.put(submissionId, report);
+        queue.add(new Attempt(submissionId, 0, 0, false));
+        return Result.ACCEPTED;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public void shutdown() {
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                worker.join(Duration.ofSeconds(10)); // Let it record a report it just sent
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.close();
+    }
+
+    private void drain() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Attempt attempt;
+            try {
+                attempt = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Report report;
+            synchronized (this) {
+                report = pending.get(attempt.key);
+            }
+            if (report == null) {
+                continue;
+            }
+            try {
+                sender.send(report, attempt.resend);
+            } catch (Exception e) {
+                int attempts = attempt.attempts + 1;
+                if (attempts >= maxAttempts) {
+                    LOG.error("Giving up on bug report {} after {} attempts: {}", attempt.key, attempts, report, e);
+                    finish(attempt.key, FAILED);
+                    continue;
+                }
+                long backoff = Math.min(MAX_BACKOFF.toMillis(), 1000L << Math.min(attempts, 20));
+                LOG.warn("Failed to send bug report {} to Notion, retrying in {} ms (attempt {}/{})", attempt.key, backoff, attempts, maxAttempts, e);
+                // The failed attempt may have created the page anyway, e.g. if the connection broke before the answer
+                queue.add(new Attempt(attempt.key, attempts, backoff, true));
+                continue;
+            }
+            LOG.info("Sent bug report {} to Notion", attempt.key);
+            finish(attempt.key, DONE);
+        }
+    }
+
+    /*
+     * Never throws, the report must not be sent again just because we could not write down that it was sent
+     */
+    private synchronized void finish(String key, String type) {
+        pending.remove(key);
+        finished.put(key, System.currentTimeMillis());
+        try {
+            append(record(type, key));
+        } catch (UncheckedIOException e) {
+            LOG.error("Failed to record bug report {} as {} in the report outbox {}. It stays {} until the bot is restarted, "
+                    + "which sends it again, unless Notion already has it. Check the disk!", key, type, log.file(), type, e);
+            return;
+        }
+        if (recordsSinceCompaction >= COMPACT_AFTER_RECORDS) {
+            try {
+                compact();
+            } catch (IOException e) {
+                LOG.warn("Failed to compact report outbox", e);
+            }
+        }
+    }
+
+    private void replay(List<String> lines) {
+        for (String line : lines) {
+            if (line.isBlank()) {
+                continue;
+            }
+            DataObject entry;
+            try {
+                entry = DataObject.fromJson(line);
+            } catch (Exception e) {
+                // Most likely the last line, if we crashed while writing it. It was never confirmed to the user
+                LOG.warn("Skipping unreadable line in report outbox: {}", line);
+                continue;
+            }
+            String key = entry.getString("key");
+            switch (entry.getString("type")) {
+                case SUBMIT -> {
+                    if (finished.containsKey(key)) {
+                        break;
+                    }
+                    DataObject values = entry.getObject("properties");
+                    Map<String, String> properties = new LinkedHashMap<>();
+                    for (String name : values.keys()) {
+                        properties.put(name, values.getString(name));
+                    }
+                    // Reports from before multi-guild support have no database, they go to the default one
+                    pending.putIfAbsent(key, new Report(key, entry.getString("database", null), Map.copyOf(properties), entry.getLong("time", 0)));
+                }
+                case DONE, FAILED -> {
+                    pending.remove(key);
+                    finished.put(key, entry.getLong("time"));
+                }
+                default -> LOG.warn("Unknown record in report outbox: {}", line);
+            }
+        }
+    }
+
+    /*
+     * Rewrite the log with only the pending submissions and the IDs finished in the last day, which is plenty
+     * for catching double clicks. If that fails, the old log is kept as it is.
+     */
+    private void compact() throws IOException {
+        long cutoff = System.currentTimeMillis() - Duration.ofDays(1).toMillis();
+        finished.values().removeIf(time -> time < cutoff);
+
+        StringBuilder builder = new StringBuilder();
+        finished.forEach((key, time) -> builder.append(record(DONE, key).put("time", time)).append('\n'));
+        pending.values().forEach(report -> builder.append(submitRecord(report)).append('\n'));
+        log.rewrite(builder.toString());
+        recordsSinceCompaction = 0;
+    }
+
+    private void append(DataObject record) {
+        if (!record.hasKey("time")) {
+            record.put("time", System.currentTimeMillis());
+        }
+        try {
+            log.append(record.toString() + "\n");
+            recordsSinceCompaction++;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write to report outbox " + log.file(), e);
+        }
+    }
+
+    private static DataObject record(String type, String key) {
+        return DataObject.empty().put("type", type).put("key", key);
+    }
+
+    private static DataObject submitRecord(Report report) {
+        DataObject values = DataObject.empty();
+        report.properties().forEach(values::put);
+        DataObject record = record(SUBMIT, report.submissionId()).put("properties", values).put("time", report.submittedAt());
+        if (report.databaseId() != null) {
+            record.put("database", report.databaseId());
+        }
+        return record;
+    }
+
+    /**
+     * A submitted bug report
+     *
+     * @param databaseId  the reporting database it goes to, or null for the default one
+     * @param submittedAt epoch millis
+     */
+    public record Report(String submissionId, String databaseId, Map<String, String> properties, long submittedAt) {
+    }
+
+    public interface Sender {
+        /**
+         * Send the report to Notion, throwing if it should be tried again later
+         *
+         * @param resend true if the report may have reached Notion already
+         */
+        void send(Report report, boolean resend) throws Exception;
+    }
+
+    private static class Attempt implements Delayed {
+        private final String key;
+        private final int attempts;
+        private final long dueAt;
+        private final boolean resend;
+
+        private Attempt(String key, int attempts, long delayMillis, boolean resend) {
+            this.key = key;
+            this.attempts = attempts;
+            this.resend = resend;
+            this.dueAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package de.malfrador.reporting;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A file that was uploaded to Notion and can be attached to a page within the hour, by the ID of its file upload.
+ * Where it was uploaded from is kept, to upload it again if the report could not be sent within the hour.
+ * Forms and the report outbox only store strings, so the files of a report are stored as one line per file.
+ *
+ * @param uploadedAt epoch milliseconds, 0 if not known
+ * @param sourceUrl  null if not known
+ */
+public record UploadedFile(String id, String filename, long uploadedAt, @Nullable String sourceUrl,
+                           @Nullable String contentType, long size) {
+
+    // Notion drops uploads after an hour, leave some time for creating the page
+    private static final Duration LIFETIME = Duration.ofMinutes(50);
+
+    public UploadedFile {
+        filename = clean(filename);
+        contentType = contentType == null || contentType.isEmpty() ? null : clean(contentType);
+    }
+
+    /**
+     * @return true if Notion dropped the upload, or is about to
+     */
+    public boolean isExpired(Instant now) {
+        return uploadedAt > 0 && now.toEpochMilli() - uploadedAt > LIFETIME.toMillis();
+    }
+
+    public String encode() {
+        return id + '\t' + filename + '\t' + uploadedAt + '\t' + size + '\t'
+                + (contentType == null ? "" : contentType) + '\t' + (sourceUrl == null ? "" : sourceUrl);
+    }
+
+    /**
+     * @param encoded lines of {@link #encode()}, may be null
+     */
+    public static List<UploadedFile> decode(String encoded) {
+        if (encoded == null || encoded.isEmpty()) {
+            return List.of();
+        }
+        List<UploadedFile> files = new ArrayList<>();
+        for (String line : encoded.split("\n")) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length == 2 && !fields[0].isEmpty()) {
+                files.add(new UploadedFile(fields[0], fields[1], 0, null, null, 0)); // Stored before the source was kept
+            } else if (fields.length == 6 && !fields[0].isEmpty()) {
+                try {
+                    files.add(new UploadedFile(fields[0], fields[1], Long.parseLong(fields[2]),
+                            fields[5].isEmpty() ? null : fields[5], fields[4], Long.parseLong(fields[3])));
+                } catch (NumberFormatException e) {
+                    // Not written by encode()
+                }
+            }
+        }
+        return files;
+    }
+
+    private static String clean(String text) {
+        return text.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
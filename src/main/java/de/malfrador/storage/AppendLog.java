@@ -0,0 +1,102 @@
+package de.malfrador.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A text file that is only ever appended to, one record per line, and fsync'd after every append.
+ * It can be rewritten as a whole to drop records that are no longer needed. The new content is written to a
+ * temporary file first and moved over the log atomically, so a crash or a full disk leaves either the old or the
+ * new log, and appending keeps working with the old one if the rewrite fails.
+ */
+public final class AppendLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AppendLog.class);
+
+    private final Path file;
+    private FileChannel channel;
+
+    public AppendLog(Path file) {
+        this.file = file;
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    /**
+     * @return every line in the log, or an empty list if it does not exist yet
+     */
+    public synchronized List<String> readLines() throws IOException {
+        return Files.exists(file) ? Files.readAllLines(file, StandardCharsets.UTF_8) : List.of();
+    }
+
+    /**
+     * Append text, which should end with a newline, and wait until it is on disk
+     */
+    public synchronized void append(String text) throws IOException {
+        if (channel == null) {
+            channel = open(file);
+        }
+        writeFully(channel, text);
+        channel.force(false);
+    }
+
+    /**
+     * Replace the content of the log
+     */
+    public synchronized void rewrite(String content) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(out, content);
+                out.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e; // The log and our channel to it are untouched
+        }
+        FileChannel old = channel;
+        channel = null; // The old channel points to the replaced file. If opening fails, the next append tries again
+        closeQuietly(old);
+        channel = open(file);
+    }
+
+    public synchronized void close() {
+        closeQuietly(channel);
+        channel = null;
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close {}", file, e);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
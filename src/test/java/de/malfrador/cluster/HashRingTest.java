@@ -0,0 +1,81 @@
+package de.malfrador.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashRingTest {
+
+    private static final List<String> MEMBERS = List.of("instance-0", "instance-1", "instance-2", "instance-3");
+    private static final int KEYS = 10000;
+
+    @Test
+    void keysAreSpreadEvenly() {
+        HashRing ring = new HashRing(MEMBERS, 64);
+        Map<String, Integer> counts = new HashMap<>();
+        for (String key : keys()) {
+            counts.merge(ring.owner(key), 1, Integer::sum);
+        }
+        assertEquals(MEMBERS.size(), counts.size());
+        int fair = KEYS / MEMBERS.size();
+        counts.forEach((member, count) -> assertTrue(Math.abs(count - fair) < fair * 0.3, member + " owns " + count + " keys"));
+    }
+
+    @Test
+    void leavingOnlyMovesTheKeysOfTheMemberThatLeft() {
+        HashRing before = new HashRing(MEMBERS, 64);
+        HashRing after = new HashRing(MEMBERS.subList(0, 3), 64);
+        for (String key : keys()) {
+            String owner = before.owner(key);
+            if (!owner.equals("instance-3")) {
+                assertEquals(owner, after.owner(key), key);
+            }
+        }
+    }
+
+    @Test
+    void joiningOnlyMovesKeysToTheNewMember() {
+        HashRing before = new HashRing(MEMBERS, 64);
+        List<String> joined = new ArrayList<>(MEMBERS);
+        joined.add("instance-4");
+        HashRing after = new HashRing(joined, 64);
+        int moved = 0;
+        for (String key : keys()) {
+            String owner = after.owner(key);
+            if (!owner.equals(before.owner(key))) {
+                assertEquals("instance-4", owner, key);
+                moved++;
+            }
+        }
+        assertTrue(moved > KEYS / 10 && moved < KEYS / 3, moved + " keys moved");
+    }
+
+    @Test
+    void ownerDoesNotDependOnTheOrderOfMembers() {
+        HashRing ring = new HashRing(MEMBERS, 64);
+        HashRing reversed = new HashRing(MEMBERS.reversed(), 64);
+        for (String key : keys()) {
+            assertEquals(ring.owner(key), reversed.owner(key));
+        }
+    }
+
+    @Test
+    void emptyRingHasNoOwner() {
+        assertNull(new HashRing(List.of(), 64).owner("database"));
+    }
+
+    private static List<String> keys() {
+        List<String> keys = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            keys.add("database-" + i);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,65 @@
+package de.malfrador.notion;
+
+import notion.api.v1.json.GsonSerializer;
+import notion.api.v1.model.databases.Database;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DatabaseMetadataCacheTest {
+
+    private static final String CONFIG_ID = "19c52a80a6458020acccc19f3427d841";
+    private static final String NOTION_ID = "19c52a80-a645-8020-accc-c19f3427d841";
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    void storedDatabaseIsFoundByTheIdItWasStoredUnder() {
+        DatabaseMetadataCache cache = cache(Duration.ofMinutes(5));
+        cache.put(CONFIG_ID, database("Bug reports"));
+
+        assertEquals("Bug reports", cache.get(CONFIG_ID).title());
+        assertEquals(0, loads.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    void storingReplacesTheEntry() {
+        DatabaseMetadataCache cache = cache(Duration.ofMinutes(5));
+        assertEquals("Loaded", cache.get(CONFIG_ID).title());
+        cache.put(CONFIG_ID, database("Renamed"));
+
+        assertEquals("Renamed", cache.get(CONFIG_ID).title());
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void expiredEntriesAreLoadedAgain() {
+        DatabaseMetadataCache cache = cache(Duration.ZERO);
+        cache.put(CONFIG_ID, database("Bug reports"));
+
+        assertEquals("Loaded", cache.get(CONFIG_ID).title());
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getMisses());
+    }
+
+    private DatabaseMetadataCache cache(Duration ttl) {
+        return new DatabaseMetadataCache(id -> {
+            loads.incrementAndGet();
+            return database("Loaded");
+        }, ttl, 10);
+    }
+
+    private static Database database(String title) {
+        return new GsonSerializer(false).toDatabase("""
+                {"object":"database","id":"%s","created_time":"2025-01-01T00:00:00.000Z","last_edited_time":"2025-01-01T00:00:00.000Z",
+                 "title":[{"type":"text","text":{"content":"%s"},"plain_text":"%s"}],
+                 "properties":{"Name":{"id":"title","name":"Name","type":"title","title":{}}}}
+                """.formatted(NOTION_ID, title, title));
+    }
+}
@@ -0,0 +1,72 @@
+package de.malfrador.notion;
+
+import de.malfrador.notion.NotificationRouter.ChangeType;
+import de.malfrador.notion.NotificationRouter.Rule;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class NotificationRouterTest {
+
+    private static final Instant CREATED = Instant.parse("2026-01-01T10:00:00Z");
+
+    @Test
+    void unconditionalRulesMatchEveryChange() {
+        NotificationRouter router = NotificationRouter.compile(List.of(
+                Rule.always("db", "all"),
+                Rule.always("other", "other-channel")));
+        assertEquals(List.of("all"), router.route(newPage("db", Map.of())));
+        assertEquals(List.of("all"), router.route(edit("db", Map.of("Severity", List.of("Low")))));
+        assertEquals(List.of(), router.route(newPage("unknown", Map.of())));
+        assertEquals(Set.of(), router.properties("db"));
+    }
+
+    @Test
+    void valuesMatchIgnoringCase() {
+        NotificationRouter router = NotificationRouter.compile(List.of(
+                new Rule("db", "Severity", Set.of("Critical", "High"), ChangeType.ANY, "urgent")));
+        assertEquals(List.of("urgent"), router.route(edit("db", Map.of("Severity", List.of("critical")))));
+        assertEquals(List.of("urgent"), router.route(edit("db", Map.of("Severity", List.of("HIGH")))));
+        assertEquals(List.of(), router.route(edit("db", Map.of("Severity", List.of("Low")))));
+        assertEquals(List.of(), router.route(edit("db", Map.of()))); // Empty or not fetched
+        assertEquals(Set.of("Severity"), router.properties("db"));
+    }
+
+    @Test
+    void changeTypeSelectsNewPagesOrEdits() {
+        NotificationRouter router = NotificationRouter.compile(List.of(
+                new Rule("db", null, Set.of(), ChangeType.NEW, "new"),
+                new Rule("db", "Status", Set.of("Done"), ChangeType.EDIT, "done")));
+        Map<String, List<String>> done = Map.of("Status", List.of("Done"));
+        assertEquals(List.of("new"), router.route(newPage("db", done)));
+        assertEquals(List.of("done"), router.route(edit("db", done)));
+        assertEquals(List.of(), router.route(edit("db", Map.of("Status", List.of("In progress")))));
+    }
+
+    @Test
+    void channelsOfAllMatchingRulesAreNotifiedOnce() {
+        NotificationRouter router = NotificationRouter.compile(List.of(
+                Rule.always("db", "all"),
+                new Rule("db", "Platform", Set.of("Windows"), ChangeType.ANY, "windows"),
+                new Rule("db", "Platform", Set.of("Linux"), ChangeType.ANY, "linux"),
+                new Rule("db", "Blocker", Set.of("true"), ChangeType.ANY, "all")));
+        List<String> channels = router.route(edit("db", Map.of(
+                "Platform", List.of("Windows", "Linux"),
+                "Blocker", List.of("true"))));
+        assertEquals(Set.of("all", "windows", "linux"), Set.copyOf(channels));
+        assertEquals(3, channels.size());
+    }
+
+    private static PageChange newPage(String databaseId, Map<String, List<String>> properties) {
+        return PageChange.detected(databaseId, new PageStub("page", CREATED, CREATED, properties));
+    }
+
+    private static PageChange edit(String databaseId, Map<String, List<String>> properties) {
+        return PageChange.detected(databaseId, new PageStub("page", CREATED, CREATED.plusSeconds(60), properties));
+    }
+}
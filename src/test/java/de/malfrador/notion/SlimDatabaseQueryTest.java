@@ -0,0 +1,131 @@
+package de.malfrador.notion;
+
+import com.sun.net.httpserver.HttpServer;
+import notion.api.v1.exception.NotionAPIError;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SlimDatabaseQueryTest {
+
+    private static final String RESULT = """
+            {"object":"list","results":[
+              {"object":"page","id":"page-1","created_time":"2026-01-01T10:00:00.000Z","last_edited_time":"2026-01-01T10:05:00.000Z",
+               "archived":false,"url":"https://www.notion.so/page1","properties":{
+                 "Name":{"id":"title","type":"title","title":[{"type":"text","plain_text":"Crash "},{"type":"text","plain_text":"on start"}]},
+                 "Severity":{"id":"%3AUPp","type":"select","select":{"id":"s1","name":"High","color":"red"}},
+                 "Platform":{"id":"plat","type":"multi_select","multi_select":[{"name":"Windows"},{"name":"Linux"}]},
+                 "Blocker":{"id":"blck","type":"checkbox","checkbox":true},
+                 "Status":{"id":"stat","type":"status","status":null},
+                 "Votes":{"id":"vote","type":"number","number":3}}}],
+             "has_more":true,"next_cursor":"cursor-2","type":"page_or_database","page_or_database":{}}
+            """;
+
+    private HttpServer server;
+
+    @AfterEach
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void resultIsParsed() throws Exception {
+        SlimDatabaseQuery.Result result = SlimDatabaseQuery.handle(200, Map.of(), stream(RESULT));
+        assertTrue(result.hasMore());
+        assertEquals("cursor-2", result.nextCursor());
+        PageStub page = result.results().getFirst();
+        assertEquals("page-1", page.id());
+        assertEquals(Instant.parse("2026-01-01T10:00:00Z"), page.createdTime());
+        assertEquals(Instant.parse("2026-01-01T10:05:00Z"), page.lastEditedTime());
+        assertEquals(List.of("Crash on start"), page.values("Name"));
+        assertEquals(List.of("High"), page.values("Severity"));
+        assertEquals(List.of("Windows", "Linux"), page.values("Platform"));
+        assertEquals(List.of("true"), page.values("Blocker"));
+        assertEquals(List.of(), page.values("Status"));
+        assertFalse(page.properties().containsKey("Votes"));
+        assertFalse(page.archived());
+    }
+
+    @Test
+    void trashedPagesAreMarked() throws Exception {
+        SlimDatabaseQuery.Result result = SlimDatabaseQuery.handle(200, Map.of(), stream("""
+                {"object":"list","results":[
+                  {"id":"page-1","created_time":"2026-01-01T10:00:00.000Z","last_edited_time":"2026-01-01T10:05:00.000Z","archived":false,"in_trash":true}],
+                 "has_more":false,"next_cursor":null}
+                """));
+        assertTrue(result.results().getFirst().archived());
+    }
+
+    @Test
+    void lastPageHasNoCursor() throws Exception {
+        SlimDatabaseQuery.Result result = SlimDatabaseQuery.handle(200, Map.of(),
+                stream("{\"object\":\"list\",\"results\":[],\"has_more\":false,\"next_cursor\":null}"));
+        assertEquals(List.of(), result.results());
+        assertFalse(result.hasMore());
+        assertNull(result.nextCursor());
+    }
+
+    @Test
+    void errorStatusThrowsNotionError() {
+        String error = "{\"object\":\"error\",\"status\":404,\"code\":\"object_not_found\",\"message\":\"Could not find database\"}";
+        NotionAPIError thrown = assertThrows(NotionAPIError.class,
+                () -> SlimDatabaseQuery.handle(404, Map.of(), stream(error)));
+        assertEquals("object_not_found", thrown.getError().getCode());
+        assertEquals(404, thrown.getHttpResponse().getStatus());
+    }
+
+    @Test
+    void propertyIdsAreNotEncodedTwice() throws Exception {
+        AtomicReference<String> query = new AtomicReference<>();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v1/", exchange -> {
+            try (exchange) {
+                query.set(exchange.getRequestURI().getRawQuery());
+                exchange.getRequestBody().readAllBytes();
+                byte[] body = RESULT.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        String baseUrl = "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getAddress().getPort() + "/v1";
+        PooledNotionHttpClient http = new PooledNotionHttpClient(Duration.ofSeconds(5), Duration.ofSeconds(5), false);
+        SlimDatabaseQuery slimQuery = new SlimDatabaseQuery(http, baseUrl, "token", databaseId -> List.of("%3AUPp", "a+b"));
+
+        SlimDatabaseQuery.Result result = slimQuery.changedSince("db", Instant.EPOCH, null, 10);
+        assertEquals("filter_properties=title&filter_properties=%3AUPp&filter_properties=a%2Bb", query.get());
+        assertEquals(1, result.results().size());
+    }
+
+    @Test
+    void decodedPropertyIds() {
+        assertEquals(":UPp", SlimDatabaseQuery.decodePropertyId("%3AUPp"));
+        assertEquals("title", SlimDatabaseQuery.decodePropertyId("title"));
+        assertEquals("a+b", SlimDatabaseQuery.decodePropertyId("a+b"));
+    }
+
+    private static InputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,129 @@
+package de.malfrador.notion;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class WatermarkStoreTest {
+
+    private static final Instant T1 = Instant.parse("2026-01-01T10:00:00Z");
+    private static final Instant T2 = Instant.parse("2026-01-01T10:05:00Z");
+    private static final Instant T3 = Instant.parse("2026-01-01T10:10:00Z");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void watermarksSurviveARestart() throws Exception {
+        WatermarkStore store = open();
+        store.put("a", new SyncWatermark(T1, Set.of("page-1", "page-2")));
+        store.put("b", SyncWatermark.at(T1));
+        store.put("b", SyncWatermark.at(T2));
+        store.close();
+
+        WatermarkStore reopened = open();
+        assertEquals(new SyncWatermark(T1, Set.of("page-1", "page-2")), reopened.get("a"));
+        assertEquals(SyncWatermark.at(T2), reopened.get("b"));
+        assertNull(reopened.get("c"));
+    }
+
+    @Test
+    void tornAndDamagedLinesAreIgnored() throws Exception {
+        WatermarkStore store = open();
+        store.put("a", SyncWatermark.at(T1));
+        store.put("b", SyncWatermark.at(T1));
+        store.close();
+        List<String> lines = Files.readAllLines(file(), StandardCharsets.UTF_8);
+        // A newer line whose checksum does not match, and one that was cut off by a crash
+        Files.writeString(file(), lines.getLast().replace(String.valueOf(T1.toEpochMilli()), String.valueOf(T2.toEpochMilli())) + "\n"
+                + "a\t" + T3.toEpochMilli() + "\tpage-1\t12", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        WatermarkStore reopened = open();
+        assertEquals(SyncWatermark.at(T1), reopened.get("a"));
+        assertEquals(SyncWatermark.at(T1), reopened.get("b"));
+        reopened.close();
+        assertEquals(2, Files.readAllLines(file(), StandardCharsets.UTF_8).size()); // Rewritten without them
+    }
+
+    @Test
+    void storedWatermarkStaysBehindUndeliveredChanges() throws Exception {
+        WatermarkStore store = open();
+        store.put("db", SyncWatermark.at(T1));
+        PageChange first = change("page-1", T2);
+        PageChange second = change("page-2", T3);
+        store.hold(first);
+        store.hold(second);
+        store.put("db", new SyncWatermark(T3, Set.of("page-2")));
+        assertEquals(new SyncWatermark(T3, Set.of("page-2")), store.get("db")); // Polling goes on from here
+        assertEquals(SyncWatermark.at(T2), store.stored("db"));
+
+        store.release(first);
+        assertEquals(SyncWatermark.at(T3), store.stored("db")); // page-2 is polled again
+        store.close();
+        assertEquals(SyncWatermark.at(T3), open().get("db"));
+    }
+
+    @Test
+    void mergedChangesAreReleasedTogether() throws Exception {
+        WatermarkStore store = open();
+        PageChange edit = change("page-1", T1);
+        PageChange laterEdit = change("page-1", T2);
+        store.hold(edit);
+        store.hold(laterEdit);
+        store.put("db", new SyncWatermark(T2, Set.of("page-1")));
+        assertEquals(SyncWatermark.at(T1), store.stored("db"));
+
+        store.release(edit.merge(laterEdit));
+        assertEquals(new SyncWatermark(T2, Set.of("page-1")), store.stored("db"));
+    }
+
+    @Test
+    void changesThatCouldNotBeHandedOverAreReleased() throws Exception {
+        WatermarkStore store = open();
+        store.put("db", SyncWatermark.at(T1));
+        Consumer<PageChange> failing = change -> {
+            throw new IllegalStateException("Pipeline is gone");
+        };
+        EditCoalescer direct = new EditCoalescer(Duration.ZERO, Duration.ZERO, failing, store::release);
+        EditCoalescer waiting = new EditCoalescer(Duration.ofHours(1), Duration.ofHours(1), failing, store::release);
+        PageChange first = change("page-1", T2);
+        PageChange second = change("page-2", T3);
+        store.hold(first);
+        store.hold(second);
+        store.put("db", new SyncWatermark(T3, Set.of("page-2")));
+        assertEquals(SyncWatermark.at(T2), store.stored("db"));
+
+        direct.offer(first);
+        waiting.offer(second);
+        assertEquals(SyncWatermark.at(T3), store.stored("db"));
+        waiting.flush();
+        assertEquals(0, waiting.getPendingCount());
+        assertEquals(new SyncWatermark(T3, Set.of("page-2")), store.stored("db"));
+    }
+
+    private WatermarkStore open() throws Exception {
+        WatermarkStore store = new WatermarkStore(file());
+        store.load();
+        return store;
+    }
+
+    private Path file() {
+        return directory.resolve("watermarks.log");
+    }
+
+    private static PageChange change(String pageId, Instant lastEdited) {
+        return PageChange.detected("db", new PageStub(pageId, T1, lastEdited));
+    }
+}
@@ -0,0 +1,96 @@
+package de.malfrador.reporting;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DuplicateIndexTest {
+
+    private static final Instant T1 = Instant.parse("2026-01-01T10:00:00Z");
+    private static final Instant T2 = Instant.parse("2026-01-01T10:05:00Z");
+    private static final String CRASH = "The game crashes when I open my inventory in a dungeon right after the boss fight";
+    private static final String LAG = "Huge server lag spikes every few minutes, everyone gets kicked with a timeout";
+
+    private final DuplicateIndex index = new DuplicateIndex(0.4);
+
+    @Test
+    void similarReportsAreFoundMostSimilarFirst() {
+        put("crash", T1, CRASH);
+        put("crash-reworded", T1, "game crashed when opening the inventory in a dungeon after a boss fight");
+        put("lag", T1, LAG);
+
+        List<DuplicateIndex.Match> matches = index.similar("db", "The game crashes when I open my inventory in a dungeon after the boss fight!", 3);
+        assertEquals(List.of("crash", "crash-reworded"), matches.stream().map(DuplicateIndex.Match::pageId).toList());
+        assertTrue(matches.get(0).similarity() > 0.8, matches.toString());
+        assertTrue(matches.get(1).similarity() >= 0.4, matches.toString());
+        assertEquals("https://www.notion.so/crash", matches.get(0).url());
+    }
+
+    @Test
+    void identicalTextIsFullySimilar() {
+        put("crash", T1, CRASH);
+        DuplicateIndex.Match match = index.similar("db", CRASH.toUpperCase() + "!!", 1).getFirst();
+        assertEquals(1.0, match.similarity());
+        assertEquals(List.of(), index.similar("db", LAG, 3));
+        assertEquals(List.of(), index.similar("other-db", CRASH, 3));
+        assertEquals(List.of(), index.similar("db", "ab", 3)); // Too short to compare
+    }
+
+    @Test
+    void resultsAreLimited() {
+        put("a", T1, CRASH);
+        put("b", T1, CRASH + " again");
+        put("c", T1, CRASH + " and again");
+        assertEquals(2, index.similar("db", CRASH, 2).size());
+    }
+
+    @Test
+    void olderStatesDontOverwriteNewerOnes() {
+        put("page", T2, LAG);
+        put("page", T1, CRASH);
+        assertEquals(List.of(), index.similar("db", CRASH, 3));
+        assertEquals("page", index.similar("db", LAG, 3).getFirst().pageId());
+
+        put("page", T2.plusSeconds(60), CRASH); // The text was edited
+        assertEquals(List.of(), index.similar("db", LAG, 3));
+        assertEquals("page", index.similar("db", CRASH, 3).getFirst().pageId());
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void removedReportsAreNotFound() {
+        put("crash", T1, CRASH);
+        put("lag", T1, LAG);
+        index.remove("db", "crash");
+        index.remove("db", "unknown");
+        index.remove("unknown-db", "crash");
+        assertEquals(List.of(), index.similar("db", CRASH, 3));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void reloadRemovesReportsItDidNotSee() throws InterruptedException {
+        put("kept", T1, CRASH);
+        put("deleted", T1, LAG);
+        Thread.sleep(1);
+        long loadStart = System.nanoTime();
+        put("kept", T1, CRASH); // Seen by the load
+        put("submitted", T1, "Quest reward chest is empty after finishing the quest"); // Added while loading
+
+        assertEquals(1, index.retain("db", Set.of("kept"), loadStart));
+        assertEquals(List.of(), index.similar("db", LAG, 3));
+        assertEquals("kept", index.similar("db", CRASH, 3).getFirst().pageId());
+        assertEquals("submitted", index.similar("db", "quest reward chest empty after finishing quest", 3).getFirst().pageId());
+        assertEquals(2, index.size());
+        assertEquals(0, index.retain("unknown-db", Set.of(), loadStart));
+    }
+
+    private void put(String pageId, Instant lastEdited, String text) {
+        index.put("db", pageId, lastEdited, text, "https://www.notion.so/" + pageId, text);
+    }
+}
@@ -0,0 +1,148 @@
+package de.malfrador.reporting;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReportOutboxTest {
+
+    private static final Map<String, String> PROPERTIES = Map.of("Name", "user", "Description", "The game crashes");
+
+    @TempDir
+    Path directory;
+
+    private final List<ReportOutbox> outboxes = new ArrayList<>();
+    private final BlockingQueue<Sent> sent = new LinkedBlockingQueue<>();
+
+    @AfterEach
+    void shutdown() {
+        outboxes.forEach(ReportOutbox::shutdown);
+    }
+
+    @Test
+    void sentReportIsNotReplayed() throws Exception {
+        ReportOutbox outbox = start((report, resend) -> sent.add(new Sent(report, resend)));
+        assertEquals(ReportOutbox.Result.ACCEPTED, outbox.submit("a", "database", PROPERTIES));
+        Sent first = sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(first);
+        assertFalse(first.resend());
+        awaitNothingPending(outbox);
+        outbox.shutdown();
+
+        ReportOutbox restarted = start((report, resend) -> sent.add(new Sent(report, resend)));
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(ReportOutbox.Result.DUPLICATE, restarted.submit("a", "database", PROPERTIES));
+        assertEquals(ReportOutbox.Result.ACCEPTED, restarted.submit("b", "database", PROPERTIES));
+    }
+
+    @Test
+    void pendingReportIsReplayedAsResend() throws Exception {
+        ReportOutbox outbox = start((report, resend) -> {
+            throw new IllegalStateException("Notion is down");
+        });
+        outbox.submit("a", "database", PROPERTIES);
+        assertEquals(1, outbox.getPendingCount());
+        outbox.shutdown();
+
+        start((report, resend) -> sent.add(new Sent(report, resend)));
+        Sent replayed = sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(replayed);
+        assertTrue(replayed.resend()); // The failed attempt may have created the page
+        assertEquals("a", replayed.report().submissionId());
+        assertEquals("database", replayed.report().databaseId());
+        assertEquals(PROPERTIES, replayed.report().properties());
+        assertTrue(replayed.report().submittedAt() > 0);
+    }
+
+    @Test
+    void unreadableLastLineIsSkipped() throws Exception {
+        ReportOutbox outbox = start((report, resend) -> {
+            throw new IllegalStateException("Notion is down");
+        });
+        outbox.submit("a", "database", PROPERTIES);
+        outbox.shutdown();
+        Files.writeString(file(), "{\"type\":\"submit\",\"key\":\"b\",\"prop", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        ReportOutbox restarted = start((report, resend) -> {
+            throw new IllegalStateException("Notion is down");
+        });
+        assertEquals(1, restarted.getPendingCount());
+    }
+
+    @Test
+    void compactionKeepsPendingAndRecentlyFinishedReports() throws Exception {
+        Files.writeString(file(), """
+                {"type":"submit","key":"old","properties":{},"time":1000}
+                {"type":"done","key":"old","time":2000}
+                """, StandardCharsets.UTF_8);
+        ReportOutbox outbox = start((report, resend) -> {
+            if (report.submissionId().equals("b")) {
+                throw new IllegalStateException("Notion is down");
+            }
+        });
+        outbox.submit("a", "database", PROPERTIES);
+        outbox.submit("b", "database", PROPERTIES);
+        awaitPending(outbox, 1);
+        outbox.shutdown();
+
+        CountDownLatch checked = new CountDownLatch(1);
+        ReportOutbox restarted = start((report, resend) -> {
+            checked.await();
+            sent.add(new Sent(report, resend));
+        });
+        List<String> lines = Files.readAllLines(file(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size(), lines.toString()); // "old" was finished more than a day ago
+        assertTrue(lines.get(0).contains("\"done\"") && lines.get(0).contains("\"a\""), lines.get(0));
+        assertTrue(lines.get(1).contains("\"submit\"") && lines.get(1).contains("\"b\""), lines.get(1));
+        assertFalse(Files.exists(directory.resolve("outbox.jsonl.tmp")));
+        checked.countDown();
+
+        assertEquals("b", sent.poll(5, TimeUnit.SECONDS).report().submissionId());
+        assertEquals(ReportOutbox.Result.DUPLICATE, restarted.submit("a", "database", PROPERTIES));
+        assertEquals(ReportOutbox.Result.ACCEPTED, restarted.submit("old", "database", PROPERTIES));
+    }
+
+    private ReportOutbox start(ReportOutbox.Sender sender) throws Exception {
+        ReportOutbox outbox = new ReportOutbox(file(), sender, 100);
+        outboxes.add(outbox);
+        outbox.start();
+        return outbox;
+    }
+
+    private Path file() {
+        return directory.resolve("outbox.jsonl");
+    }
+
+    private static void awaitNothingPending(ReportOutbox outbox) throws InterruptedException {
+        awaitPending(outbox, 0);
+    }
+
+    private static void awaitPending(ReportOutbox outbox, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (outbox.getPendingCount() != count) {
+            assertTrue(System.nanoTime() < deadline, "Still " + outbox.getPendingCount() + " reports pending");
+            Thread.sleep(10);
+        }
+    }
+
+    private record Sent(ReportOutbox.Report report, boolean resend) {
+    }
+}
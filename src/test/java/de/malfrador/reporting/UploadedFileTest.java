@@ -0,0 +1,41 @@
+package de.malfrador.reporting;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadedFileTest {
+
+    private static final Instant NOW = Instant.parse("2026-01-01T10:00:00Z");
+
+    @Test
+    void filesSurviveEncoding() {
+        UploadedFile screenshot = new UploadedFile("upload-1", "crash\tscreen.png", NOW.toEpochMilli(),
+                "https://cdn.discordapp.com/attachments/1/2/crash.png?ex=1", "image/png", 1234);
+        UploadedFile log = new UploadedFile("upload-2", "latest.log", NOW.toEpochMilli(), null, null, 10);
+        List<UploadedFile> decoded = UploadedFile.decode(screenshot.encode() + "\n" + log.encode());
+        assertEquals(List.of(screenshot, log), decoded);
+        assertEquals("crash screen.png", decoded.getFirst().filename());
+    }
+
+    @Test
+    void filesStoredWithoutTheirSourceAreRead() {
+        assertEquals(List.of(new UploadedFile("upload-1", "crash.png", 0, null, null, 0)),
+                UploadedFile.decode("upload-1\tcrash.png\n\tno id\nnot a file"));
+        assertEquals(List.of(), UploadedFile.decode(null));
+    }
+
+    @Test
+    void uploadsExpireBeforeNotionDropsThem() {
+        UploadedFile file = new UploadedFile("upload-1", "crash.png", NOW.toEpochMilli(), "https://cdn.discordapp.com/crash.png", null, 1);
+        assertFalse(file.isExpired(NOW.plus(Duration.ofMinutes(30))));
+        assertTrue(file.isExpired(NOW.plus(Duration.ofMinutes(55))));
+        assertFalse(new UploadedFile("upload-1", "crash.png", 0, null, null, 0).isExpired(NOW)); // Upload time not known
+    }
+}